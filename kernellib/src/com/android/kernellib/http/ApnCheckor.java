@@ -88,80 +88,87 @@ public class ApnCheckor
 
 		ContentResolver cr = ctx.getContentResolver();
 		Cursor cursor = cr.query(uri, new String[] { "name", "apn", "proxy", "port" }, null, null, null);
-		int count = cursor.getCount();
-
-		if (0 >= count)
+		if (null == cursor)
 		{
 			return null;
 		}
-
-		ApnTag[] array = new ApnTag[count];
-		String apn = null, name = null, proxy = null, port = null;
-		int i = 0;
-		while (cursor.moveToNext())
+		try
 		{
-			name = StringUtils.maskNull(cursor.getString(0));
-			apn = StringUtils.maskNull(cursor.getString(1));
-			proxy = StringUtils.maskNull(cursor.getString(2));
-			port = StringUtils.maskNull(cursor.getString(3));
+			int count = cursor.getCount();
 
-			log("cursor name:" + name + ",apn:" + apn + ",proxy:" + proxy + ",port:" + port);
-			if (apn.toUpperCase().contains("CMWAP") || name.toUpperCase().contains("CMWAP"))
-			{
-				array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag.CMWAP : ApnTag.CMNET;
-			}
-			else if (apn.toUpperCase().contains("CMNET") || name.toUpperCase().contains("CMNET"))
-			{
-				array[i] = ApnTag.CMNET;
-			}
-			else if (apn.toUpperCase().contains("UNIWAP") || name.toUpperCase().contains("UNIWAP"))
-			{
-				array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag.CMWAP : ApnTag.CMNET;
-			}
-			else if (apn.toUpperCase().contains("UNINET") || name.toUpperCase().contains("UNINET"))
-			{
-				array[i] = ApnTag.UNINET;
-			}
-			else if (apn.toUpperCase().contains("CTWAP") || name.toUpperCase().contains("CTWAP"))
+			if (0 >= count)
 			{
-				array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag.CTWAP : ApnTag.CTNET;
-			}
-			else if (apn.toUpperCase().contains("CTNET") || name.toUpperCase().contains("CTNET"))
-			{
-				array[i] = ApnTag.CTNET;
-			}
-			else if (apn.toUpperCase().contains("3GWAP") || name.toUpperCase().contains("3GWAP"))
-			{
-				array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag._3GWAP : ApnTag._3GNET;
-			}
-			else if (apn.toUpperCase().contains("3GNET") || name.toUpperCase().contains("3GNET"))
-			{
-				array[i] = ApnTag._3GNET;
-			}
-			else if ((apn.toUpperCase().contains("INTERNET") || name.toUpperCase().contains("INTERNET")))
-			{
-				array[i] = ApnTag.INTERNET;
-			}
-			else if (name.toUpperCase().contains("T-MOBILE US") || apn.toUpperCase().contains("epc.tmobile.com"))
-			{
-				array[i] = ApnTag.INTERNET;
+				return null;
 			}
-			else
+
+			ApnTag[] array = new ApnTag[count];
+			String apn = null, name = null, proxy = null, port = null;
+			int i = 0;
+			while (cursor.moveToNext())
 			{
-				array[i] = ApnTag.UNKNOW;
+				// 每行只转换一次大写
+				name = StringUtils.maskNull(cursor.getString(0)).toUpperCase();
+				apn = StringUtils.maskNull(cursor.getString(1)).toUpperCase();
+				proxy = StringUtils.maskNull(cursor.getString(2));
+				port = StringUtils.maskNull(cursor.getString(3));
+
+				log("cursor name:" + name + ",apn:" + apn + ",proxy:" + proxy + ",port:" + port);
+				if (apn.contains("CMWAP") || name.contains("CMWAP"))
+				{
+					array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag.CMWAP : ApnTag.CMNET;
+				}
+				else if (apn.contains("CMNET") || name.contains("CMNET"))
+				{
+					array[i] = ApnTag.CMNET;
+				}
+				else if (apn.contains("UNIWAP") || name.contains("UNIWAP"))
+				{
+					array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag.CMWAP : ApnTag.CMNET;
+				}
+				else if (apn.contains("UNINET") || name.contains("UNINET"))
+				{
+					array[i] = ApnTag.UNINET;
+				}
+				else if (apn.contains("CTWAP") || name.contains("CTWAP"))
+				{
+					array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag.CTWAP : ApnTag.CTNET;
+				}
+				else if (apn.contains("CTNET") || name.contains("CTNET"))
+				{
+					array[i] = ApnTag.CTNET;
+				}
+				else if (apn.contains("3GWAP") || name.contains("3GWAP"))
+				{
+					array[i] = (!TextUtils.isEmpty(proxy) && !TextUtils.isEmpty(port)) ? ApnTag._3GWAP : ApnTag._3GNET;
+				}
+				else if (apn.contains("3GNET") || name.contains("3GNET"))
+				{
+					array[i] = ApnTag._3GNET;
+				}
+				else if ((apn.contains("INTERNET") || name.contains("INTERNET")))
+				{
+					array[i] = ApnTag.INTERNET;
+				}
+				else if (name.contains("T-MOBILE US") || apn.contains("EPC.TMOBILE.COM"))
+				{
+					array[i] = ApnTag.INTERNET;
+				}
+				else
+				{
+					array[i] = ApnTag.UNKNOW;
+				}
+
+				log("array[" + i + "]:" + array[i]);
+				i++;
 			}
 
-			log("array[" + i + "]:" + array[i]);
-			i++;
+			return array;
 		}
-
-		if (null != cursor)
+		finally
 		{
+			// 提前返回或读取异常时也要关闭
 			cursor.close();
-			cursor = null;
 		}
-
-		return array;
 	}
 
 	/**
@@ -178,6 +185,8 @@ public class ApnCheckor
 	/**
 	 * Get preferred APN Entity
 	 * 
+	 * 每次调用都会查询telephony的ContentProvider，请求路径上请使用{@link NetworkStateCache#getApnTag()}
+	 * 
 	 * @param ctx
 	 * @return
 	 */
@@ -10,7 +10,6 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.util.CharArrayBuffer;
-import org.apache.http.util.EntityUtils;
 
 import android.text.TextUtils;
 
@@ -35,9 +34,10 @@ public class ByteArrayGZipResponseHandler extends AbstractResponseHandler {
             return null;
         }
 
+        // HttpRequestAdapter已解压的响应不再有Content-Encoding，这里只处理未经过解压的响应
         String encodeing = getHeader(response, "Content-Encoding");
 
-        int lenth = StringUtils.toInt(getHeader(response, "Card-Length"), -1);
+        int lenth = DecompressingEntity.estimateContentLength(httpEntity, -1);
 
         DebugLog.log(TAG, "encodeing:" + encodeing);
         DebugLog.log(TAG, "lenth:" + lenth);
@@ -47,7 +47,7 @@ public class ByteArrayGZipResponseHandler extends AbstractResponseHandler {
             if (!TextUtils.isEmpty(encodeing) && encodeing.contains("gzip")) {
                 return gunzip(httpEntity, lenth);
             } else {
-                return new String(EntityUtils.toByteArray(httpEntity));
+                return new String(ByteArrayResponseHandler.toByteArray(httpEntity), "UTF-8");
             }
 
         } catch (Throwable e) {
@@ -1,16 +1,19 @@
 package com.android.kernellib.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.util.ByteArrayBuffer;
 
 public class ByteArrayResponseHandler extends AbstractResponseHandler
 {
 	public static final String TAG = "ByteArrayResponseHandler";
 
+	private static final int BUFFER_SIZE = 4096;
+
 //	private String requestUrl;
 //
 //	public void setRequestUrl(String requestUrl)
@@ -34,7 +37,7 @@ public class ByteArrayResponseHandler extends AbstractResponseHandler
 		}
 		try
 		{
-			return EntityUtils.toByteArray(httpEntity);
+			return toByteArray(httpEntity);
 		}
 		// OutOfMemoryError，崩溃保护，打印请求url
 		catch (Throwable e)
@@ -44,4 +47,36 @@ public class ByteArrayResponseHandler extends AbstractResponseHandler
 		}
 
 	}
-}
\ No newline at end of file
+
+	/**
+	 * 读出响应体，按Content-Length（压缩响应按压缩后长度估算）预分配缓冲区
+	 * 
+	 * @param httpEntity
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] toByteArray(HttpEntity httpEntity) throws IOException
+	{
+		InputStream in = httpEntity.getContent();
+		if (null == in)
+		{
+			return null;
+		}
+		try
+		{
+			ByteArrayBuffer buffer = new ByteArrayBuffer(
+					DecompressingEntity.estimateContentLength(httpEntity, BUFFER_SIZE));
+			byte[] tmp = new byte[BUFFER_SIZE];
+			int count;
+			while ((count = in.read(tmp)) != -1)
+			{
+				buffer.append(tmp, 0, count);
+			}
+			return buffer.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
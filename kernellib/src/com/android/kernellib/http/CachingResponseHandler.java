@@ -0,0 +1,115 @@
+package com.android.kernellib.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Hashtable;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 包装调用方的ResponseHandler：200响应保存到HttpResponseCache后再交给调用方处理，
+ * 304响应换成缓存的响应交给调用方处理。调用方得到的结果与直接请求相同。
+ */
+class CachingResponseHandler extends AbstractResponseHandler {
+    protected static final String TAG = CachingResponseHandler.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final HttpResponseCache cache;
+
+    private final String url;
+
+    // 请求头，用于保存Vary的部分，可以为null
+    private final Hashtable<String, String> requestHeaders;
+
+    // 发起条件请求时的缓存，可以为null
+    private final HttpResponseCache.Entry cached;
+
+    private final AbstractResponseHandler delegate;
+
+    CachingResponseHandler(HttpResponseCache cache, String url,
+            Hashtable<String, String> requestHeaders, HttpResponseCache.Entry cached,
+            AbstractResponseHandler delegate) {
+        this.cache = cache;
+        this.url = url;
+        this.requestHeaders = requestHeaders;
+        this.cached = cached;
+        this.delegate = delegate;
+    }
+
+    AbstractResponseHandler getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Object handleResponse(HttpResponse response) throws ClientProtocolException,
+            IOException {
+        int code = response.getStatusLine().getStatusCode();
+        if (code == HttpStatus.SC_NOT_MODIFIED && null != cached) {
+            cache.onConditionalHit();
+            DebugLog.log(TAG, "not modified: " + url);
+            response = cache.update(cached, requestHeaders, response).toResponse();
+        } else {
+            cache.onMiss();
+            if (code == HttpStatus.SC_OK) {
+                cacheBody(response);
+            }
+        }
+        // getHttpResponse返回交给调用方的响应
+        this.response = response;
+        return delegate.handleResponse(response);
+    }
+
+    @Override
+    public Object handleResponseImpl(HttpResponse response) throws ClientProtocolException,
+            IOException {
+        return delegate.handleResponseImpl(response);
+    }
+
+    /**
+     * 读出响应体保存到缓存，并替换为可重复读取的实体。超过MAX_ENTRY_SIZE时不缓存，数据原样交给调用方。
+     */
+    private void cacheBody(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (null == entity || entity.getContentLength() > HttpResponseCache.MAX_ENTRY_SIZE) {
+            return;
+        }
+        InputStream in = entity.getContent();
+        if (null == in) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while (out.size() <= HttpResponseCache.MAX_ENTRY_SIZE && (count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        byte[] body = out.toByteArray();
+        if (body.length > HttpResponseCache.MAX_ENTRY_SIZE) {
+            // 已读出的部分和剩余数据一起交给调用方
+            InputStreamEntity rest =
+                    new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(body),
+                            in), -1);
+            rest.setContentType(entity.getContentType());
+            rest.setContentEncoding(entity.getContentEncoding());
+            response.setEntity(rest);
+            return;
+        }
+        in.close();
+        ByteArrayEntity copy = new ByteArrayEntity(body);
+        copy.setContentType(entity.getContentType());
+        copy.setContentEncoding(entity.getContentEncoding());
+        response.setEntity(copy);
+        cache.put(url, requestHeaders, response, body);
+    }
+}
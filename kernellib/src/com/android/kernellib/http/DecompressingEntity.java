@@ -0,0 +1,161 @@
+package com.android.kernellib.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * 边读边解压gzip/deflate响应体，由HttpRequestAdapter在交给ResponseHandler之前替换响应的实体。
+ *
+ * 替换后响应中不再有Content-Encoding和Content-Length，ResponseHandler读到的都是解压后的数据。
+ */
+class DecompressingEntity extends HttpEntityWrapper {
+
+    // 预估解压后长度时的压缩比
+    private static final int ESTIMATED_RATIO = 4;
+
+    // 预分配缓冲区上限
+    private static final int MAX_ESTIMATED_LENGTH = 1024 * 1024;
+
+    private final boolean gzip;
+
+    private InputStream content;
+
+    private DecompressingEntity(HttpEntity wrapped, boolean gzip) {
+        super(wrapped);
+        this.gzip = gzip;
+    }
+
+    /**
+     * 响应是gzip或deflate压缩时替换为解压实体
+     *
+     * @param response
+     */
+    static void decompress(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (null == entity || entity instanceof DecompressingEntity) {
+            return;
+        }
+        Header header = entity.getContentEncoding();
+        if (null == header) {
+            header = response.getFirstHeader("Content-Encoding");
+        }
+        if (null == header || null == header.getValue()) {
+            return;
+        }
+        String encoding = header.getValue().trim();
+        boolean gzip;
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            gzip = true;
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            gzip = false;
+        } else {
+            return;
+        }
+        response.setEntity(new DecompressingEntity(entity, gzip));
+        response.removeHeaders("Content-Encoding");
+        response.removeHeaders("Content-Length");
+    }
+
+    /**
+     * 预估响应体长度，用于预分配缓冲区
+     *
+     * @param entity
+     * @param defaultLength 长度未知时返回的值
+     * @return
+     */
+    static int estimateContentLength(HttpEntity entity, int defaultLength) {
+        long length;
+        if (entity instanceof DecompressingEntity) {
+            length = ((DecompressingEntity) entity).getCompressedLength() * ESTIMATED_RATIO;
+        } else {
+            length = null == entity ? -1 : entity.getContentLength();
+        }
+        if (length <= 0) {
+            return defaultLength;
+        }
+        return (int) Math.min(length, MAX_ESTIMATED_LENGTH);
+    }
+
+    /**
+     * @param entity
+     * @return 网络上传输的长度，未知时返回-1
+     */
+    static long getTransferLength(HttpEntity entity) {
+        if (entity instanceof DecompressingEntity) {
+            return ((DecompressingEntity) entity).getCompressedLength();
+        }
+        return null == entity ? -1 : entity.getContentLength();
+    }
+
+    long getCompressedLength() {
+        return wrappedEntity.getContentLength();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (null == content) {
+            InputStream in = wrappedEntity.getContent();
+            content = gzip ? new GZIPInputStream(in) : createInflaterStream(in);
+        }
+        return content;
+    }
+
+    /**
+     * deflate有带zlib头和不带头两种格式，根据第一个字节判断
+     */
+    private static InputStream createInflaterStream(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 1);
+        int first = pushback.read();
+        if (first == -1) {
+            return pushback;
+        }
+        pushback.unread(first);
+        // zlib头的低4位为8（deflate方法）
+        boolean zlib = (first & 0x0F) == 8;
+        return new InflaterInputStream(pushback, new Inflater(!zlib));
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        InputStream in = getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
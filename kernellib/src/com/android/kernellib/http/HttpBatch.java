@@ -0,0 +1,196 @@
+package com.android.kernellib.http;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 批量GET请求，用于页面加载时向同一接口host发出的大量小请求。
+ *
+ * 同一host的请求在少数几条持久连接上执行：服务器返回HTTP/1.1 keep-alive响应后使用流水线连续发送，
+ * 否则在连接上依次执行。每个请求与HttpClientWrap.wrapHttpGetAsync相同，经过响应缓存、重试策略和
+ * HttpDispatcher调度，错误码也相同。结果按添加的顺序通过下标获取。
+ *
+ * Example:
+ *
+ * HttpBatch batch = new HttpBatch(context); int a = batch.add(url1, new DefaultResponseHandler());
+ * int b = batch.add(url2, new DefaultResponseHandler()); batch.execute(); if
+ * (batch.getErrorCode(a) == 0) { String data = (String) batch.getResponseData(a); }
+ */
+public class HttpBatch {
+
+    protected static final String TAG = HttpBatch.class.getSimpleName();
+
+    // 每个host默认使用的连接数
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+
+    private final Context context;
+
+    private final ArrayList<Request> requests = new ArrayList<Request>();
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    private int requestType = HttpDispatcher.TYPE_API;
+
+    private boolean executed = false;
+
+    private volatile boolean aborted = false;
+
+    private static class Request {
+        final String url;
+        final AbstractResponseHandler responseHandler;
+        final Hashtable<String, String> headers;
+        HttpClientWrap wrap;
+        HttpFuture future;
+
+        Request(String url, AbstractResponseHandler responseHandler,
+                Hashtable<String, String> headers) {
+            this.url = url;
+            this.responseHandler = responseHandler;
+            this.headers = headers;
+        }
+    }
+
+    public HttpBatch(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * @param count 每个host使用的连接数，默认为2
+     */
+    public void setMaxConnectionsPerHost(int count) {
+        maxConnections = Math.max(1, count);
+    }
+
+    /**
+     * 每个请求的重试策略，默认为RetryPolicy.DEFAULT
+     *
+     * @param policy 为null时不重试
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = null == policy ? RetryPolicy.NO_RETRY : policy;
+    }
+
+    /**
+     * @param type HttpDispatcher.TYPE_API或TYPE_IMAGE
+     */
+    public void setRequestType(int type) {
+        requestType = type;
+    }
+
+    public int add(String requestUrl, AbstractResponseHandler responseHandler) {
+        return add(requestUrl, responseHandler, null);
+    }
+
+    /**
+     * 添加GET请求
+     *
+     * @param requestUrl
+     * @param responseHandler 在回调线程中处理响应，为null时使用ByteArrayResponseHandler
+     * @param headers 可以为null
+     * @return 请求的下标，用于获取结果
+     */
+    public synchronized int add(String requestUrl, AbstractResponseHandler responseHandler,
+            Hashtable<String, String> headers) {
+        if (executed) {
+            throw new IllegalStateException("batch already executed");
+        }
+        requests.add(new Request(requestUrl, responseHandler, headers));
+        return requests.size() - 1;
+    }
+
+    public synchronized int size() {
+        return requests.size();
+    }
+
+    /**
+     * 执行所有请求并等待全部结束，只能调用一次。不能在主线程调用。
+     *
+     * @return 各请求的错误码，顺序与添加的顺序一致
+     */
+    public int[] execute() {
+        synchronized (this) {
+            if (executed) {
+                throw new IllegalStateException("batch already executed");
+            }
+            executed = true;
+        }
+        ArrayList<NioHttpCall> calls = new ArrayList<NioHttpCall>(requests.size());
+        for (Request request : requests) {
+            HttpClientWrap wrap = new HttpClientWrap(context);
+            wrap.setRetryPolicy(retryPolicy);
+            wrap.setRequestType(requestType);
+            request.wrap = wrap;
+            request.future = new HttpFuture(wrap, null);
+            NioHttpCall call = wrap.createAsyncCall(request.url, "GET", null,
+                    request.responseHandler, request.headers, request.future);
+            if (null != call) {
+                calls.add(call);
+            }
+        }
+        if (aborted) {
+            abort();
+        }
+        if (!calls.isEmpty()) {
+            NioHttpEngine.getInstance().executeBatch(calls, maxConnections);
+        }
+
+        int[] errors = new int[requests.size()];
+        for (int i = 0; i < errors.length; i++) {
+            try {
+                errors[i] = requests.get(i).future.await();
+            } catch (InterruptedException e) {
+                DebugLog.log(TAG, "execute interrupted");
+                Thread.currentThread().interrupt();
+                abort();
+                errors[i] = -6;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * 中断所有请求，可在其他线程调用。未结束的请求以-6结束。
+     */
+    public void abort() {
+        aborted = true;
+        for (Request request : requests) {
+            HttpClientWrap wrap = request.wrap;
+            if (null != wrap) {
+                wrap.abort();
+            }
+        }
+    }
+
+    /**
+     * @param index add()返回的下标
+     * @return 错误码，与HttpClientWrap.wrapHttpGet一致
+     */
+    public int getErrorCode(int index) {
+        return requests.get(index).future.getErrorCode();
+    }
+
+    /**
+     * @param index add()返回的下标
+     * @return ResponseHandler的处理结果，失败时为null
+     */
+    public Object getResponseData(int index) {
+        HttpFuture future = requests.get(index).future;
+        return future.getErrorCode() == 0 ? future.getResponseData() : null;
+    }
+
+    /**
+     * @param index add()返回的下标
+     * @return 响应，失败时可能为null
+     */
+    public HttpResponse getHttpResponse(int index) {
+        return requests.get(index).future.getHttpResponse();
+    }
+}
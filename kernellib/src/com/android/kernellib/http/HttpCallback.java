@@ -0,0 +1,21 @@
+package com.android.kernellib.http;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * HttpClientWrap异步请求的回调
+ */
+public interface HttpCallback {
+
+    /**
+     * 请求结束时调用。一般在NioHttpEngine的回调线程中调用，缓存命中或参数错误时在发起请求的线程中调用，
+     * 需要更新界面时请自行切换到主线程。
+     * 回调线程为所有异步请求共用且数量固定，不能在回调中阻塞等待，如对另一个异步请求调用
+     * HttpFuture.get()或执行HttpBatch.execute()，否则会推迟其他请求的回调甚至死锁，耗时操作请交给自己的线程。
+     *
+     * @param errorCode 与wrapHttpRequest的返回值一致
+     * @param responseData ResponseHandler的处理结果，失败时为null
+     * @param response 失败时可能为null
+     */
+    void onComplete(int errorCode, Object responseData, HttpResponse response);
+}
@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.Hashtable;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
@@ -16,6 +15,7 @@ import org.apache.http.HttpResponse;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.android.kernellib.utility.DebugLog;
@@ -49,7 +49,6 @@ import com.android.kernellib.utility.StringUtils;
 public class HttpClientWrap {
 
     protected static final String TAG = HttpClientWrap.class.getSimpleName();
-    private static ThreadLocal<AtomicInteger> local = new ThreadLocal<AtomicInteger>();
 
     protected Activity activity;
 
@@ -57,7 +56,16 @@ public class HttpClientWrap {
 
     protected HttpResponse httpResponse;
 
-    protected HttpRequestAdapter adapter;
+    protected volatile HttpRequestAdapter adapter;
+
+    // 正在进行的异步请求
+    protected volatile NioHttpCall asyncCall;
+
+    // 已中断，不再重试
+    protected volatile boolean aborted = false;
+
+    // serveFromCache没有使用缓存
+    private static final int NOT_SERVED = Integer.MIN_VALUE;
 
     protected int connectionTimeout = 10000;
 
@@ -67,6 +75,20 @@ public class HttpClientWrap {
 
     protected boolean isCustomSSLSocket = false;
 
+    // HttpDispatcher.TYPE_API或TYPE_IMAGE，决定调度优先级
+    protected int requestType = HttpDispatcher.TYPE_API;
+
+    protected RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    // 重试等待期间abort()通过该对象唤醒
+    private final Object retryLock = new Object();
+
+    // 是否使用已开启的HttpResponseCache
+    protected boolean useResponseCache = true;
+
+    // 不直接返回缓存，过期的缓存仍用于条件请求
+    protected boolean forceNetwork = false;
+
     public HttpResponse getHttpResponse() {
         return httpResponse;
     }
@@ -97,6 +119,42 @@ public class HttpClientWrap {
         isCustomSSLSocket = flag;
     }
 
+    /**
+     * 设置重试策略，默认为RetryPolicy.DEFAULT（GET请求的暂时性失败最多重试3次，POST不重试）
+     * 
+     * @param policy 为null时不重试
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = null == policy ? RetryPolicy.NO_RETRY : policy;
+    }
+
+    /**
+     * 已调用HttpResponseCache.install时，GET请求默认经过缓存，设置为false时不读写缓存
+     * 
+     * @param flag
+     */
+    public void setUseResponseCache(boolean flag) {
+        useResponseCache = flag;
+    }
+
+    /**
+     * 不直接返回缓存的响应，过期的缓存仍用于条件请求。后台重新验证时使用。
+     * 
+     * @param flag
+     */
+    void setForceNetwork(boolean flag) {
+        forceNetwork = flag;
+    }
+
+    /**
+     * 设置请求类型，默认为接口请求。接口请求优先于图片下载调度。
+     * 
+     * @param type HttpDispatcher.TYPE_API或TYPE_IMAGE
+     */
+    public void setRequestType(int type) {
+        requestType = type;
+    }
+
     public int wrapHttpGet(String requestUrl, AbstractResponseHandler responseHandler,
             Hashtable<String, String> header) {
         return wrapHttpRequest(requestUrl, "GET", null, responseHandler, header);
@@ -118,8 +176,8 @@ public class HttpClientWrap {
 
     /**
      * Error Code: 0, Success. -1, RequestUrl param error. -2, Request method param error. -3,
-     * HttpEntity is null for post request. -4, Exception error. -11, Check network fail. -12, No
-     * get correct apn value.
+     * HttpEntity is null for post request. -4, Exception error. -6, Request aborted. -11, Check
+     * network fail. -12, No get correct apn value.
      * 
      * see org.inq.android.appstore.SimpleUtils
      * 
@@ -130,21 +188,249 @@ public class HttpClientWrap {
         return wrapHttpRequest(requestUrl, method, entity, responseHandler, null);
     }
 
+    /**
+     * 异步GET请求，见{@link #wrapHttpRequestAsync}
+     */
+    public HttpFuture wrapHttpGetAsync(String requestUrl, AbstractResponseHandler responseHandler,
+            Hashtable<String, String> header, HttpCallback callback) {
+        return wrapHttpRequestAsync(requestUrl, "GET", null, responseHandler, header, callback);
+    }
+
+    /**
+     * 异步POST请求，见{@link #wrapHttpRequestAsync}
+     */
+    public HttpFuture wrapHttpPostAsync(String requestUrl, HttpEntity entity,
+            AbstractResponseHandler responseHandler, Hashtable<String, String> header,
+            HttpCallback callback) {
+        return wrapHttpRequestAsync(requestUrl, "POST", entity, responseHandler, header, callback);
+    }
+
     @SuppressLint("DefaultLocale")
 	private int wrapHttpRequest(String requestUrl, String method, HttpEntity entity,
             AbstractResponseHandler responseHandler, Hashtable<String, String> headers) {
-        Context ctx = null;
+        Context ctx = getContext();
+
+        // 响应缓存只用于有ResponseHandler的GET请求
+        HttpResponseCache cache = getResponseCache(requestUrl, method, responseHandler, headers);
+        HttpResponseCache.Entry cached = null;
+        if (null != cache) {
+            cache.onRequest();
+            cached = cache.get(requestUrl, headers);
+            int error = serveFromCache(ctx, cache, cached, requestUrl, headers, responseHandler);
+            if (error != NOT_SERVED) {
+                return error;
+            }
+        }
+
+        // 网络状态和APN在网络变化时才重新查询
+        NetworkStateCache networkState = NetworkStateCache.getInstance(ctx);
+        if (!networkState.isConnected()) {
+            return serveOffline(cache, cached, requestUrl, responseHandler);
+        }
+
+        HttpRequestBean bean = createRequestBean(networkState, requestUrl, method, entity,
+                responseHandler, headers, cache, cached);
+
+        adapter = new HttpRequestAdapter(bean);
+        if (aborted) {
+            adapter.abort();
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        int error = adapter.request();
+        DebugLog.log(TAG,"errorCode:" + error);
+
+        // 只重试暂时性的失败，按指数退避等待，不可重复发送的POST实体不重试
+        int retryCount = 0;
+        long delay;
+        while ((delay = getRetryDelay(bean, error, adapter.getHttpResponse(),
+                adapter.getLastException(), ++retryCount, startTime)) >= 0) {
+            DebugLog.log(TAG, "retry to get net data-----> " + retryCount + " delay:" + delay);
+            RetryPolicy.recordRetry(requestUrl);
+            if (!waitForRetry(delay)) {
+                error = -6;
+                break;
+            }
+            error = adapter.request();
+        }
+
+        if (error == 0) {
+            httpResponse = adapter.getHttpResponse();
+            // gzip/deflate响应已由HttpRequestAdapter解压
+            responseObject = adapter.getResponseData();
+        }
+        return onRequestComplete(error, cache, cached, requestUrl, bean.getResponseHandler());
+    }
+
+    /**
+     * 设置异步请求中https等阻塞执行的线程数，即异步https请求的并发上限，默认为4。
+     * 实际并发仍受HttpDispatcher限制。
+     * 
+     * @param threads 大于0
+     */
+    public static void setAsyncBlockingThreads(int threads) {
+        NioHttpEngine.getInstance().setBlockingThreads(threads);
+    }
+
+    /**
+     * 异步请求，调用线程不等待网络。http请求由NioHttpEngine在少量线程中非阻塞执行，
+     * https等其他请求在固定数量的线程中阻塞执行，见{@link #setAsyncBlockingThreads}。缓存、重试、调度与同步请求相同。
+     * 
+     * 一个HttpClientWrap同时只能有一个请求，abort()或HttpFuture.cancel()中断请求。
+     * 
+     * @param requestUrl
+     * @param method GET或POST
+     * @param entity POST请求的实体
+     * @param responseHandler 在回调线程中处理响应，为null时使用ByteArrayResponseHandler
+     * @param headers 可以为null
+     * @param callback 可以为null
+     * @return
+     */
+    public HttpFuture wrapHttpRequestAsync(String requestUrl, String method, HttpEntity entity,
+            AbstractResponseHandler responseHandler, Hashtable<String, String> headers,
+            HttpCallback callback) {
+        HttpFuture future = new HttpFuture(this, callback);
+        NioHttpCall call = createAsyncCall(requestUrl, method, entity, responseHandler, headers,
+                future);
+        if (null != call) {
+            NioHttpEngine.getInstance().execute(call);
+        }
+        return future;
+    }
+
+    /**
+     * 准备异步请求，结束时设置future的结果
+     * 
+     * @return 需要提交给NioHttpEngine的请求，已由缓存完成时返回null
+     */
+    NioHttpCall createAsyncCall(String requestUrl, String method, HttpEntity entity,
+            AbstractResponseHandler responseHandler, Hashtable<String, String> headers,
+            final HttpFuture future) {
+        if (null == responseHandler) {
+            responseHandler = new ByteArrayResponseHandler();
+        }
+        Context ctx = getContext();
+
+        final HttpResponseCache cache = getResponseCache(requestUrl, method, responseHandler,
+                headers);
+        HttpResponseCache.Entry entry = null;
+        if (null != cache) {
+            cache.onRequest();
+            entry = cache.get(requestUrl, headers);
+            int error = serveFromCache(ctx, cache, entry, requestUrl, headers, responseHandler);
+            if (error != NOT_SERVED) {
+                future.complete(error, responseObject, httpResponse);
+                return null;
+            }
+        }
+        final HttpResponseCache.Entry cached = entry;
+
+        NetworkStateCache networkState = NetworkStateCache.getInstance(ctx);
+        if (!networkState.isConnected()) {
+            int error = serveOffline(cache, cached, requestUrl, responseHandler);
+            future.complete(error, responseObject, httpResponse);
+            return null;
+        }
+
+        final HttpRequestBean bean = createRequestBean(networkState, requestUrl, method, entity,
+                responseHandler, headers, cache, cached);
+        final String url = requestUrl;
+        final long startTime = SystemClock.elapsedRealtime();
+        NioHttpCall call = new NioHttpCall(bean, new NioHttpCall.Listener() {
+            private int retryCount = 0;
+
+            @Override
+            public void onComplete(NioHttpCall call, int error) {
+                DebugLog.log(TAG, "async errorCode:" + error);
+                long delay = getRetryDelay(bean, error, call.getHttpResponse(),
+                        call.getLastException(), ++retryCount, startTime);
+                if (delay >= 0) {
+                    // 退避期间不占用线程
+                    DebugLog.log(TAG, "retry async-----> " + retryCount + " delay:" + delay);
+                    RetryPolicy.recordRetry(url);
+                    call.reset(delay, SystemClock.elapsedRealtime());
+                    NioHttpEngine.getInstance().execute(call);
+                    return;
+                }
+                if (error == 0) {
+                    httpResponse = call.getHttpResponse();
+                    responseObject = call.getResponseData();
+                }
+                error = onRequestComplete(error, cache, cached, url, bean.getResponseHandler());
+                future.complete(error, error == 0 ? responseObject : null, httpResponse);
+            }
+        });
+        asyncCall = call;
+        if (aborted) {
+            call.abort();
+        }
+        return call;
+    }
+
+    private Context getContext() {
         if (null != activity) {
-            ctx = activity.getApplicationContext();
-        } else {
-            ctx = this._context;
+            return activity.getApplicationContext();
+        }
+        return this._context;
+    }
+
+    private HttpResponseCache getResponseCache(String requestUrl, String method,
+            AbstractResponseHandler responseHandler, Hashtable<String, String> headers) {
+        if (useResponseCache && null != responseHandler && null != requestUrl
+                && "GET".equalsIgnoreCase(method)
+                && HttpResponseCache.isCacheableRequest(headers)) {
+            return HttpResponseCache.getInstalled();
         }
+        return null;
+    }
+
+    /**
+     * 缓存未过期或允许先返回过期的缓存时，直接使用缓存的响应
+     * 
+     * @return 错误码，没有使用缓存时返回NOT_SERVED
+     */
+    private int serveFromCache(Context ctx, HttpResponseCache cache,
+            HttpResponseCache.Entry cached, String requestUrl, Hashtable<String, String> headers,
+            AbstractResponseHandler responseHandler) {
+        boolean noCache = null != headers && "no-cache".equals(headers.get("Cache-Control"));
+        long now = System.currentTimeMillis();
+        if (null != cached && !forceNetwork && !noCache) {
+            if (cached.isFresh(now)) {
+                cache.onHit();
+                return handleCachedResponse(cached, responseHandler);
+            }
+            if (cached.canServeStale(now)) {
+                cache.onStaleHit();
+                cache.revalidateAsync(ctx, requestUrl, headers, isCustomSSLSocket);
+                return handleCachedResponse(cached, responseHandler);
+            }
+        }
+        return NOT_SERVED;
+    }
 
-        if (!NetCheckor.checkNetworkType(ctx)) {
-            return -11;
+    /**
+     * 没有网络时使用缓存的响应
+     * 
+     * @return 错误码
+     */
+    private int serveOffline(HttpResponseCache cache, HttpResponseCache.Entry cached,
+            String requestUrl, AbstractResponseHandler responseHandler) {
+        if (null != cached && cached.canServeOffline()) {
+            DebugLog.log(TAG, "offline, use cached response: " + requestUrl);
+            cache.onOfflineHit();
+            return handleCachedResponse(cached, responseHandler);
         }
+        return -11;
+    }
+
+    @SuppressLint("DefaultLocale")
+    private HttpRequestBean createRequestBean(NetworkStateCache networkState, String requestUrl,
+            String method, HttpEntity entity, AbstractResponseHandler responseHandler,
+            Hashtable<String, String> headers, HttpResponseCache cache,
+            HttpResponseCache.Entry cached) {
+        HttpDispatcher.getInstance().updateNetworkType(networkState.getNetworkType());
 
-        ApnCheckor.ApnTag apnTag = ApnCheckor.getCurrentUsedAPNTag(ctx);
+        ApnCheckor.ApnTag apnTag = networkState.getApnTag();
         // if (ApnCheckor.ApnTag.UNKNOW.equals(apnTag)) {
         // return -12;
         // }
@@ -154,6 +440,7 @@ public class HttpClientWrap {
             bean.setCustomSSLSocketFlag(isCustomSSLSocket);
         }
         bean.setApnTag(apnTag);
+        bean.setRequestType(requestType);
         bean.setRequestUrl(requestUrl);
         bean.setMethod(method);
         if (null == headers || headers.size() < 1) {
@@ -170,8 +457,22 @@ public class HttpClientWrap {
                 }
             }
         }
-        //
-        // bean.addHeader("Accept-Encoding", "gzip");
+
+        if (null != cache) {
+            // 有缓存时发起条件请求，304时使用缓存的响应体
+            if (null != cached) {
+                String etag = cached.getETag();
+                String lastModified = cached.getLastModified();
+                if (!TextUtils.isEmpty(etag)) {
+                    bean.addHeader("If-None-Match", etag);
+                }
+                if (!TextUtils.isEmpty(lastModified)) {
+                    bean.addHeader("If-Modified-Since", lastModified);
+                }
+            }
+            responseHandler = new CachingResponseHandler(cache, requestUrl, headers, cached,
+                    responseHandler);
+        }
 
         if (connectionTimeout > 0) {
             bean.setConnectionTimeout(connectionTimeout);
@@ -180,36 +481,105 @@ public class HttpClientWrap {
             bean.setSocketTimeout(socketTimeout);
         }
 
-        if ("POST".equals(method.toUpperCase())) {
+        if (null != method && "POST".equals(method.toUpperCase())) {
             bean.setHttpEntity(entity);
         }
 
         bean.setResponseHandler(responseHandler);
+        return bean;
+    }
 
-        adapter = new HttpRequestAdapter(bean);
+    /**
+     * 判断是否重试
+     * 
+     * @param retryCount 本次是第几次重试，从1开始
+     * @return 重试前的等待时间，不重试时返回-1
+     */
+    private long getRetryDelay(HttpRequestBean bean, int error, HttpResponse response,
+            Exception exception, int retryCount, long startTime) {
+        // 不可重复发送的POST实体不重试
+        boolean repeatable = null == bean.getHttpEntity() || bean.getHttpEntity().isRepeatable();
+        RetryPolicy policy = retryPolicy;
+        if (aborted || !repeatable || retryCount > policy.getMaxRetries()
+                || !policy.isRetryable(bean.getMethod(), error, getStatusCode(response),
+                        exception)) {
+            return -1;
+        }
+        long delay = policy.getBackoffDelay(retryCount);
+        if (SystemClock.elapsedRealtime() - startTime + delay > policy.getDeadline()) {
+            DebugLog.log(TAG, "retry deadline exceeded: " + bean.getRequestUrl());
+            return -1;
+        }
+        return delay;
+    }
 
-        int error = adapter.request();
-        DebugLog.log(TAG,"errorCode:" + error);
+    /**
+     * 请求失败或服务器错误时返回缓存的响应
+     * 
+     * @param responseHandler bean中的ResponseHandler
+     * @return 错误码
+     */
+    private int onRequestComplete(int error, HttpResponseCache cache,
+            HttpResponseCache.Entry cached, String requestUrl,
+            AbstractResponseHandler responseHandler) {
+        if (null != cached && !aborted && cached.canServeOffline()
+                && (error != 0 || isServerError(httpResponse))) {
+            DebugLog.log(TAG, "request fail, use cached response: " + requestUrl);
+            cache.onOfflineHit();
+            error = handleCachedResponse(cached, ((CachingResponseHandler) responseHandler)
+                    .getDelegate());
+        }
+        return error;
+    }
 
-        local.set(new AtomicInteger(3));
-        while (error != 0 && local.get().decrementAndGet() >= 0) {
-            DebugLog.log(TAG, "retry to get net data-----> " + local.get().get());
-            error = adapter.request();
+    private static int getStatusCode(HttpResponse response) {
+        return null == response ? 0 : response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * 等待重试
+     * 
+     * @param delay
+     * @return false表示等待期间被中断
+     */
+    private boolean waitForRetry(long delay) {
+        long end = SystemClock.elapsedRealtime() + delay;
+        synchronized (retryLock) {
+            long remaining;
+            while (!aborted && (remaining = end - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    retryLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
+        return !aborted;
+    }
 
-        if (error == 0) {
-            httpResponse = adapter.getHttpResponse();
-            responseObject = adapter.getResponseData();
-            //
-            // //数据解压处理
-            // String encodeing = getHeader(httpResponse, "Content-Encoding");
-            // if(!StringUtils.isEmpty(encodeing) && encodeing.contains("gzip"))
-            // {
-            // responseObject = gunzip((byte [])responseObject);
-            // }
-        }
-        local.remove();
-        return error;
+    private static boolean isServerError(HttpResponse response) {
+        return null != response && response.getStatusLine().getStatusCode() >= 500;
+    }
+
+    /**
+     * 把缓存的响应交给调用方的ResponseHandler处理
+     * 
+     * @param cached
+     * @param responseHandler
+     * @return 错误码
+     */
+    private int handleCachedResponse(HttpResponseCache.Entry cached,
+            AbstractResponseHandler responseHandler) {
+        try {
+            HttpResponse response = cached.toResponse();
+            responseObject = responseHandler.handleResponse(response);
+            httpResponse = response;
+            return 0;
+        } catch (Exception e) {
+            DebugLog.log(TAG, "handleCachedResponse e:" + e);
+            return -5;
+        }
     }
 
     /**
@@ -218,7 +588,9 @@ public class HttpClientWrap {
      * @param bytes
      * @return
      * @throws IOException
+     * @deprecated 响应已由HttpRequestAdapter边读边解压，不需要再调用
      */
+    @Deprecated
     public byte[] gunzip(byte[] bytes) {
         // 数据输入流
         InputStream in = null;
@@ -274,6 +646,28 @@ public class HttpClientWrap {
         return StringUtils.toStr(header.getValue(), "");
     }
 
+    /**
+     * 中断请求，可在其他线程调用，不再重试
+     */
+    public void abort() {
+        aborted = true;
+        HttpRequestAdapter a = adapter;
+        if (null != a) {
+            a.abort();
+        }
+        NioHttpCall call = asyncCall;
+        if (null != call) {
+            call.abort();
+        }
+        synchronized (retryLock) {
+            retryLock.notifyAll();
+        }
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
     public void release() {
         if (null != adapter) {
             adapter.release();
@@ -0,0 +1,327 @@
+package com.android.kernellib.http;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.android.kernellib.utility.DebugLog;
+import com.android.kernellib.utility.NetworkHelper;
+
+/**
+ * 进程内共享的请求调度器，限制同时进行的HTTP请求数。
+ *
+ * 全局并发数按网络类型确定，下载速度（指数加权平均）过低时减半；同一host的并发数另有上限。
+ * 接口请求优先于图片下载：有接口请求在等待时图片下载不能取得名额，图片下载也不能占满全部名额。
+ *
+ * HttpRequestAdapter在发起请求前取得名额（{@link #acquire}），请求结束后归还（{@link #release}），
+ * 因此经过HttpClientWrap的接口请求和图片下载都受调度。异步请求由NioHttpEngine通过{@link #tryAcquire}取得名额。
+ */
+public class HttpDispatcher {
+
+    protected static final String TAG = HttpDispatcher.class.getSimpleName();
+
+    // 接口请求
+    public static final int TYPE_API = 0;
+
+    // 图片下载
+    public static final int TYPE_IMAGE = 1;
+
+    // 单个host最大并发数
+    private static final int MAX_REQUESTS_PER_HOST = 6;
+
+    // 各网络类型的全局并发数
+    private static final int MAX_REQUESTS_WIFI = 10;
+    private static final int MAX_REQUESTS_4G = 6;
+    private static final int MAX_REQUESTS_3G = 4;
+    private static final int MAX_REQUESTS_2G = 2;
+    private static final int MAX_REQUESTS_UNKNOW = 4;
+
+    // 速度过低时全局并发数的下限
+    private static final int MIN_REQUESTS = 2;
+
+    // 为接口请求预留的名额
+    private static final int API_RESERVED_REQUESTS = 1;
+
+    // 下载速度低于该值（字节/秒）时全局并发数减半
+    private static final long SLOW_THROUGHPUT = 30 * 1024;
+
+    // 参与速度统计的最小响应长度，过小的响应主要反映延迟
+    private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+    // 指数加权平均中新样本的权重
+    private static final float THROUGHPUT_WEIGHT = 0.3f;
+
+    private static final HttpDispatcher sInstance = new HttpDispatcher();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mAvailable = mLock.newCondition();
+
+    // host -> 正在进行的请求数
+    private final HashMap<String, Integer> mHostCounts = new HashMap<String, Integer>();
+
+    private int mRunningCount = 0;
+
+    private int mRunningImageCount = 0;
+
+    private int mWaitingCount = 0;
+
+    private int mWaitingApiCount = 0;
+
+    private volatile String mNetworkType = NetworkHelper.NET_UNKNOW;
+
+    // 下载速度（字节/秒），小于0表示还没有样本
+    private volatile long mThroughput = -1;
+
+    // 名额归还时的通知，NioHttpEngine用来调度等待名额的异步请求
+    private volatile Runnable mReleaseListener;
+
+    private HttpDispatcher() {
+    }
+
+    public static HttpDispatcher getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 更新网络类型，网络类型变化时重新统计下载速度
+     *
+     * @param type NetworkStateCache.getNetworkType()
+     */
+    public void updateNetworkType(String type) {
+        if (null == type || type.equals(mNetworkType)) {
+            return;
+        }
+        mLock.lock();
+        try {
+            if (!type.equals(mNetworkType)) {
+                DebugLog.log(TAG, "network type: " + mNetworkType + " -> " + type);
+                mNetworkType = type;
+                mThroughput = -1;
+                mAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 取得请求名额，名额不足时等待
+     *
+     * @param host 请求的host，可以为null
+     * @param type TYPE_API或TYPE_IMAGE
+     * @param adapter 等待期间被中断（abort）时放弃
+     * @return false表示被中断，没有取得名额
+     */
+    boolean acquire(String host, int type, HttpRequestAdapter adapter) {
+        if (null == host) {
+            host = "";
+        }
+        mLock.lock();
+        try {
+            if (!canRun(host, type)) {
+                mWaitingCount++;
+                if (type == TYPE_API) {
+                    mWaitingApiCount++;
+                }
+                try {
+                    while (!canRun(host, type)) {
+                        if (adapter.isAborted()) {
+                            return false;
+                        }
+                        mAvailable.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    mWaitingCount--;
+                    if (type == TYPE_API) {
+                        mWaitingApiCount--;
+                        // 图片下载可能在等待接口请求
+                        mAvailable.signalAll();
+                    }
+                }
+            }
+            onAcquired(host, type);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 取得请求名额，名额不足时不等待。用于异步请求。
+     *
+     * @param host 请求的host，可以为null
+     * @param type TYPE_API或TYPE_IMAGE
+     * @return 是否取得名额
+     */
+    boolean tryAcquire(String host, int type) {
+        if (null == host) {
+            host = "";
+        }
+        mLock.lock();
+        try {
+            if (!canRun(host, type)) {
+                return false;
+            }
+            onAcquired(host, type);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void onAcquired(String host, int type) {
+        mRunningCount++;
+        if (type == TYPE_IMAGE) {
+            mRunningImageCount++;
+        }
+        Integer count = mHostCounts.get(host);
+        mHostCounts.put(host, null == count ? 1 : count + 1);
+    }
+
+    /**
+     * 设置名额归还时的通知，在归还的线程中调用
+     *
+     * @param listener
+     */
+    void setReleaseListener(Runnable listener) {
+        mReleaseListener = listener;
+    }
+
+    /**
+     * 归还请求名额
+     *
+     * @param host 与acquire一致
+     * @param type 与acquire一致
+     * @param bytes 响应长度，未知时小于0
+     * @param elapsed 请求耗时（毫秒）
+     */
+    void release(String host, int type, long bytes, long elapsed) {
+        if (null == host) {
+            host = "";
+        }
+        mLock.lock();
+        try {
+            mRunningCount--;
+            if (type == TYPE_IMAGE) {
+                mRunningImageCount--;
+            }
+            Integer count = mHostCounts.get(host);
+            if (null == count || count <= 1) {
+                mHostCounts.remove(host);
+            } else {
+                mHostCounts.put(host, count - 1);
+            }
+            if (bytes >= MIN_SAMPLE_BYTES && elapsed > 0) {
+                long sample = bytes * 1000 / elapsed;
+                long throughput = mThroughput;
+                mThroughput = throughput < 0 ? sample
+                        : (long) (throughput + THROUGHPUT_WEIGHT * (sample - throughput));
+            }
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        Runnable listener = mReleaseListener;
+        if (null != listener) {
+            listener.run();
+        }
+    }
+
+    /**
+     * 唤醒等待名额的请求，使被中断的请求退出等待
+     */
+    void wakeUp() {
+        mLock.lock();
+        try {
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean canRun(String host, int type) {
+        int max = getMaxRequests();
+        if (mRunningCount >= max) {
+            return false;
+        }
+        Integer count = mHostCounts.get(host);
+        if (null != count && count >= Math.min(MAX_REQUESTS_PER_HOST, max)) {
+            return false;
+        }
+        if (type == TYPE_IMAGE) {
+            if (mWaitingApiCount > 0) {
+                return false;
+            }
+            if (mRunningImageCount >= Math.max(1, max - API_RESERVED_REQUESTS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 当前的全局并发数
+     */
+    public int getMaxRequests() {
+        int max;
+        String type = mNetworkType;
+        if (NetworkHelper.NET_WIFI.equals(type)) {
+            max = MAX_REQUESTS_WIFI;
+        } else if (NetworkHelper.NET_FG.equals(type)) {
+            max = MAX_REQUESTS_4G;
+        } else if (NetworkHelper.NET_TG.equals(type)) {
+            max = MAX_REQUESTS_3G;
+        } else if (NetworkHelper.NET_SG.equals(type)) {
+            max = MAX_REQUESTS_2G;
+        } else {
+            max = MAX_REQUESTS_UNKNOW;
+        }
+        long throughput = mThroughput;
+        if (throughput >= 0 && throughput < SLOW_THROUGHPUT) {
+            max = Math.max(MIN_REQUESTS, max / 2);
+        }
+        return max;
+    }
+
+    /**
+     * @return 正在进行的请求数
+     */
+    public int getRunningCount() {
+        mLock.lock();
+        try {
+            return mRunningCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 等待名额的请求数
+     */
+    public int getWaitingCount() {
+        mLock.lock();
+        try {
+            return mWaitingCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 下载速度（字节/秒），还没有样本时返回-1
+     */
+    public long getThroughput() {
+        return mThroughput;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpDispatcher[network=" + mNetworkType + ",max=" + getMaxRequests()
+                + ",running=" + getRunningCount() + ",waiting=" + getWaitingCount()
+                + ",throughput=" + mThroughput + "]";
+    }
+}
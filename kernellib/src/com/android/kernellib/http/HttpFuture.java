@@ -0,0 +1,146 @@
+package com.android.kernellib.http;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * HttpClientWrap异步请求的结果。get()返回ResponseHandler的处理结果，失败时返回null，
+ * 错误码见{@link #getErrorCode()}。cancel()中断请求。
+ */
+public class HttpFuture implements Future<Object> {
+
+    private final HttpClientWrap wrap;
+
+    private final HttpCallback callback;
+
+    private boolean done = false;
+
+    private boolean cancelled = false;
+
+    private int errorCode;
+
+    private Object responseData;
+
+    private HttpResponse response;
+
+    HttpFuture(HttpClientWrap wrap, HttpCallback callback) {
+        this.wrap = wrap;
+        this.callback = callback;
+    }
+
+    /**
+     * 设置结果并调用回调
+     */
+    void complete(int errorCode, Object responseData, HttpResponse response) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.errorCode = errorCode;
+            this.responseData = responseData;
+            this.response = response;
+            done = true;
+            notifyAll();
+        }
+        if (null != callback) {
+            callback.onComplete(errorCode, responseData, response);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            notifyAll();
+        }
+        wrap.abort();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done || cancelled;
+    }
+
+    @Override
+    public synchronized Object get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized Object get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!done) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            wait(remaining);
+        }
+        return getResult();
+    }
+
+    private Object getResult() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return errorCode == 0 ? responseData : null;
+    }
+
+    /**
+     * 等待请求结束，cancel()后也等到请求真正结束
+     *
+     * @return 错误码
+     * @throws InterruptedException
+     */
+    synchronized int await() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+        return errorCode;
+    }
+
+    /**
+     * @return 错误码，请求未结束时为0
+     */
+    public synchronized int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return ResponseHandler的处理结果，请求未结束时为null
+     */
+    synchronized Object getResponseData() {
+        return responseData;
+    }
+
+    /**
+     * @return 响应，请求未结束或失败时可能为null
+     */
+    public synchronized HttpResponse getHttpResponse() {
+        return response;
+    }
+}
@@ -1,5 +1,7 @@
 package com.android.kernellib.http;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -8,22 +10,19 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.android.kernellib.utility.DebugLog;
@@ -45,6 +44,10 @@ public class HttpRequestAdapter {
 
     public static final int DEFAULT_PROXY_PORT = 80;
 
+    protected static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    protected static final String DEFAULT_ACCEPT_ENCODING = "gzip, deflate";
+
     protected HttpRequestBean bean;
 
     protected Object responseObject;
@@ -53,6 +56,21 @@ public class HttpRequestAdapter {
 
     protected HttpClient httpClient;
 
+    protected volatile HttpRequestBase httpBase;
+
+    // 已中断，不再发起请求
+    protected volatile boolean aborted = false;
+
+    // 最近一次请求抛出的异常，用于判断是否重试
+    protected Exception lastException;
+
+    // 直接返回InputStream时占用的调度器名额，流关闭或release()时归还
+    private String slotHost;
+
+    private int slotType;
+
+    private long slotStartTime;
+
     public HttpRequestAdapter(HttpRequestBean bean) {
         this.bean = bean;
     }
@@ -83,52 +101,39 @@ public class HttpRequestAdapter {
         return responseObject;
     }
 
+    /**
+     * 返回进程内共享的HttpClient，代理设置在本次请求的httpParams上
+     * 
+     * @param httpParams 请求参数
+     * @return
+     */
     protected HttpClient getHttpClient(HttpParams httpParams) {
-        HttpHost proxy = null;
-        ApnCheckor.ApnTag apnTag = bean.getApnTag();
-        if (ApnCheckor.ApnTag.CTWAP.equals(apnTag)) {
-            proxy = new HttpHost(CT_PROXY, DEFAULT_PROXY_PORT);
-        } else if (ApnCheckor.ApnTag.CMWAP.equals(apnTag)
-                || ApnCheckor.ApnTag.UNIWAP.equals(apnTag)
-                || ApnCheckor.ApnTag._3GWAP.equals(apnTag)) {
-            proxy = new HttpHost(DEFAULT_PROXY, DEFAULT_PROXY_PORT);
-        }
+        HttpHost proxy = NetworkStateCache.getProxy(bean.getApnTag());
 
         if (null != proxy) {
             httpParams.setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
         }
         if (bean.isCustomSSLSocketFlag()) {
             DebugLog.log(TAG,"custom ssl socket custom ssl socket custom ssl socket custom ssl socket custom ssl socket");
-
-            ThreadSafeClientConnManager cm =
-                    new ThreadSafeClientConnManager(httpParams, getDefaultSchemeRegistry());
-
-            return new DefaultHttpClient(cm, httpParams);
-        } else {
-            return new DefaultHttpClient(httpParams);
         }
-    }
-
-    private static SchemeRegistry getDefaultSchemeRegistry() {
-        // Fix to SSL flaw in API < ICS 4.0
-        // See https://code.google.com/p/android/issues/detail?id=13117
-
-        SSLSocketFactory sslSocketFactory = MySSLSocketFactory.getFixedSocketFactory();
-
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(new Scheme("https", sslSocketFactory, 443));
-
-        return schemeRegistry;
+        return SharedHttpClient.getHttpClient(bean.isCustomSSLSocketFlag());
     }
 
     /**
      * Error Code: 0, Success. -1, RequestUrl param error. -2, Request method param error. -3,
-     * HttpEntity is null for post request. -4, Exception error.
+     * HttpEntity is null for post request. -4, Exception error. -6, Request aborted.
      * 
      * @return
      */
     public int request() {
+        // 重试时清除上一次的结果
+        releaseSlot(-1);
+        httpResponse = null;
+        responseObject = null;
+        lastException = null;
+        if (aborted) {
+            return -6;
+        }
         String url = bean.getRequestUrl();
         if (TextUtils.isEmpty(url)) {
             return -1;
@@ -167,7 +172,13 @@ public class HttpRequestAdapter {
             return -2;
         }
 
+        // 请求级参数，未设置的参数沿用共享client的默认值
+        httpBase.setParams(httpParams);
         setRequestHeaders(httpBase);
+        // 响应在交给ResponseHandler之前解压，调用方已指定时不覆盖
+        if (!httpBase.containsHeader(ACCEPT_ENCODING)) {
+            httpBase.setHeader(ACCEPT_ENCODING, DEFAULT_ACCEPT_ENCODING);
+        }
         if ("POST".equals(httpMethod)) {
             HttpEntity httpEntity = bean.getHttpEntity();
             if (null == httpEntity) {
@@ -181,18 +192,50 @@ public class HttpRequestAdapter {
 
         AbstractResponseHandler responseHandler = null;
         httpClient = getHttpClient(httpParams);
+        this.httpBase = httpBase;
+        // abort()可能在设置httpBase之前调用
+        if (aborted) {
+            httpBase.abort();
+            return -6;
+        }
+
+        // 等待调度器的名额
+        HttpDispatcher dispatcher = HttpDispatcher.getInstance();
+        String host = httpBase.getURI().getHost();
+        int requestType = bean.getRequestType();
+        if (!dispatcher.acquire(host, requestType, this)) {
+            httpBase.abort();
+            return aborted ? -6 : -5;
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        long contentLength = -1;
+        // 返回InputStream时名额保留到流读完或关闭
+        boolean keepSlot = false;
         try {
             responseHandler = (AbstractResponseHandler) bean.getResponseHandler();
             if (null == responseHandler) {
                 httpResponse = httpClient.execute(httpBase);
+                DecompressingEntity.decompress(httpResponse);
                 HttpEntity httpEntity = httpResponse.getEntity();
                 if (null == httpEntity) {
                     return -4;
                 }
-                responseObject = (InputStream) httpEntity.getContent();
+                synchronized (this) {
+                    slotHost = host;
+                    slotType = requestType;
+                    slotStartTime = startTime;
+                }
+                keepSlot = true;
+                responseObject = new SlotInputStream(httpEntity.getContent());
             } else {
-                responseObject = httpClient.execute(httpBase, responseHandler);
+                responseObject =
+                        httpClient.execute(httpBase, new DecompressingResponseHandler(
+                                responseHandler));
                 httpResponse = responseHandler.getHttpResponse();
+                // 数据已在execute中读完，可用于统计下载速度
+                if (null != httpResponse) {
+                    contentLength = DecompressingEntity.getTransferLength(httpResponse.getEntity());
+                }
             }
 
             int code = httpResponse.getStatusLine().getStatusCode();
@@ -200,19 +243,145 @@ public class HttpRequestAdapter {
             if (null != httpResponse && code != HttpStatus.SC_OK
                     && code != HttpStatus.SC_PARTIAL_CONTENT) {
                 httpBase.abort();
+                keepSlot = false;
             }
             return 0;
         } catch (Exception e) {
+            keepSlot = false;
+            if (aborted) {
+                DebugLog.log(TAG, "request aborted: " + url);
+                return -6;
+            }
             e.printStackTrace();
+            lastException = e;
             return -5;
+        } finally {
+            if (!keepSlot) {
+                if (!releaseSlot(-1)) {
+                    dispatcher.release(host, requestType, contentLength,
+                            SystemClock.elapsedRealtime() - startTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * 归还直接返回InputStream时保留的调度器名额，只归还一次
+     * 
+     * @param bytes 已读取的长度，未读完时小于0
+     * @return 是否持有名额
+     */
+    private boolean releaseSlot(long bytes) {
+        String host;
+        int type;
+        long startTime;
+        synchronized (this) {
+            if (null == slotHost) {
+                return false;
+            }
+            host = slotHost;
+            type = slotType;
+            startTime = slotStartTime;
+            slotHost = null;
         }
+        HttpDispatcher.getInstance().release(host, type, bytes,
+                SystemClock.elapsedRealtime() - startTime);
+        return true;
     }
 
+    /**
+     * 中断请求，可在其他线程调用。正在进行的连接被关闭，读取响应数据的一方会收到IOException。
+     */
+    public void abort() {
+        aborted = true;
+        HttpRequestBase base = httpBase;
+        if (null != base) {
+            base.abort();
+        }
+        // 可能在等待调度器的名额
+        HttpDispatcher.getInstance().wakeUp();
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return 最近一次request()返回-5时的异常，否则为null
+     */
+    public Exception getLastException() {
+        return lastException;
+    }
+
+    /**
+     * 释放本次请求占用的连接。client为共享连接池，不能shutdown。
+     * 使用ResponseHandler时连接已在execute中归还；直接返回InputStream时，若调用方未读完数据则中断连接，
+     * 并归还调度器名额。
+     */
     public void release() {
-        if (null != httpClient) {
-            httpClient.getConnectionManager().shutdown();
+        if (null != httpBase && null == bean.getResponseHandler()) {
+            httpBase.abort();
         }
+        releaseSlot(-1);
 
+        httpBase = null;
         httpClient = null;
     }
+
+    /**
+     * 直接返回给调用方的响应流，读完时按读取的长度归还调度器名额，提前关闭时只归还名额
+     */
+    private class SlotInputStream extends FilterInputStream {
+        private long bytesRead = 0;
+
+        SlotInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                releaseSlot(bytesRead);
+            } else {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n < 0) {
+                releaseSlot(bytesRead);
+            } else {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseSlot(-1);
+            super.close();
+        }
+    }
+
+    /**
+     * 解压响应后再交给调用方的ResponseHandler
+     */
+    private static class DecompressingResponseHandler implements ResponseHandler<Object> {
+        private final AbstractResponseHandler delegate;
+
+        DecompressingResponseHandler(AbstractResponseHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object handleResponse(HttpResponse response) throws ClientProtocolException,
+                IOException {
+            DecompressingEntity.decompress(response);
+            return delegate.handleResponse(response);
+        }
+    }
 }
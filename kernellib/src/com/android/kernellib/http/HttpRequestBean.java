@@ -28,6 +28,17 @@ public class HttpRequestBean {
 	
     private boolean isCustomSSLSocket = false;
 	
+	// HttpDispatcher.TYPE_API或TYPE_IMAGE
+	private int requestType = HttpDispatcher.TYPE_API;
+	
+	public void setRequestType(int type) {
+		this.requestType = type;
+	}
+	
+	public int getRequestType() {
+		return requestType;
+	}
+	
 	public void setCustomSSLSocketFlag(boolean flag)
 	{
 		isCustomSSLSocket = flag;
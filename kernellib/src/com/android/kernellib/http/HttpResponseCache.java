@@ -0,0 +1,939 @@
+package com.android.kernellib.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * HttpClientWrap的GET响应缓存，需要调用{@link #install}开启。
+ *
+ * 缓存位于HttpClientWrap和HttpRequestAdapter之间，响应体和响应头保存在磁盘上，
+ * 最近使用的响应同时保存在内存中（按字节数限制）。读取缓存时把保存的响应交给调用方的
+ * ResponseHandler处理，调用方得到的结果与网络请求相同。
+ *
+ * <ul>
+ * <li>未过期（Cache-Control max-age或Expires）的响应直接返回，不发起请求</li>
+ * <li>过期但在stale-while-revalidate时间内的响应直接返回，同时在后台重新验证</li>
+ * <li>过期的响应带上If-None-Match/If-Modified-Since重新验证，服务器返回304时使用缓存的响应体</li>
+ * <li>没有网络或请求失败时返回缓存的响应（must-revalidate的除外）</li>
+ * </ul>
+ * no-store的响应不保存；no-cache的响应保存但每次都重新验证。
+ * 带Authorization的请求不经过缓存；响应带Vary时只有Vary的请求头相同的请求才能使用缓存。
+ *
+ * 索引和内存缓存由对象锁保护，读写缓存文件在锁外进行。
+ */
+public class HttpResponseCache {
+
+    protected static final String TAG = HttpResponseCache.class.getSimpleName();
+
+    // 缓存文件格式版本，2增加了Vary的请求头
+    private static final int VERSION = 2;
+
+    private static final String CACHE_DIR = "http";
+
+    private static final String ENTRY_FILE_EXTNAME = ".c";
+
+    private static final String TMP_FILE_EXTNAME = ".tmp";
+
+    // 单个响应体上限，超过不缓存
+    static final int MAX_ENTRY_SIZE = 512 * 1024;
+
+    // 超出上限后淘汰到上限的比例
+    private static final float LOW_WATER_RATIO = 0.8f;
+
+    private static HttpResponseCache sInstalled = null;
+
+    private final File mDirectory;
+
+    private final long mMaxDiskSize;
+
+    private final long mMaxMemorySize;
+
+    // 服务器未指定stale-while-revalidate时使用的时间（毫秒）
+    private volatile long mDefaultStaleWhileRevalidate = 0;
+
+    // 内存中的响应，key为url，按访问顺序排列
+    private final LinkedHashMap<String, Entry> mMemoryEntries = new LinkedHashMap<String, Entry>(
+            0, 0.75f, true);
+
+    private long mMemorySize = 0;
+
+    // 磁盘索引，key为文件hash，value为文件大小，按访问顺序排列
+    private final LinkedHashMap<String, Long> mDiskEntries = new LinkedHashMap<String, Long>(0,
+            0.75f, true);
+
+    private long mDiskSize = 0;
+
+    private boolean mDiskIndexLoaded = false;
+
+    // 临时文件序号，同一响应可能同时由多个线程写入
+    private final AtomicInteger mTmpFileCount = new AtomicInteger();
+
+    // 正在后台重新验证的url
+    private final HashSet<String> mRevalidatingUrls = new HashSet<String>();
+
+    private final ThreadPoolExecutor mRevalidateExecutor = new ThreadPoolExecutor(1, 1, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG + ":revalidate:" + mCount.getAndIncrement());
+                }
+            });
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mStaleHitCount = new AtomicInteger();
+    private final AtomicInteger mConditionalHitCount = new AtomicInteger();
+    private final AtomicInteger mOfflineHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private HttpResponseCache(File directory, long maxDiskSize, long maxMemorySize) {
+        mDirectory = directory;
+        mMaxDiskSize = maxDiskSize;
+        mMaxMemorySize = maxMemorySize;
+        mRevalidateExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 开启响应缓存，之后所有HttpClientWrap的GET请求都经过缓存（可用
+     * {@link HttpClientWrap#setUseResponseCache}关闭单个请求的缓存）。重复调用返回已开启的缓存。
+     *
+     * @param context
+     * @param maxDiskSize 磁盘缓存上限（字节）
+     * @param maxMemorySize 内存缓存上限（字节）
+     * @return
+     */
+    public static synchronized HttpResponseCache install(Context context, long maxDiskSize,
+            long maxMemorySize) {
+        if (sInstalled == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            sInstalled = new HttpResponseCache(dir, maxDiskSize, maxMemorySize);
+        }
+        return sInstalled;
+    }
+
+    /**
+     * @return 已开启的缓存，未开启时返回null
+     */
+    public static synchronized HttpResponseCache getInstalled() {
+        return sInstalled;
+    }
+
+    /**
+     * 关闭响应缓存，已保存的文件保留
+     */
+    public static synchronized void uninstall() {
+        sInstalled = null;
+    }
+
+    /**
+     * 服务器未指定stale-while-revalidate时，过期后仍可直接返回并在后台重新验证的时间
+     *
+     * @param seconds
+     */
+    public void setDefaultStaleWhileRevalidate(int seconds) {
+        mDefaultStaleWhileRevalidate = seconds * 1000L;
+    }
+
+    /**
+     * 删除url的缓存
+     *
+     * @param url
+     */
+    public void remove(String url) {
+        String hash = hashKeyForDisk(url);
+        synchronized (this) {
+            Entry entry = mMemoryEntries.remove(url);
+            if (entry != null) {
+                mMemorySize -= entry.getSize();
+            }
+            ensureDiskIndex();
+            removeDiskEntry(hash);
+        }
+        getEntryFile(hash).delete();
+    }
+
+    /**
+     * 删除全部缓存
+     */
+    public void clear() {
+        ArrayList<String> hashes;
+        synchronized (this) {
+            mMemoryEntries.clear();
+            mMemorySize = 0;
+            ensureDiskIndex();
+            hashes = new ArrayList<String>(mDiskEntries.keySet());
+            mDiskEntries.clear();
+            mDiskSize = 0;
+        }
+        deleteEntryFiles(hashes);
+    }
+
+    /**
+     * @return 经过缓存的请求数
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return 未过期直接返回的次数
+     */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return 过期但在stale-while-revalidate时间内直接返回的次数
+     */
+    public int getStaleHitCount() {
+        return mStaleHitCount.get();
+    }
+
+    /**
+     * @return 重新验证返回304的次数
+     */
+    public int getConditionalHitCount() {
+        return mConditionalHitCount.get();
+    }
+
+    /**
+     * @return 没有网络或请求失败时返回缓存的次数
+     */
+    public int getOfflineHitCount() {
+        return mOfflineHitCount.get();
+    }
+
+    /**
+     * @return 从网络取得完整响应的次数
+     */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return 缓存响应总大小（字节）
+     */
+    public synchronized long getDiskSize() {
+        ensureDiskIndex();
+        return mDiskSize;
+    }
+
+    /**
+     * @return 内存中的响应总大小（字节）
+     */
+    public synchronized long getMemorySize() {
+        return mMemorySize;
+    }
+
+    void onRequest() {
+        mRequestCount.incrementAndGet();
+    }
+
+    void onHit() {
+        mHitCount.incrementAndGet();
+    }
+
+    void onStaleHit() {
+        mStaleHitCount.incrementAndGet();
+    }
+
+    void onConditionalHit() {
+        mConditionalHitCount.incrementAndGet();
+    }
+
+    void onOfflineHit() {
+        mOfflineHitCount.incrementAndGet();
+    }
+
+    void onMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    /**
+     * 带Authorization的请求不经过缓存，避免不同用户共用响应
+     *
+     * @param requestHeaders 可以为null
+     * @return
+     */
+    static boolean isCacheableRequest(Hashtable<String, String> requestHeaders) {
+        return TextUtils.isEmpty(getRequestHeader(requestHeaders, "Authorization"));
+    }
+
+    /**
+     * 读取缓存，先查内存再查磁盘
+     *
+     * @param url
+     * @param requestHeaders 用于匹配响应的Vary，可以为null
+     * @return 没有缓存或Vary的请求头不同时返回null
+     */
+    Entry get(String url, Hashtable<String, String> requestHeaders) {
+        String hash = hashKeyForDisk(url);
+        synchronized (this) {
+            Entry entry = mMemoryEntries.get(url);
+            if (entry != null) {
+                return entry.varyMatches(requestHeaders) ? entry : null;
+            }
+            ensureDiskIndex();
+            if (mDiskEntries.get(hash) == null) {
+                return null;
+            }
+        }
+        File file = getEntryFile(hash);
+        Entry entry = readEntry(file);
+        if (entry == null) {
+            // 文件损坏
+            synchronized (this) {
+                removeDiskEntry(hash);
+            }
+            file.delete();
+            return null;
+        }
+        if (!url.equals(entry.url)) {
+            // hash冲突，由之后的put覆盖
+            return null;
+        }
+        // 文件修改时间作为重建索引时的LRU顺序
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            // 读文件期间可能已有更新的响应
+            if (!mMemoryEntries.containsKey(url)) {
+                putToMemory(entry);
+            }
+        }
+        return entry.varyMatches(requestHeaders) ? entry : null;
+    }
+
+    /**
+     * 保存200响应
+     *
+     * @param url
+     * @param requestHeaders 请求头，保存其中Vary的部分，可以为null
+     * @param response
+     * @param body 完整的响应体
+     * @return 不可缓存时返回null
+     */
+    Entry put(String url, Hashtable<String, String> requestHeaders, HttpResponse response,
+            byte[] body) {
+        Entry entry = Entry.fromResponse(url, requestHeaders, response, body,
+                System.currentTimeMillis(), mDefaultStaleWhileRevalidate);
+        if (entry == null) {
+            remove(url);
+            return null;
+        }
+        store(entry);
+        return entry;
+    }
+
+    /**
+     * 304响应后用新的响应头更新缓存
+     *
+     * @param cached
+     * @param requestHeaders 请求头，可以为null
+     * @param notModified 304响应
+     * @return 更新后的缓存
+     */
+    Entry update(Entry cached, Hashtable<String, String> requestHeaders,
+            HttpResponse notModified) {
+        Entry entry = cached.refresh(requestHeaders, notModified, System.currentTimeMillis(),
+                mDefaultStaleWhileRevalidate);
+        store(entry);
+        return entry;
+    }
+
+    /**
+     * 后台重新验证，同一url同时只有一个
+     *
+     * @param context
+     * @param url
+     * @param headers 原请求的请求头，可以为null
+     * @param isCustomSSLSocket
+     */
+    void revalidateAsync(Context context, final String url, Hashtable<String, String> headers,
+            final boolean isCustomSSLSocket) {
+        synchronized (mRevalidatingUrls) {
+            if (!mRevalidatingUrls.add(url)) {
+                return;
+            }
+        }
+        final Context appContext = context.getApplicationContext();
+        final Hashtable<String, String> requestHeaders =
+                headers == null ? null : new Hashtable<String, String>(headers);
+        mRevalidateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HttpClientWrap wrap = null;
+                try {
+                    wrap = new HttpClientWrap(appContext);
+                    wrap.setCustomSSLSocketFlag(isCustomSSLSocket);
+                    wrap.setForceNetwork(true);
+                    int error = wrap.wrapHttpGet(url, new ByteArrayResponseHandler(),
+                            requestHeaders);
+                    DebugLog.log(TAG, "revalidate " + url + " errorCode:" + error);
+                } finally {
+                    if (null != wrap) {
+                        wrap.release();
+                    }
+                    synchronized (mRevalidatingUrls) {
+                        mRevalidatingUrls.remove(url);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 在锁外写临时文件，在锁内重命名并更新索引，淘汰的文件在锁外删除
+     */
+    private void store(Entry entry) {
+        String hash = hashKeyForDisk(entry.url);
+        synchronized (this) {
+            putToMemory(entry);
+            // 建立索引时会删除临时文件，需在写临时文件之前完成
+            ensureDiskIndex();
+        }
+        File file = getEntryFile(hash);
+        File tmp = new File(mDirectory, hash + "." + mTmpFileCount.incrementAndGet()
+                + TMP_FILE_EXTNAME);
+        boolean written = writeEntry(tmp, entry);
+        ArrayList<String> evicted;
+        synchronized (this) {
+            if (!written || !renameTo(tmp, file)) {
+                tmp.delete();
+                removeDiskEntry(hash);
+                return;
+            }
+            long length = file.length();
+            Long previous = mDiskEntries.put(hash, length);
+            if (previous != null) {
+                mDiskSize -= previous;
+            }
+            mDiskSize += length;
+            evicted = trimDisk();
+        }
+        deleteEntryFiles(evicted);
+    }
+
+    private void removeDiskEntry(String hash) {
+        Long size = mDiskEntries.remove(hash);
+        if (size != null) {
+            mDiskSize -= size;
+        }
+    }
+
+    private void deleteEntryFiles(ArrayList<String> hashes) {
+        if (hashes == null) {
+            return;
+        }
+        for (String hash : hashes) {
+            getEntryFile(hash).delete();
+        }
+    }
+
+    private void putToMemory(Entry entry) {
+        long size = entry.getSize();
+        Entry previous = mMemoryEntries.remove(entry.url);
+        if (previous != null) {
+            mMemorySize -= previous.getSize();
+        }
+        // 过大的响应只保存在磁盘
+        if (size > mMaxMemorySize / 4) {
+            return;
+        }
+        mMemoryEntries.put(entry.url, entry);
+        mMemorySize += size;
+        Iterator<Map.Entry<String, Entry>> it = mMemoryEntries.entrySet().iterator();
+        while (mMemorySize > mMaxMemorySize && it.hasNext()) {
+            mMemorySize -= it.next().getValue().getSize();
+            it.remove();
+        }
+    }
+
+    /**
+     * 超出上限时从索引中淘汰最久未用的响应
+     *
+     * @return 需要删除的文件hash，没有时返回null
+     */
+    private ArrayList<String> trimDisk() {
+        if (mDiskSize <= mMaxDiskSize) {
+            return null;
+        }
+        ArrayList<String> evicted = new ArrayList<String>();
+        long lowWater = (long) (mMaxDiskSize * LOW_WATER_RATIO);
+        Iterator<Map.Entry<String, Long>> it = mDiskEntries.entrySet().iterator();
+        while (mDiskSize > lowWater && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            evicted.add(eldest.getKey());
+            mDiskSize -= eldest.getValue();
+            it.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * 第一次访问磁盘时扫描缓存目录建立索引，按修改时间排列
+     */
+    private void ensureDiskIndex() {
+        if (mDiskIndexLoaded) {
+            return;
+        }
+        mDiskIndexLoaded = true;
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        ArrayList<File> list = new ArrayList<File>(Arrays.asList(files));
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : list) {
+            String name = file.getName();
+            if (!file.isFile() || !name.endsWith(ENTRY_FILE_EXTNAME)) {
+                // 未写完的临时文件
+                file.delete();
+                continue;
+            }
+            long size = file.length();
+            mDiskEntries.put(name.substring(0, name.length() - ENTRY_FILE_EXTNAME.length()),
+                    size);
+            mDiskSize += size;
+        }
+        DebugLog.log(TAG, "open " + mDirectory + " entries:" + mDiskEntries.size() + " size:"
+                + mDiskSize);
+    }
+
+    private File getEntryFile(String hash) {
+        return new File(mDirectory, hash + ENTRY_FILE_EXTNAME);
+    }
+
+    private static Entry readEntry(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String url = in.readUTF();
+            int statusCode = in.readInt();
+            String reason = in.readUTF();
+            int headerCount = in.readInt();
+            Header[] headers = new Header[headerCount];
+            for (int i = 0; i < headerCount; i++) {
+                headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+            }
+            int varyCount = in.readInt();
+            Header[] varyHeaders = new Header[varyCount];
+            for (int i = 0; i < varyCount; i++) {
+                varyHeaders[i] = new BasicHeader(in.readUTF(), in.readUTF());
+            }
+            long responseTime = in.readLong();
+            long expires = in.readLong();
+            long staleWhileRevalidate = in.readLong();
+            boolean mustRevalidate = in.readBoolean();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(url, statusCode, reason, headers, varyHeaders, body, responseTime,
+                    expires, staleWhileRevalidate, mustRevalidate);
+        } catch (IOException e) {
+            DebugLog.log(TAG, "readEntry " + file + " e:" + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "readEntry e:" + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入临时文件，由调用方重命名
+     */
+    private boolean writeEntry(File tmp, Entry entry) {
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeUTF(entry.url);
+            out.writeInt(entry.statusCode);
+            out.writeUTF(entry.reason);
+            out.writeInt(entry.headers.length);
+            for (Header header : entry.headers) {
+                out.writeUTF(header.getName());
+                out.writeUTF(header.getValue());
+            }
+            out.writeInt(entry.varyHeaders.length);
+            for (Header header : entry.varyHeaders) {
+                out.writeUTF(header.getName());
+                out.writeUTF(header.getValue());
+            }
+            out.writeLong(entry.responseTime);
+            out.writeLong(entry.expires);
+            out.writeLong(entry.staleWhileRevalidate);
+            out.writeBoolean(entry.mustRevalidate);
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            DebugLog.log(TAG, "writeEntry " + tmp + " e:" + e);
+            tmp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "writeEntry e:" + e);
+                }
+            }
+        }
+    }
+
+    private static boolean renameTo(File from, File to) {
+        if (!from.renameTo(to)) {
+            to.delete();
+            return from.renameTo(to);
+        }
+        return true;
+    }
+
+    /**
+     * @return 请求头的值，不区分大小写，没有时返回null
+     */
+    private static String getRequestHeader(Hashtable<String, String> requestHeaders,
+            String name) {
+        if (requestHeaders == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String hashKeyForDisk(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(key.getBytes());
+            byte[] bytes = digest.digest();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < bytes.length; i++) {
+                String hex = Integer.toHexString(0xFF & bytes[i]);
+                if (hex.length() == 1) {
+                    sb.append('0');
+                }
+                sb.append(hex);
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpResponseCache[requests=" + getRequestCount() + ",hits=" + getHitCount()
+                + ",staleHits=" + getStaleHitCount() + ",conditionalHits="
+                + getConditionalHitCount() + ",offlineHits=" + getOfflineHitCount()
+                + ",misses=" + getMissCount() + "]";
+    }
+
+    /**
+     * 缓存的响应，创建后不再修改
+     */
+    static class Entry {
+        final String url;
+        final int statusCode;
+        final String reason;
+        final Header[] headers;
+        // 响应Vary的请求头及保存时请求中的值，没有时值为空字符串
+        final Header[] varyHeaders;
+        final byte[] body;
+        // 收到响应的时间
+        final long responseTime;
+        // 过期时间
+        final long expires;
+        // 过期后仍可直接返回的时间（毫秒）
+        final long staleWhileRevalidate;
+        // 过期后不能直接返回，包括没有网络时
+        final boolean mustRevalidate;
+
+        Entry(String url, int statusCode, String reason, Header[] headers, Header[] varyHeaders,
+                byte[] body, long responseTime, long expires, long staleWhileRevalidate,
+                boolean mustRevalidate) {
+            this.url = url;
+            this.statusCode = statusCode;
+            this.reason = reason;
+            this.headers = headers;
+            this.varyHeaders = varyHeaders;
+            this.body = body;
+            this.responseTime = responseTime;
+            this.expires = expires;
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            this.mustRevalidate = mustRevalidate;
+        }
+
+        /**
+         * @param url
+         * @param requestHeaders 请求头，可以为null
+         * @param response 200响应
+         * @param body
+         * @param now
+         * @param defaultStaleWhileRevalidate
+         * @return 不可缓存（no-store、Vary: *）时返回null
+         */
+        static Entry fromResponse(String url, Hashtable<String, String> requestHeaders,
+                HttpResponse response, byte[] body, long now, long defaultStaleWhileRevalidate) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                return null;
+            }
+            ArrayList<Header> varyHeaders = new ArrayList<Header>();
+            for (Header vary : response.getHeaders("Vary")) {
+                for (HeaderElement element : vary.getElements()) {
+                    String name = element.getName();
+                    if ("*".equals(name)) {
+                        return null;
+                    }
+                    String value = getRequestHeader(requestHeaders, name);
+                    varyHeaders.add(new BasicHeader(name, value == null ? "" : value));
+                }
+            }
+
+            boolean noCache = false;
+            boolean mustRevalidate = false;
+            long maxAge = -1;
+            long staleWhileRevalidate = defaultStaleWhileRevalidate;
+            for (Header header : response.getHeaders("Cache-Control")) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if ("no-store".equalsIgnoreCase(name)) {
+                        return null;
+                    } else if ("no-cache".equalsIgnoreCase(name)) {
+                        noCache = true;
+                    } else if ("must-revalidate".equalsIgnoreCase(name)) {
+                        mustRevalidate = true;
+                    } else if ("max-age".equalsIgnoreCase(name)) {
+                        maxAge = parseSeconds(element.getValue(), maxAge);
+                    } else if ("stale-while-revalidate".equalsIgnoreCase(name)) {
+                        staleWhileRevalidate =
+                                parseSeconds(element.getValue(), -1) * 1000;
+                    }
+                }
+            }
+
+            long expires;
+            if (noCache) {
+                expires = now;
+            } else if (maxAge >= 0) {
+                expires = now + maxAge * 1000;
+            } else if (response.containsHeader("Expires")) {
+                // 以服务器时间计算相对有效期，避免客户端时钟误差
+                long serverDate = parseDate(response.getFirstHeader("Date"), now);
+                long expiresDate = parseDate(response.getFirstHeader("Expires"), 0);
+                expires = now + Math.max(0, expiresDate - serverDate);
+            } else {
+                // 没有有效期，只用于重新验证和没有网络时返回
+                expires = now;
+            }
+            // 保留全部响应头，交给调用方的ResponseHandler
+            return new Entry(url, HttpStatus.SC_OK, reasonOf(response),
+                    response.getAllHeaders(),
+                    varyHeaders.toArray(new Header[varyHeaders.size()]), body, now, expires,
+                    Math.max(0, staleWhileRevalidate), mustRevalidate || noCache);
+        }
+
+        /**
+         * 304响应后更新响应头和有效期，响应体不变
+         *
+         * @param requestHeaders 请求头，可以为null
+         * @param notModified
+         * @param now
+         * @param defaultStaleWhileRevalidate
+         * @return
+         */
+        Entry refresh(Hashtable<String, String> requestHeaders, HttpResponse notModified,
+                long now, long defaultStaleWhileRevalidate) {
+            LinkedHashMap<String, Header> merged = new LinkedHashMap<String, Header>();
+            for (Header header : headers) {
+                merged.put(header.getName().toLowerCase(), header);
+            }
+            for (Header header : notModified.getAllHeaders()) {
+                String name = header.getName();
+                // 304的实体头描述的不是缓存的响应体
+                if ("Content-Length".equalsIgnoreCase(name)
+                        || "Content-Encoding".equalsIgnoreCase(name)
+                        || "Transfer-Encoding".equalsIgnoreCase(name)) {
+                    continue;
+                }
+                merged.put(name.toLowerCase(), header);
+            }
+            BasicHttpResponse response =
+                    new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1,
+                            HttpStatus.SC_OK, reason));
+            response.setHeaders(merged.values().toArray(new Header[merged.size()]));
+            Entry entry = fromResponse(url, requestHeaders, response, body, now,
+                    defaultStaleWhileRevalidate);
+            // 304带no-store时保留原缓存，只是不延长有效期
+            return entry == null ? this : entry;
+        }
+
+        /**
+         * @param requestHeaders 可以为null
+         * @return 请求中Vary的请求头是否与保存时相同
+         */
+        boolean varyMatches(Hashtable<String, String> requestHeaders) {
+            for (Header header : varyHeaders) {
+                String value = getRequestHeader(requestHeaders, header.getName());
+                if (!header.getValue().equals(value == null ? "" : value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        /**
+         * @return 过期后是否仍可直接返回并在后台重新验证
+         */
+        boolean canServeStale(long now) {
+            return !mustRevalidate && now < expires + staleWhileRevalidate;
+        }
+
+        /**
+         * @return 没有网络或请求失败时是否可以返回
+         */
+        boolean canServeOffline() {
+            return !mustRevalidate;
+        }
+
+        String getETag() {
+            return getHeaderValue("ETag");
+        }
+
+        String getLastModified() {
+            return getHeaderValue("Last-Modified");
+        }
+
+        /**
+         * @return 用保存的响应头和响应体构造的响应
+         */
+        HttpResponse toResponse() {
+            BasicHttpResponse response =
+                    new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode,
+                            reason));
+            response.setHeaders(headers);
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+            response.setEntity(entity);
+            return response;
+        }
+
+        /**
+         * @return 估算的内存占用
+         */
+        long getSize() {
+            long size = body.length + url.length() * 2;
+            for (Header header : headers) {
+                size += (header.getName().length() + header.getValue().length()) * 2;
+            }
+            return size;
+        }
+
+        private String getHeaderValue(String name) {
+            for (Header header : headers) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        private static String reasonOf(HttpResponse response) {
+            String reason = response.getStatusLine().getReasonPhrase();
+            return TextUtils.isEmpty(reason) ? "OK" : reason;
+        }
+
+        private static long parseSeconds(String value, long defaultValue) {
+            if (TextUtils.isEmpty(value)) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        private static long parseDate(Header header, long defaultValue) {
+            if (header == null || TextUtils.isEmpty(header.getValue())) {
+                return defaultValue;
+            }
+            try {
+                return DateUtils.parseDate(header.getValue()).getTime();
+            } catch (DateParseException e) {
+                return defaultValue;
+            }
+        }
+    }
+}
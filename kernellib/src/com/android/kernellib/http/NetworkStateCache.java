@@ -0,0 +1,167 @@
+package com.android.kernellib.http;
+
+import org.apache.http.HttpHost;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.android.kernellib.utility.DebugLog;
+import com.android.kernellib.utility.NetworkHelper;
+
+/**
+ * 当前网络状态的缓存：是否连接、网络类型、APN以及APN对应的代理。
+ *
+ * 查询APN需要访问telephony的ContentProvider，网络类型需要访问ConnectivityManager和
+ * TelephonyManager，都是跨进程调用。这里只在收到CONNECTIVITY_ACTION广播后的第一次读取时重新查询，
+ * 其余读取直接返回缓存的结果。广播在主线程接收，查询放在之后读取的线程（一般是请求线程）中进行。
+ */
+public class NetworkStateCache {
+
+    protected static final String TAG = NetworkStateCache.class.getSimpleName();
+
+    private static final HttpHost PROXY_DEFAULT = new HttpHost(HttpRequestAdapter.DEFAULT_PROXY,
+            HttpRequestAdapter.DEFAULT_PROXY_PORT);
+
+    private static final HttpHost PROXY_CT = new HttpHost(HttpRequestAdapter.CT_PROXY,
+            HttpRequestAdapter.DEFAULT_PROXY_PORT);
+
+    private static NetworkStateCache sInstance = null;
+
+    private final Context mAppContext;
+
+    // 当前状态，整体替换
+    private volatile State mState;
+
+    // 收到广播后置为true，下次读取时重新查询
+    private volatile boolean mDirty = true;
+
+    /**
+     * 某一时刻的网络状态，创建后不再修改
+     */
+    private static class State {
+        final boolean connected;
+        final String networkType;
+        final ApnCheckor.ApnTag apnTag;
+        final HttpHost proxy;
+
+        State(boolean connected, String networkType, ApnCheckor.ApnTag apnTag) {
+            this.connected = connected;
+            this.networkType = networkType;
+            this.apnTag = apnTag;
+            this.proxy = getProxy(apnTag);
+        }
+    }
+
+    private NetworkStateCache(Context appContext) {
+        mAppContext = appContext;
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        mAppContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                DebugLog.log(TAG, "connectivity changed");
+                mDirty = true;
+            }
+        }, filter);
+    }
+
+    /**
+     * 第一次调用时注册CONNECTIVITY_ACTION广播
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized NetworkStateCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NetworkStateCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return 是否有可用的网络
+     */
+    public boolean isConnected() {
+        return getState().connected;
+    }
+
+    /**
+     * @return 网络类型，见NetworkHelper.NET_*
+     */
+    public String getNetworkType() {
+        return getState().networkType;
+    }
+
+    /**
+     * @return 当前使用的APN，WIFI为INTERNET，没有网络时为null
+     */
+    public ApnCheckor.ApnTag getApnTag() {
+        return getState().apnTag;
+    }
+
+    /**
+     * @return 当前APN需要使用的代理，不需要时返回null
+     */
+    public HttpHost getProxy() {
+        return getState().proxy;
+    }
+
+    /**
+     * 标记为需要重新查询，网络状态可能在广播到达之前已经变化时调用
+     */
+    public void invalidate() {
+        mDirty = true;
+    }
+
+    /**
+     * @param apnTag
+     * @return APN对应的代理，不需要时返回null
+     */
+    static HttpHost getProxy(ApnCheckor.ApnTag apnTag) {
+        if (ApnCheckor.ApnTag.CTWAP.equals(apnTag)) {
+            return PROXY_CT;
+        } else if (ApnCheckor.ApnTag.CMWAP.equals(apnTag)
+                || ApnCheckor.ApnTag.UNIWAP.equals(apnTag)
+                || ApnCheckor.ApnTag._3GWAP.equals(apnTag)) {
+            return PROXY_DEFAULT;
+        }
+        return null;
+    }
+
+    private State getState() {
+        State state = mState;
+        if (state == null || mDirty) {
+            state = refresh();
+        }
+        return state;
+    }
+
+    private synchronized State refresh() {
+        if (mState != null && !mDirty) {
+            return mState;
+        }
+        // 先清除标记，查询期间再收到广播时下次重新查询
+        mDirty = false;
+        State state;
+        try {
+            NetworkInfo info = NetworkHelper.getActiveNetworkInfo(mAppContext);
+            if (null == info) {
+                state = new State(false, NetworkHelper.NET_UNKNOW, null);
+            } else {
+                state = new State(true, NetworkHelper.getMobileNetworkType(mAppContext),
+                        ApnCheckor.getCurrentUsedAPNTag(mAppContext));
+            }
+        } catch (Exception e) {
+            DebugLog.log(TAG, "refresh e:" + e);
+            mDirty = true;
+            state = new State(true, NetworkHelper.NET_UNKNOW, ApnCheckor.ApnTag.UNKNOW);
+        }
+        DebugLog.log(TAG, "refresh connected:" + state.connected + " type:" + state.networkType
+                + " apn:" + state.apnTag);
+        mState = state;
+        return state;
+    }
+}
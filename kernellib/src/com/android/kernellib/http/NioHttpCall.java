@@ -0,0 +1,761 @@
+package com.android.kernellib.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Locale;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import android.text.TextUtils;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * NioHttpEngine中的一次请求：生成请求报文，增量解析响应，响应读完后在回调线程交给ResponseHandler。
+ *
+ * 连接的读写和解析状态只在选择器线程中访问，abort()可以在任意线程调用。
+ */
+class NioHttpCall {
+
+    protected static final String TAG = NioHttpCall.class.getSimpleName();
+
+    /**
+     * 请求结束（成功、失败或中断）时在回调线程调用，每次execute只调用一次
+     */
+    interface Listener {
+        void onComplete(NioHttpCall call, int errorCode);
+    }
+
+    // 最多跟随的重定向次数
+    static final int MAX_REDIRECTS = 5;
+
+    // 在内存中缓冲的响应体上限，超过时GET请求改由HttpRequestAdapter阻塞执行，其他请求失败
+    static final int MAX_BUFFERED_BODY = 1024 * 1024;
+
+    // 可以预先序列化的POST实体上限
+    static final int MAX_BUFFERED_ENTITY = 64 * 1024;
+
+    // 状态行和头部单行长度上限
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private static final int STATE_STATUS_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_BODY_TO_CLOSE = 3;
+    private static final int STATE_CHUNK_SIZE = 4;
+    private static final int STATE_CHUNK_DATA = 5;
+    private static final int STATE_CHUNK_END = 6;
+    private static final int STATE_TRAILERS = 7;
+    private static final int STATE_DONE = 8;
+
+    final HttpRequestBean bean;
+
+    final Listener listener;
+
+    private final String originalUrl;
+
+    // 当前请求的url，跟随重定向后改变
+    String url;
+
+    String host;
+
+    int port;
+
+    // 连接的目标，使用代理时为代理地址
+    String connectHost;
+
+    int connectPort;
+
+    // 空闲连接按route复用
+    String route;
+
+    // 不早于该时间（elapsedRealtime）开始，用于重试退避
+    long notBefore;
+
+    // 连接或读写的超时时间点（elapsedRealtime）
+    long deadline;
+
+    // 取得调度器名额的时间，0表示未持有名额
+    long startTime;
+
+    int redirectCount;
+
+    // 复用的空闲连接上没有收到任何响应时已经重新发送过
+    boolean staleRetried;
+
+    // 当前使用的连接，只在选择器线程访问
+    NioHttpEngine.Connection connection;
+
+    // 批量请求中所在的流水线，只在选择器线程访问
+    NioHttpPipeline pipeline;
+
+    // 回退到阻塞执行时使用的adapter
+    volatile HttpRequestAdapter blockingAdapter;
+
+    private volatile boolean aborted = false;
+
+    private boolean finished = false;
+
+    private ByteBuffer requestBuffer;
+
+    // 响应解析状态
+    private int state;
+
+    private byte[] lineBuffer = new byte[256];
+
+    private int lineLength;
+
+    private boolean receivedAny;
+
+    private int statusCode;
+
+    private String reasonPhrase;
+
+    private HttpVersion version;
+
+    private final ArrayList<Header> headers = new ArrayList<Header>();
+
+    private boolean keepAlive;
+
+    private boolean hasBody;
+
+    private boolean oversized;
+
+    private long remaining;
+
+    private byte[] body;
+
+    private int bodyLength;
+
+    // 网络上收到的响应体长度
+    private long transferLength;
+
+    // 请求结果
+    private HttpResponse httpResponse;
+
+    private Object responseObject;
+
+    private Exception lastException;
+
+    NioHttpCall(HttpRequestBean bean, Listener listener) {
+        this.bean = bean;
+        this.listener = listener;
+        this.originalUrl = bean.getRequestUrl();
+        this.url = originalUrl;
+    }
+
+    /**
+     * 检查参数并生成请求报文
+     *
+     * @return 错误码，与HttpRequestAdapter.request()一致
+     */
+    int prepare() {
+        if (TextUtils.isEmpty(url)) {
+            return -1;
+        }
+        String method = null == bean.getMethod() ? "" : bean.getMethod().trim();
+        if (!"GET".equals(method) && !"POST".equals(method)) {
+            return -2;
+        }
+        if ("POST".equals(method) && null == bean.getHttpEntity()) {
+            return -3;
+        }
+        try {
+            requestBuffer = ByteBuffer.wrap(buildRequest(method));
+            return 0;
+        } catch (Exception e) {
+            DebugLog.log(TAG, "prepare e:" + e);
+            lastException = e;
+            return -5;
+        }
+    }
+
+    /**
+     * @return 是否可以由NioHttpEngine执行：http协议，实体可以预先序列化
+     */
+    boolean isSupported() {
+        if (bean.isCustomSSLSocketFlag() || TextUtils.isEmpty(url)) {
+            return false;
+        }
+        if (!url.trim().regionMatches(true, 0, "http://", 0, 7)) {
+            return false;
+        }
+        HttpEntity entity = bean.getHttpEntity();
+        if (null != entity && "POST".equals(bean.getMethod())) {
+            long length = entity.getContentLength();
+            if (length > MAX_BUFFERED_ENTITY || (length < 0 && !entity.isRepeatable())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] buildRequest(String method) throws IOException {
+        URI uri = URI.create(url.trim());
+        host = uri.getHost();
+        if (TextUtils.isEmpty(host)) {
+            throw new ProtocolException("no host: " + url);
+        }
+        port = uri.getPort() > 0 ? uri.getPort() : 80;
+        String target = uri.getRawPath();
+        if (TextUtils.isEmpty(target)) {
+            target = "/";
+        }
+        if (null != uri.getRawQuery()) {
+            target = target + "?" + uri.getRawQuery();
+        }
+
+        HttpHost proxy = NetworkStateCache.getProxy(bean.getApnTag());
+        if (null != proxy) {
+            connectHost = proxy.getHostName();
+            connectPort = proxy.getPort() > 0 ? proxy.getPort() : 80;
+            // 经过代理时使用完整的url
+            target = "http://" + host + (port == 80 ? "" : ":" + port) + target;
+            route = "proxy:" + connectHost + ":" + connectPort;
+        } else {
+            connectHost = host;
+            connectPort = port;
+            route = host + ":" + port;
+        }
+
+        byte[] content = null;
+        HttpEntity entity = null;
+        if ("POST".equals(method)) {
+            entity = bean.getHttpEntity();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    entity.getContentLength() > 0 ? (int) entity.getContentLength() : 1024);
+            entity.writeTo(out);
+            content = out.toByteArray();
+        }
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (port != 80) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\n");
+        boolean hasAcceptEncoding = false;
+        Hashtable<String, String> table = bean.getHeaders();
+        if (null != table) {
+            Enumeration<String> e = table.keys();
+            while (e.hasMoreElements()) {
+                String key = e.nextElement();
+                String value = table.get(key);
+                if (TextUtils.isEmpty(key) || TextUtils.isEmpty(value)
+                        || "Host".equalsIgnoreCase(key) || "Content-Length".equalsIgnoreCase(key)) {
+                    continue;
+                }
+                if (HttpRequestAdapter.ACCEPT_ENCODING.equalsIgnoreCase(key)) {
+                    hasAcceptEncoding = true;
+                }
+                sb.append(key).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (!hasAcceptEncoding) {
+            sb.append(HttpRequestAdapter.ACCEPT_ENCODING).append(": ")
+                    .append(HttpRequestAdapter.DEFAULT_ACCEPT_ENCODING).append("\r\n");
+        }
+        if (null != content) {
+            if (null != entity.getContentType()) {
+                sb.append("Content-Type: ").append(entity.getContentType().getValue())
+                        .append("\r\n");
+            }
+            if (null != entity.getContentEncoding()) {
+                sb.append("Content-Encoding: ").append(entity.getContentEncoding().getValue())
+                        .append("\r\n");
+            }
+            sb.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        sb.append("\r\n");
+
+        byte[] head = sb.toString().getBytes("ISO-8859-1");
+        if (null == content || content.length == 0) {
+            return head;
+        }
+        byte[] request = new byte[head.length + content.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(content, 0, request, head.length, content.length);
+        return request;
+    }
+
+    ByteBuffer getRequestBuffer() {
+        return requestBuffer;
+    }
+
+    /**
+     * 在同一连接或新连接上重新发送前清除响应解析状态
+     */
+    void resetExchange() {
+        if (null != requestBuffer) {
+            requestBuffer.rewind();
+        }
+        state = STATE_STATUS_LINE;
+        lineLength = 0;
+        receivedAny = false;
+        statusCode = 0;
+        reasonPhrase = null;
+        version = null;
+        headers.clear();
+        keepAlive = false;
+        hasBody = false;
+        oversized = false;
+        remaining = 0;
+        body = null;
+        bodyLength = 0;
+        transferLength = 0;
+    }
+
+    /**
+     * 重试前调用，从原始url重新开始
+     *
+     * @param delay 退避等待时间
+     */
+    void reset(long delay, long now) {
+        url = originalUrl;
+        bean.setRequestUrl(originalUrl);
+        redirectCount = 0;
+        staleRetried = false;
+        notBefore = now + delay;
+        startTime = 0;
+        connection = null;
+        pipeline = null;
+        blockingAdapter = null;
+        httpResponse = null;
+        responseObject = null;
+        lastException = null;
+        synchronized (this) {
+            finished = false;
+        }
+        resetExchange();
+    }
+
+    /**
+     * @return 重定向的目标，不需要跟随时返回null
+     */
+    String getRedirectLocation() {
+        if (!"GET".equals(bean.getMethod()) || redirectCount >= MAX_REDIRECTS) {
+            return null;
+        }
+        if (statusCode != 301 && statusCode != 302 && statusCode != 303 && statusCode != 307) {
+            return null;
+        }
+        String location = getHeaderValue("Location");
+        if (TextUtils.isEmpty(location)) {
+            return null;
+        }
+        try {
+            return URI.create(url.trim()).resolve(location.trim()).toString();
+        } catch (Exception e) {
+            DebugLog.log(TAG, "bad location: " + location);
+            return null;
+        }
+    }
+
+    /**
+     * 跟随重定向，重新生成请求报文
+     *
+     * @param location
+     * @return 错误码
+     */
+    int redirect(String location) {
+        DebugLog.log(TAG, "redirect " + statusCode + ": " + location);
+        redirectCount++;
+        url = location;
+        bean.setRequestUrl(location);
+        resetExchange();
+        if (!isSupported()) {
+            return 0;
+        }
+        return prepare();
+    }
+
+    /**
+     * 处理收到的数据
+     *
+     * @param in
+     * @return 响应是否已读完
+     * @throws IOException 响应格式错误
+     */
+    boolean onRead(ByteBuffer in) throws IOException {
+        if (in.hasRemaining()) {
+            receivedAny = true;
+        }
+        while (in.hasRemaining() && state != STATE_DONE) {
+            switch (state) {
+                case STATE_BODY:
+                case STATE_CHUNK_DATA: {
+                    int count = (int) Math.min(in.remaining(), remaining);
+                    appendBody(in, count);
+                    if (oversized) {
+                        // 已改由阻塞方式执行，不再解析剩余数据
+                        return true;
+                    }
+                    remaining -= count;
+                    if (remaining == 0) {
+                        state = state == STATE_BODY ? STATE_DONE : STATE_CHUNK_END;
+                    }
+                    break;
+                }
+                case STATE_BODY_TO_CLOSE:
+                    appendBody(in, in.remaining());
+                    if (oversized) {
+                        return true;
+                    }
+                    break;
+                default: {
+                    String line = readLine(in);
+                    if (null != line) {
+                        onLine(line);
+                    }
+                    break;
+                }
+            }
+        }
+        return state == STATE_DONE;
+    }
+
+    /**
+     * 连接被对方关闭
+     *
+     * @return 响应是否已读完
+     * @throws IOException 响应不完整
+     */
+    boolean onEof() throws IOException {
+        if (state == STATE_BODY_TO_CLOSE) {
+            state = STATE_DONE;
+            return true;
+        }
+        if (state == STATE_DONE) {
+            return true;
+        }
+        if (!receivedAny) {
+            throw new NoHttpResponseException("The target server failed to respond");
+        }
+        throw new ConnectionClosedException("Premature end of response");
+    }
+
+    boolean isHttp11() {
+        return HttpVersion.HTTP_1_1.equals(version);
+    }
+
+    boolean hasReceivedAny() {
+        return receivedAny;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && state == STATE_DONE && !oversized;
+    }
+
+    /**
+     * @return 响应体超过MAX_BUFFERED_BODY，需要改由阻塞方式执行
+     */
+    boolean isOversized() {
+        return oversized;
+    }
+
+    long getTransferLength() {
+        return transferLength;
+    }
+
+    private String readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                lineLength = 0;
+                return new String(lineBuffer, 0, length, "ISO-8859-1");
+            }
+            if (lineLength == lineBuffer.length) {
+                if (lineLength >= MAX_LINE_LENGTH) {
+                    throw new ProtocolException("line too long");
+                }
+                byte[] buffer = new byte[lineLength * 2];
+                System.arraycopy(lineBuffer, 0, buffer, 0, lineLength);
+                lineBuffer = buffer;
+            }
+            lineBuffer[lineLength++] = b;
+        }
+        return null;
+    }
+
+    private void onLine(String line) throws IOException {
+        switch (state) {
+            case STATE_STATUS_LINE:
+                if (line.length() > 0) {
+                    parseStatusLine(line);
+                    state = STATE_HEADERS;
+                }
+                break;
+            case STATE_HEADERS:
+                if (line.length() == 0) {
+                    onHeadersComplete();
+                } else if (!headers.isEmpty()
+                        && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                    // 折行的头部
+                    Header last = headers.remove(headers.size() - 1);
+                    headers.add(new BasicHeader(last.getName(), last.getValue() + " "
+                            + line.trim()));
+                } else {
+                    int index = line.indexOf(':');
+                    if (index <= 0) {
+                        throw new ProtocolException("bad header: " + line);
+                    }
+                    headers.add(new BasicHeader(line.substring(0, index).trim(), line.substring(
+                            index + 1).trim()));
+                }
+                break;
+            case STATE_CHUNK_SIZE: {
+                int index = line.indexOf(';');
+                String size = (index < 0 ? line : line.substring(0, index)).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("bad chunk size: " + line);
+                }
+                if (remaining < 0) {
+                    throw new ProtocolException("bad chunk size: " + line);
+                }
+                state = remaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+                break;
+            }
+            case STATE_CHUNK_END:
+                state = STATE_CHUNK_SIZE;
+                break;
+            case STATE_TRAILERS:
+                if (line.length() == 0) {
+                    state = STATE_DONE;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void parseStatusLine(String line) throws IOException {
+        // HTTP/1.1 200 OK
+        if (!line.startsWith("HTTP/")) {
+            throw new ProtocolException("bad status line: " + line);
+        }
+        int first = line.indexOf(' ');
+        if (first < 0) {
+            throw new ProtocolException("bad status line: " + line);
+        }
+        int second = line.indexOf(' ', first + 1);
+        String code = second < 0 ? line.substring(first + 1) : line.substring(first + 1, second);
+        try {
+            statusCode = Integer.parseInt(code.trim());
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("bad status line: " + line);
+        }
+        reasonPhrase = second < 0 ? "" : line.substring(second + 1);
+        version = line.startsWith("HTTP/1.0") ? HttpVersion.HTTP_1_0 : HttpVersion.HTTP_1_1;
+        headers.clear();
+    }
+
+    private void onHeadersComplete() throws IOException {
+        if (statusCode >= 100 && statusCode < 200) {
+            // 跳过100 Continue等临时响应
+            state = STATE_STATUS_LINE;
+            return;
+        }
+        String connection = getHeaderValue("Connection");
+        if (HttpVersion.HTTP_1_0.equals(version)) {
+            keepAlive = "keep-alive".equalsIgnoreCase(connection);
+        } else {
+            keepAlive = !"close".equalsIgnoreCase(connection);
+        }
+
+        if (statusCode == 204 || statusCode == 304) {
+            state = STATE_DONE;
+            return;
+        }
+        hasBody = true;
+        String transferEncoding = getHeaderValue("Transfer-Encoding");
+        if (null != transferEncoding && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            body = new byte[8192];
+            state = STATE_CHUNK_SIZE;
+            return;
+        }
+        String contentLength = getHeaderValue("Content-Length");
+        if (null != contentLength) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("bad content length: " + contentLength);
+            }
+            if (remaining < 0) {
+                throw new ProtocolException("bad content length: " + contentLength);
+            }
+            if (remaining > MAX_BUFFERED_BODY) {
+                onOversized(remaining);
+                return;
+            }
+            body = new byte[(int) remaining];
+            state = remaining == 0 ? STATE_DONE : STATE_BODY;
+            return;
+        }
+        // 没有长度，读到连接关闭为止
+        keepAlive = false;
+        body = new byte[8192];
+        state = STATE_BODY_TO_CLOSE;
+    }
+
+    private void appendBody(ByteBuffer in, int count) throws IOException {
+        transferLength += count;
+        if (bodyLength + count > body.length) {
+            if (bodyLength + count > MAX_BUFFERED_BODY) {
+                onOversized(bodyLength + count);
+                in.position(in.limit());
+                return;
+            }
+            byte[] buffer = new byte[Math.max(body.length * 2, bodyLength + count)];
+            System.arraycopy(body, 0, buffer, 0, bodyLength);
+            body = buffer;
+        }
+        in.get(body, bodyLength, count);
+        bodyLength += count;
+    }
+
+    /**
+     * 响应体超过MAX_BUFFERED_BODY：GET请求改由阻塞方式重新执行，其他请求不能重复发送，直接失败
+     */
+    private void onOversized(long length) throws IOException {
+        if (!"GET".equals(bean.getMethod())) {
+            throw new ProtocolException("response too large: " + length);
+        }
+        oversized = true;
+        state = STATE_DONE;
+    }
+
+    private String getHeaderValue(String name) {
+        for (int i = 0; i < headers.size(); i++) {
+            Header header = headers.get(i);
+            if (name.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把读完的响应交给ResponseHandler，在回调线程调用
+     *
+     * @return 错误码
+     */
+    int deliver() {
+        BasicHttpResponse response =
+                new BasicHttpResponse(new BasicStatusLine(version, statusCode, reasonPhrase));
+        for (int i = 0; i < headers.size(); i++) {
+            response.addHeader(headers.get(i));
+        }
+        if (hasBody) {
+            byte[] content = body;
+            if (bodyLength != content.length) {
+                content = new byte[bodyLength];
+                System.arraycopy(body, 0, content, 0, bodyLength);
+            }
+            ByteArrayEntity entity = new ByteArrayEntity(content);
+            entity.setContentType(getHeaderValue("Content-Type"));
+            entity.setContentEncoding(getHeaderValue("Content-Encoding"));
+            response.setEntity(entity);
+        }
+        body = null;
+        DecompressingEntity.decompress(response);
+
+        AbstractResponseHandler responseHandler = bean.getResponseHandler();
+        try {
+            responseObject = responseHandler.handleResponse(response);
+            httpResponse = responseHandler.getHttpResponse();
+            DebugLog.log(TAG, "request:" + statusCode + " " + url);
+            return 0;
+        } catch (Exception e) {
+            if (aborted) {
+                return -6;
+            }
+            e.printStackTrace();
+            lastException = e;
+            return -5;
+        }
+    }
+
+    /**
+     * 阻塞执行的结果
+     */
+    void setBlockingResult(HttpRequestAdapter adapter) {
+        httpResponse = adapter.getHttpResponse();
+        responseObject = adapter.getResponseData();
+        lastException = adapter.getLastException();
+    }
+
+    void setException(Exception e) {
+        lastException = e;
+    }
+
+    /**
+     * @return 是否是第一次结束，保证listener只调用一次
+     */
+    synchronized boolean markFinished() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        return true;
+    }
+
+    HttpResponse getHttpResponse() {
+        return httpResponse;
+    }
+
+    Object getResponseData() {
+        return responseObject;
+    }
+
+    Exception getLastException() {
+        return lastException;
+    }
+
+    int getStatusCode() {
+        return null == httpResponse ? 0 : httpResponse.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * 中断请求，可在任意线程调用
+     */
+    void abort() {
+        aborted = true;
+        HttpRequestAdapter adapter = blockingAdapter;
+        if (null != adapter) {
+            adapter.abort();
+        }
+        NioHttpEngine.getInstance().cancel(this);
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    @Override
+    public String toString() {
+        return "NioHttpCall[" + bean.getMethod() + " " + url + "]";
+    }
+}
@@ -0,0 +1,1026 @@
+package com.android.kernellib.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.os.SystemClock;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 基于Selector的非阻塞HTTP执行引擎，HttpClientWrap的异步请求和HttpBatch经过此引擎。
+ *
+ * 一个选择器线程负责所有连接的建立和读写，同一route的空闲连接保持keep-alive复用；
+ * DNS解析在固定的工作线程中执行。ResponseHandler和回调在固定数量的回调线程中执行，等待的回调数有上限，
+ * 超出时交给阻塞执行的线程，线程数不随并发请求数增长。回调不能阻塞，否则会推迟其他请求的回调。
+ * 批量请求按route分组，每组在少数几条连接上以NioHttpPipeline执行。
+ *
+ * 只处理http协议。https、自定义SSL、无法预先序列化的POST实体以及超过MAX_BUFFERED_BODY的GET响应
+ * （其他方法的请求不能重复发送，响应过大时失败）回退到HttpRequestAdapter，在固定数量的线程中阻塞执行，线程数即异步https请求的并发上限，
+ * 可通过{@link #setBlockingThreads}调整。与阻塞请求一样经过HttpDispatcher调度。
+ */
+class NioHttpEngine implements Runnable {
+
+    protected static final String TAG = NioHttpEngine.class.getSimpleName();
+
+    // 工作线程数：DNS解析
+    private static final int WORKER_THREADS = 2;
+
+    // 阻塞执行的默认线程数
+    static final int DEFAULT_BLOCKING_THREADS = 4;
+
+    // 回调线程数：ResponseHandler、回调
+    private static final int CALLBACK_THREADS = 2;
+
+    // 等待执行的回调数上限，超出时在阻塞执行的线程中执行
+    private static final int CALLBACK_QUEUE_SIZE = 256;
+
+    // 每个route保留的空闲连接数
+    private static final int MAX_IDLE_PER_ROUTE = 4;
+
+    // 空闲连接保持时间，与SharedHttpClient的默认keep-alive一致
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+
+    // 选择器最长等待时间，用于检查超时
+    private static final long MAX_SELECT_TIMEOUT = 1000;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static NioHttpEngine sInstance = null;
+
+    private final Selector selector;
+
+    // 其他线程提交给选择器线程执行的任务
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // 以下只在选择器线程访问
+
+    // 等待名额或退避时间的请求
+    private final LinkedList<NioHttpCall> pending = new LinkedList<NioHttpCall>();
+
+    // 等待名额的批量请求
+    private final LinkedList<NioHttpPipeline> pendingPipelines = new LinkedList<NioHttpPipeline>();
+
+    // route -> 空闲连接，最近使用的在队尾
+    private final HashMap<String, LinkedList<Connection>> idle =
+            new HashMap<String, LinkedList<Connection>>();
+
+    // 所有打开的连接
+    private final HashSet<Connection> connections = new HashSet<Connection>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private final ExecutorService worker;
+
+    private final ExecutorService callback;
+
+    private final ThreadPoolExecutor blocking;
+
+    /**
+     * 一条TCP连接
+     */
+    static class Connection {
+        final SocketChannel channel;
+        final String route;
+        SelectionKey key;
+        // 正在使用该连接的请求，空闲时为null
+        NioHttpCall call;
+        // 正在使用该连接的批量请求，空闲时为null
+        NioHttpPipeline pipeline;
+        boolean connecting;
+        boolean reused;
+        long idleSince;
+
+        Connection(SocketChannel channel, String route) {
+            this.channel = channel;
+            this.route = route;
+        }
+
+        boolean isIdle() {
+            return null == call && null == pipeline;
+        }
+    }
+
+    /**
+     * DNS解析的结果，在选择器线程调用
+     */
+    private interface ResolveCallback {
+        void onResolved(InetAddress address, IOException e);
+    }
+
+    private NioHttpEngine(Selector selector) {
+        this.selector = selector;
+        this.worker = createExecutor(WORKER_THREADS, TAG + ":worker");
+        this.blocking = createExecutor(DEFAULT_BLOCKING_THREADS, TAG + ":blocking");
+        this.callback = new ThreadPoolExecutor(CALLBACK_THREADS, CALLBACK_THREADS, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(CALLBACK_QUEUE_SIZE),
+                createThreadFactory(TAG + ":callback"), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // 回调不能丢弃
+                        DebugLog.log(TAG, "callback queue full");
+                        blocking.execute(r);
+                    }
+                });
+    }
+
+    static synchronized NioHttpEngine getInstance() {
+        if (null == sInstance) {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                // 没有选择器时全部阻塞执行
+                DebugLog.log(TAG, "Selector.open e:" + e);
+            }
+            sInstance = new NioHttpEngine(selector);
+            if (null != selector) {
+                Thread thread = new Thread(sInstance, TAG + ":selector");
+                thread.setDaemon(true);
+                thread.start();
+                HttpDispatcher.getInstance().setReleaseListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        sInstance.selector.wakeup();
+                    }
+                });
+            }
+        }
+        return sInstance;
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, String name) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory(name));
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "#" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * 设置阻塞执行（https等）的线程数，即异步https请求的并发上限
+     *
+     * @param threads 大于0
+     */
+    void setBlockingThreads(int threads) {
+        if (threads <= 0) {
+            return;
+        }
+        // 先调大的一方，保证core不超过max
+        if (threads > blocking.getMaximumPoolSize()) {
+            blocking.setMaximumPoolSize(threads);
+            blocking.setCorePoolSize(threads);
+        } else {
+            blocking.setCorePoolSize(threads);
+            blocking.setMaximumPoolSize(threads);
+        }
+    }
+
+    static long getConnectTimeout(HttpRequestBean bean) {
+        int timeout = bean.getConnectionTimeout();
+        return timeout > 0 ? timeout : HttpRequestAdapter.DEFAULT_CONNECTION_TIMEOUT;
+    }
+
+    static long getSocketTimeout(HttpRequestBean bean) {
+        int timeout = bean.getSocketTimeout();
+        return timeout > 0 ? timeout : HttpRequestAdapter.DEFAULT_SOCKET_TIMEOUT;
+    }
+
+    /**
+     * 提交请求，结束时在回调线程调用call.listener
+     *
+     * @param call
+     */
+    void execute(final NioHttpCall call) {
+        if (call.isAborted()) {
+            finish(call, -6);
+            return;
+        }
+        if (null == selector || !call.isSupported()) {
+            executeBlocking(call);
+            return;
+        }
+        int error = call.prepare();
+        if (error != 0) {
+            finish(call, error);
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                pending.add(call);
+            }
+        });
+    }
+
+    /**
+     * 提交一批请求。GET请求按route分组，每组最多使用maxConnections条连接，其他请求单独执行。
+     * 每个请求结束时分别在回调线程调用call.listener。
+     *
+     * @param calls
+     * @param maxConnections 每个route的连接数
+     */
+    void executeBatch(List<NioHttpCall> calls, int maxConnections) {
+        LinkedHashMap<String, ArrayList<NioHttpCall>> groups =
+                new LinkedHashMap<String, ArrayList<NioHttpCall>>();
+        for (NioHttpCall call : calls) {
+            if (call.isAborted() || null == selector || !call.isSupported()
+                    || !"GET".equals(call.bean.getMethod())) {
+                execute(call);
+                continue;
+            }
+            int error = call.prepare();
+            if (error != 0) {
+                finish(call, error);
+                continue;
+            }
+            ArrayList<NioHttpCall> group = groups.get(call.route);
+            if (null == group) {
+                group = new ArrayList<NioHttpCall>();
+                groups.put(call.route, group);
+            }
+            group.add(call);
+        }
+
+        final ArrayList<NioHttpPipeline> pipelines = new ArrayList<NioHttpPipeline>();
+        for (ArrayList<NioHttpCall> group : groups.values()) {
+            // 连续的请求分在同一条连接上
+            int count = Math.max(1, Math.min(maxConnections, group.size()));
+            int size = (group.size() + count - 1) / count;
+            for (int i = 0; i < group.size(); i += size) {
+                pipelines.add(new NioHttpPipeline(group.subList(i,
+                        Math.min(group.size(), i + size))));
+            }
+        }
+        if (pipelines.isEmpty()) {
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                pendingPipelines.addAll(pipelines);
+            }
+        });
+    }
+
+    /**
+     * 中断请求，可在任意线程调用
+     *
+     * @param call
+     */
+    void cancel(final NioHttpCall call) {
+        if (null == selector) {
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(call)) {
+                    finish(call, -6);
+                    return;
+                }
+                NioHttpPipeline pipeline = call.pipeline;
+                if (null != pipeline) {
+                    // 已发送的请求不能从流水线中取出，读完响应后以-6结束
+                    if (pipeline.waiting.remove(call)) {
+                        finish(call, -6);
+                        if (pipeline.isEmpty()) {
+                            pendingPipelines.remove(pipeline);
+                        }
+                    }
+                    return;
+                }
+                Connection connection = call.connection;
+                if (null != connection && connection.call == call) {
+                    close(connection);
+                    releaseSlot(call);
+                    finish(call, -6);
+                }
+                // 正在解析DNS、阻塞执行或交给ResponseHandler的请求自行结束
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long now = SystemClock.elapsedRealtime();
+                selector.select(getSelectTimeout(now));
+                Runnable task;
+                while (null != (task = tasks.poll())) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    onSelected(key);
+                }
+                now = SystemClock.elapsedRealtime();
+                checkTimeouts(now);
+                startPending(now);
+            } catch (Throwable e) {
+                DebugLog.log(TAG, "select loop e:" + e);
+            }
+        }
+    }
+
+    private long getSelectTimeout(long now) {
+        long timeout = MAX_SELECT_TIMEOUT;
+        for (Connection connection : connections) {
+            if (null != connection.call) {
+                timeout = Math.min(timeout, connection.call.deadline - now);
+            } else if (null != connection.pipeline) {
+                timeout = Math.min(timeout, connection.pipeline.deadline - now);
+            }
+        }
+        for (NioHttpCall call : pending) {
+            // 等待名额的请求在名额归还时唤醒
+            if (call.notBefore > now) {
+                timeout = Math.min(timeout, call.notBefore - now);
+            }
+        }
+        // select(0)表示一直等待
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * 取得名额后开始退避时间已到的请求
+     */
+    private void startPending(long now) {
+        if (pending.isEmpty() && pendingPipelines.isEmpty()) {
+            return;
+        }
+        HttpDispatcher dispatcher = HttpDispatcher.getInstance();
+        Iterator<NioHttpPipeline> pit = pendingPipelines.iterator();
+        while (pit.hasNext()) {
+            NioHttpPipeline pipeline = pit.next();
+            if (pipeline.isEmpty()) {
+                pit.remove();
+                continue;
+            }
+            if (!dispatcher.tryAcquire(pipeline.host, pipeline.requestType)) {
+                continue;
+            }
+            pit.remove();
+            startPipeline(pipeline, now);
+        }
+
+        Iterator<NioHttpCall> it = pending.iterator();
+        while (it.hasNext()) {
+            NioHttpCall call = it.next();
+            if (call.notBefore > now) {
+                continue;
+            }
+            if (!dispatcher.tryAcquire(call.host, call.bean.getRequestType())) {
+                continue;
+            }
+            it.remove();
+            startCall(call, now);
+        }
+    }
+
+    private void startCall(final NioHttpCall call, long now) {
+        call.startTime = now;
+        Connection connection = takeIdle(call.route);
+        if (null != connection) {
+            attach(connection, call, now);
+            return;
+        }
+        resolve(call.connectHost, new ResolveCallback() {
+            @Override
+            public void onResolved(InetAddress address, IOException e) {
+                if (call.isAborted()) {
+                    releaseSlot(call);
+                    finish(call, -6);
+                } else if (null != e) {
+                    releaseSlot(call);
+                    call.setException(e);
+                    finish(call, -5);
+                } else {
+                    connect(call, address);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在工作线程解析DNS后回到选择器线程
+     */
+    private void resolve(final String host, final ResolveCallback callback) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetAddress address = null;
+                IOException error = null;
+                try {
+                    address = InetAddress.getByName(host);
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "resolve " + host + " e:" + e);
+                    error = e;
+                }
+                final InetAddress resolved = address;
+                final IOException exception = error;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResolved(resolved, exception);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 建立非阻塞连接
+     */
+    private Connection openConnection(String route, InetAddress address, int port)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel, route);
+            connection.connecting = !channel.connect(new InetSocketAddress(address, port));
+            connection.key = channel.register(selector,
+                    connection.connecting ? SelectionKey.OP_CONNECT : 0, connection);
+            connections.add(connection);
+            return connection;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private void connect(NioHttpCall call, InetAddress address) {
+        long now = SystemClock.elapsedRealtime();
+        try {
+            Connection connection = openConnection(call.route, address, call.connectPort);
+            connection.call = call;
+            call.connection = connection;
+            if (connection.connecting) {
+                call.deadline = now + getConnectTimeout(call.bean);
+            } else {
+                attach(connection, call, now);
+            }
+        } catch (IOException e) {
+            fail(call, e);
+        }
+    }
+
+    /**
+     * 在连接上发送请求
+     */
+    private void attach(Connection connection, NioHttpCall call, long now) {
+        connection.call = call;
+        connection.connecting = false;
+        call.connection = connection;
+        call.resetExchange();
+        call.deadline = now + getSocketTimeout(call.bean);
+        connection.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void onSelected(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        if (null != connection.pipeline) {
+            onPipelineSelected(key, connection, connection.pipeline);
+            return;
+        }
+        NioHttpCall call = connection.call;
+        if (null == call) {
+            // 空闲连接可读，说明对方已关闭或发来了多余的数据
+            close(connection);
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        try {
+            if (key.isConnectable()) {
+                if (connection.channel.finishConnect()) {
+                    attach(connection, call, now);
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                ByteBuffer buffer = call.getRequestBuffer();
+                connection.channel.write(buffer);
+                call.deadline = now + getSocketTimeout(call.bean);
+                if (!buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                readBuffer.clear();
+                int count = connection.channel.read(readBuffer);
+                boolean done;
+                if (count < 0) {
+                    done = call.onEof();
+                } else {
+                    readBuffer.flip();
+                    done = call.onRead(readBuffer);
+                    call.deadline = now + getSocketTimeout(call.bean);
+                }
+                if (done) {
+                    onResponseComplete(connection, call, count < 0);
+                }
+            }
+        } catch (IOException e) {
+            close(connection);
+            fail(call, e);
+        } catch (RuntimeException e) {
+            // 不结束请求时调用方只能等到超时，且该连接每次选中都会再次出错
+            close(connection);
+            fail(call, toIOException(e));
+        } catch (OutOfMemoryError e) {
+            close(connection);
+            fail(call, toIOException(e));
+        }
+    }
+
+    private static IOException toIOException(Throwable e) {
+        IOException exception = new IOException(e.toString());
+        exception.initCause(e);
+        return exception;
+    }
+
+    /**
+     * 响应读完：归还名额和连接后处理响应
+     */
+    private void onResponseComplete(Connection connection, NioHttpCall call, boolean eof) {
+        connection.call = null;
+        call.connection = null;
+        if (!eof && call.isKeepAlive()) {
+            recycle(connection);
+        } else {
+            close(connection);
+        }
+        releaseSlot(call);
+        onCallResponse(call);
+    }
+
+    /**
+     * 响应体过大时改为阻塞执行，需要重定向时重新排队，否则交给回调线程处理
+     */
+    private void onCallResponse(NioHttpCall call) {
+        call.pipeline = null;
+        if (call.isOversized()) {
+            DebugLog.log(TAG, "response too large, execute blocking: " + call);
+            executeBlocking(call);
+            return;
+        }
+        String location = call.getRedirectLocation();
+        if (null != location) {
+            int error = call.redirect(location);
+            if (error != 0) {
+                finish(call, error);
+            } else if (!call.isSupported()) {
+                executeBlocking(call);
+            } else {
+                call.notBefore = 0;
+                pending.add(call);
+            }
+            return;
+        }
+        deliver(call);
+    }
+
+    private void deliver(final NioHttpCall call) {
+        callback.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (call.isAborted()) {
+                    finish(call, -6);
+                    return;
+                }
+                finish(call, call.deliver());
+            }
+        });
+    }
+
+    /**
+     * 连接出错，复用的空闲连接上没有收到任何响应时在新连接上重新发送一次
+     */
+    private void fail(NioHttpCall call, IOException e) {
+        Connection connection = call.connection;
+        call.connection = null;
+        releaseSlot(call);
+        if (call.isAborted()) {
+            finish(call, -6);
+            return;
+        }
+        if (null != connection && connection.reused && !call.hasReceivedAny()
+                && !call.staleRetried && "GET".equals(call.bean.getMethod())) {
+            DebugLog.log(TAG, "stale connection, resend: " + call);
+            call.staleRetried = true;
+            call.notBefore = 0;
+            pending.add(call);
+            return;
+        }
+        DebugLog.log(TAG, "request fail: " + call + " e:" + e);
+        call.setException(e);
+        finish(call, -5);
+    }
+
+    private void startPipeline(final NioHttpPipeline pipeline, long now) {
+        pipeline.startTime = now;
+        Connection connection = takeIdle(pipeline.route);
+        if (null != connection) {
+            attachPipeline(connection, pipeline, now);
+            return;
+        }
+        resolve(pipeline.connectHost, new ResolveCallback() {
+            @Override
+            public void onResolved(InetAddress address, IOException e) {
+                if (pipeline.isEmpty()) {
+                    releaseSlot(pipeline);
+                } else if (null != e) {
+                    failPipeline(null, pipeline, e);
+                } else {
+                    connectPipeline(pipeline, address);
+                }
+            }
+        });
+    }
+
+    private void connectPipeline(NioHttpPipeline pipeline, InetAddress address) {
+        long now = SystemClock.elapsedRealtime();
+        try {
+            Connection connection =
+                    openConnection(pipeline.route, address, pipeline.connectPort);
+            connection.pipeline = pipeline;
+            if (connection.connecting) {
+                pipeline.deadline = now + pipeline.connectTimeout;
+            } else {
+                attachPipeline(connection, pipeline, now);
+            }
+        } catch (IOException e) {
+            failPipeline(null, pipeline, e);
+        }
+    }
+
+    private void attachPipeline(Connection connection, NioHttpPipeline pipeline, long now) {
+        connection.pipeline = pipeline;
+        connection.connecting = false;
+        pipeline.deadline = now + pipeline.socketTimeout;
+        updateInterest(connection, pipeline);
+    }
+
+    private void updateInterest(Connection connection, NioHttpPipeline pipeline) {
+        int ops = 0;
+        if (null != pipeline.writeBuffer || pipeline.canSend()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!pipeline.sent.isEmpty()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    private void onPipelineSelected(SelectionKey key, Connection connection,
+            NioHttpPipeline pipeline) {
+        long now = SystemClock.elapsedRealtime();
+        try {
+            if (key.isConnectable()) {
+                if (connection.channel.finishConnect()) {
+                    attachPipeline(connection, pipeline, now);
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                while (null != pipeline.writeBuffer || pipeline.canSend()) {
+                    ByteBuffer buffer =
+                            null != pipeline.writeBuffer ? pipeline.writeBuffer : pipeline.next();
+                    connection.channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    pipeline.writeBuffer = null;
+                }
+                pipeline.deadline = now + pipeline.socketTimeout;
+            }
+            if (key.isReadable()) {
+                readBuffer.clear();
+                int count = connection.channel.read(readBuffer);
+                if (count < 0) {
+                    NioHttpCall call = pipeline.sent.peekFirst();
+                    if (null == call) {
+                        throw new NoHttpResponseException("connection closed");
+                    }
+                    if (call.onEof()) {
+                        onPipelineResponse(connection, pipeline, call, true);
+                    }
+                    return;
+                }
+                readBuffer.flip();
+                pipeline.deadline = now + pipeline.socketTimeout;
+                while (readBuffer.hasRemaining()) {
+                    NioHttpCall call = pipeline.sent.peekFirst();
+                    if (null == call) {
+                        throw new NoHttpResponseException("unexpected data");
+                    }
+                    if (!call.onRead(readBuffer)) {
+                        break;
+                    }
+                    if (!onPipelineResponse(connection, pipeline, call, false)) {
+                        return;
+                    }
+                }
+            }
+            updateInterest(connection, pipeline);
+        } catch (IOException e) {
+            failPipeline(connection, pipeline, e);
+        } catch (RuntimeException e) {
+            failPipeline(connection, pipeline, toIOException(e));
+        } catch (OutOfMemoryError e) {
+            failPipeline(connection, pipeline, toIOException(e));
+        }
+    }
+
+    /**
+     * 流水线中的一个响应读完
+     *
+     * @return 连接是否可以继续使用
+     */
+    private boolean onPipelineResponse(Connection connection, NioHttpPipeline pipeline,
+            NioHttpCall call, boolean eof) {
+        pipeline.sent.removeFirst();
+        pipeline.answered++;
+        pipeline.transferLength += call.getTransferLength();
+        if (!pipeline.confirmed) {
+            pipeline.confirm(call);
+        }
+        boolean keepAlive = !eof && call.isKeepAlive();
+        onCallResponse(call);
+
+        if (!keepAlive) {
+            // 服务器关闭了连接，剩下的请求在新连接上继续
+            close(connection);
+            restartPipeline(pipeline, false);
+            return false;
+        }
+        if (pipeline.isEmpty()) {
+            connection.pipeline = null;
+            releaseSlot(pipeline);
+            recycle(connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 流水线的连接出错。已收到部分响应的请求失败；其余请求在新连接上依次重发，
+     * 没有任何进展时只重发一次，再出错时全部失败。
+     */
+    private void failPipeline(Connection connection, NioHttpPipeline pipeline, IOException e) {
+        boolean reused = false;
+        if (null != connection) {
+            reused = connection.reused;
+            close(connection);
+        }
+        NioHttpCall head = pipeline.sent.peekFirst();
+        boolean partial = null != head && head.hasReceivedAny();
+        if (partial) {
+            pipeline.sent.removeFirst();
+            head.pipeline = null;
+            failCall(head, e);
+        }
+        boolean progress = partial || pipeline.answered > 0;
+        boolean timeout = e instanceof InterruptedIOException;
+        if (!pipeline.isEmpty() && !timeout && (progress || !pipeline.resent)
+                && (progress || reused || pipeline.pipelining)) {
+            DebugLog.log(TAG, "pipeline fail, resend: " + pipeline + " e:" + e);
+            pipeline.resent = !progress;
+            restartPipeline(pipeline, pipeline.pipelining);
+            return;
+        }
+        DebugLog.log(TAG, "pipeline fail: " + pipeline + " e:" + e);
+        releaseSlot(pipeline);
+        pipeline.requeue(false);
+        for (NioHttpCall call : pipeline.waiting) {
+            call.pipeline = null;
+            failCall(call, e);
+        }
+        pipeline.waiting.clear();
+    }
+
+    private void failCall(NioHttpCall call, IOException e) {
+        if (call.isAborted()) {
+            finish(call, -6);
+            return;
+        }
+        call.setException(e);
+        finish(call, -5);
+    }
+
+    /**
+     * 未收到响应的请求重新排队，在新连接上依次执行
+     */
+    private void restartPipeline(NioHttpPipeline pipeline, boolean disablePipelining) {
+        releaseSlot(pipeline);
+        pipeline.requeue(disablePipelining);
+        if (!pipeline.isEmpty()) {
+            pendingPipelines.add(pipeline);
+        }
+    }
+
+    private void checkTimeouts(long now) {
+        ArrayList<Connection> expired = null;
+        for (Connection connection : connections) {
+            boolean timeout;
+            if (null != connection.call) {
+                timeout = now >= connection.call.deadline;
+            } else if (null != connection.pipeline) {
+                timeout = now >= connection.pipeline.deadline;
+            } else {
+                timeout = now - connection.idleSince >= IDLE_TIMEOUT;
+            }
+            if (timeout) {
+                if (null == expired) {
+                    expired = new ArrayList<Connection>();
+                }
+                expired.add(connection);
+            }
+        }
+        if (null == expired) {
+            return;
+        }
+        for (Connection connection : expired) {
+            IOException e = connection.connecting ? new ConnectTimeoutException(
+                    "Connect to " + connection.route + " timed out") : new SocketTimeoutException(
+                    "Read timed out");
+            NioHttpCall call = connection.call;
+            NioHttpPipeline pipeline = connection.pipeline;
+            if (null != pipeline) {
+                failPipeline(connection, pipeline, e);
+                continue;
+            }
+            close(connection);
+            if (null != call) {
+                fail(call, e);
+            }
+        }
+    }
+
+    private Connection takeIdle(String route) {
+        LinkedList<Connection> list = idle.get(route);
+        while (null != list && !list.isEmpty()) {
+            Connection connection = list.removeLast();
+            if (list.isEmpty()) {
+                idle.remove(route);
+            }
+            if (connection.channel.isOpen() && connection.key.isValid()) {
+                connection.reused = true;
+                return connection;
+            }
+            close(connection);
+        }
+        return null;
+    }
+
+    private void recycle(Connection connection) {
+        LinkedList<Connection> list = idle.get(connection.route);
+        if (null == list) {
+            list = new LinkedList<Connection>();
+            idle.put(connection.route, list);
+        }
+        if (list.size() >= MAX_IDLE_PER_ROUTE) {
+            close(list.removeFirst());
+        }
+        connection.idleSince = SystemClock.elapsedRealtime();
+        // 空闲时监听可读，及时发现对方关闭
+        connection.key.interestOps(SelectionKey.OP_READ);
+        list.add(connection);
+    }
+
+    private void close(Connection connection) {
+        connections.remove(connection);
+        connection.call = null;
+        connection.pipeline = null;
+        LinkedList<Connection> list = idle.get(connection.route);
+        if (null != list && list.remove(connection) && list.isEmpty()) {
+            idle.remove(connection.route);
+        }
+        if (null != connection.key) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            DebugLog.log(TAG, "close e:" + e);
+        }
+    }
+
+    /**
+     * 归还调度器名额并记录下载速度，只归还一次
+     */
+    private void releaseSlot(NioHttpCall call) {
+        if (call.startTime == 0) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - call.startTime;
+        call.startTime = 0;
+        HttpDispatcher.getInstance().release(call.host, call.bean.getRequestType(),
+                call.getTransferLength(), elapsed);
+    }
+
+    private void releaseSlot(NioHttpPipeline pipeline) {
+        if (pipeline.startTime == 0) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - pipeline.startTime;
+        pipeline.startTime = 0;
+        HttpDispatcher.getInstance().release(pipeline.host, pipeline.requestType,
+                pipeline.transferLength, elapsed);
+        pipeline.transferLength = 0;
+    }
+
+    /**
+     * 由HttpRequestAdapter在阻塞线程中执行
+     */
+    private void executeBlocking(final NioHttpCall call) {
+        blocking.execute(new Runnable() {
+            @Override
+            public void run() {
+                HttpRequestAdapter adapter = new HttpRequestAdapter(call.bean);
+                call.blockingAdapter = adapter;
+                if (call.isAborted()) {
+                    adapter.abort();
+                }
+                int error;
+                try {
+                    error = adapter.request();
+                    call.setBlockingResult(adapter);
+                } finally {
+                    adapter.release();
+                }
+                finish(call, error);
+            }
+        });
+    }
+
+    /**
+     * 在回调线程通知请求结束，每个请求只通知一次
+     */
+    private void finish(final NioHttpCall call, final int error) {
+        if (!call.markFinished()) {
+            return;
+        }
+        callback.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.listener.onComplete(call, error);
+                } catch (Exception e) {
+                    DebugLog.log(TAG, "onComplete e:" + e);
+                }
+            }
+        });
+    }
+}
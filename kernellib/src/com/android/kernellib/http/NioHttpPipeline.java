@@ -0,0 +1,143 @@
+package com.android.kernellib.http;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 批量请求中同一route的一组GET请求，在NioHttpEngine的一条连接上依次执行。
+ *
+ * 连接上的第一个响应是HTTP/1.1 keep-alive时开始流水线发送，最多MAX_DEPTH个请求等待响应；
+ * 否则等上一个响应读完再发送下一个。流水线出错时记录该route不支持流水线，未收到响应的请求在新连接上依次重发。
+ *
+ * 只在选择器线程中访问。
+ */
+class NioHttpPipeline {
+
+    // 流水线中同时等待响应的请求数上限
+    static final int MAX_DEPTH = 8;
+
+    // 流水线出错过的route，之后不再使用流水线
+    private static final HashSet<String> sNoPipelining = new HashSet<String>();
+
+    final String host;
+
+    final String route;
+
+    final String connectHost;
+
+    final int connectPort;
+
+    final int requestType;
+
+    final long connectTimeout;
+
+    final long socketTimeout;
+
+    // 未发送的请求
+    final LinkedList<NioHttpCall> waiting = new LinkedList<NioHttpCall>();
+
+    // 已发送（或正在发送）等待响应的请求，顺序与发送一致
+    final LinkedList<NioHttpCall> sent = new LinkedList<NioHttpCall>();
+
+    // 正在发送的请求报文
+    ByteBuffer writeBuffer;
+
+    // 当前连接上是否已收到第一个响应
+    boolean confirmed;
+
+    boolean pipelining;
+
+    // 没有收到任何响应就出错时已经重发过
+    boolean resent;
+
+    // 当前连接上收到的响应数
+    int answered;
+
+    long deadline;
+
+    // 取得调度器名额的时间，0表示未持有名额
+    long startTime;
+
+    long transferLength;
+
+    NioHttpPipeline(List<NioHttpCall> calls) {
+        NioHttpCall first = calls.get(0);
+        host = first.host;
+        route = first.route;
+        connectHost = first.connectHost;
+        connectPort = first.connectPort;
+        requestType = first.bean.getRequestType();
+        connectTimeout = NioHttpEngine.getConnectTimeout(first.bean);
+        socketTimeout = NioHttpEngine.getSocketTimeout(first.bean);
+        waiting.addAll(calls);
+        for (NioHttpCall call : calls) {
+            call.pipeline = this;
+        }
+    }
+
+    /**
+     * 收到连接上第一个响应后判断是否可以使用流水线
+     *
+     * @param call
+     */
+    void confirm(NioHttpCall call) {
+        confirmed = true;
+        pipelining = call.isKeepAlive() && call.isHttp11() && !sNoPipelining.contains(route);
+    }
+
+    /**
+     * @return 是否可以发送下一个请求
+     */
+    boolean canSend() {
+        if (null != writeBuffer || waiting.isEmpty()) {
+            return false;
+        }
+        if (sent.isEmpty()) {
+            return true;
+        }
+        return confirmed && pipelining && sent.size() < MAX_DEPTH;
+    }
+
+    /**
+     * 开始发送下一个请求
+     *
+     * @return 请求报文
+     */
+    ByteBuffer next() {
+        NioHttpCall call = waiting.removeFirst();
+        call.resetExchange();
+        sent.add(call);
+        writeBuffer = call.getRequestBuffer();
+        return writeBuffer;
+    }
+
+    /**
+     * 连接断开后把未收到响应的请求放回等待队列，在新连接上重新开始
+     *
+     * @param disablePipelining 流水线出错，该route以后不再使用流水线
+     */
+    void requeue(boolean disablePipelining) {
+        if (disablePipelining) {
+            sNoPipelining.add(route);
+        }
+        while (!sent.isEmpty()) {
+            waiting.addFirst(sent.removeLast());
+        }
+        writeBuffer = null;
+        confirmed = false;
+        pipelining = false;
+        answered = 0;
+    }
+
+    boolean isEmpty() {
+        return waiting.isEmpty() && sent.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "NioHttpPipeline[" + route + ",waiting=" + waiting.size() + ",sent=" + sent.size()
+                + ",pipelining=" + pipelining + "]";
+    }
+}
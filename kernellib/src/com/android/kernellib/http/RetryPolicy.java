@@ -0,0 +1,175 @@
+package com.android.kernellib.http;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.http.NoHttpResponseException;
+
+/**
+ * HttpClientWrap的重试策略。
+ *
+ * 只重试暂时性的失败：超时、连接被重置或拒绝、服务器没有响应、5xx。参数错误（-1、-2、-3）、
+ * 中断（-6）和其他状态码不重试。POST默认不重试，服务器接口幂等时可以开启。
+ * 重试前按指数退避等待并加入随机抖动，避免大量请求同时重试；从第一次请求开始超过总时限后不再重试。
+ *
+ * 可以继承并覆盖{@link #isRetryable}和{@link #getBackoffDelay}实现自定义策略。
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    public static final long DEFAULT_MAX_DELAY = 8 * 1000;
+
+    public static final long DEFAULT_DEADLINE = 30 * 1000;
+
+    // 默认策略，POST不重试
+    public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_RETRIES,
+            DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_DEADLINE, false);
+
+    // 不重试
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0, 0, 0, false);
+
+    // 记录重试次数的接口数上限
+    private static final int MAX_TRACKED_ENDPOINTS = 100;
+
+    // 接口（不含参数的url） -> 重试次数
+    private static final LinkedHashMap<String, Integer> sRetryCounts =
+            new LinkedHashMap<String, Integer>(0, 0.75f, true) {
+                private static final long serialVersionUID = -1934275916250475372L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_TRACKED_ENDPOINTS;
+                }
+            };
+
+    private static final Random sRandom = new Random();
+
+    private final int maxRetries;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final long deadline;
+
+    private final boolean retryPost;
+
+    /**
+     * @param maxRetries 最大重试次数
+     * @param baseDelay 第一次重试前的等待时间（毫秒），之后每次加倍
+     * @param maxDelay 单次等待时间上限（毫秒）
+     * @param deadline 从第一次请求开始的总时限（毫秒），超过后不再重试
+     * @param retryPost POST请求是否重试，只有服务器接口幂等时才能开启
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay, long deadline,
+            boolean retryPost) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.deadline = deadline;
+        this.retryPost = retryPost;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public boolean isRetryPost() {
+        return retryPost;
+    }
+
+    /**
+     * 判断失败是否可以重试
+     *
+     * @param method GET或POST
+     * @param errorCode HttpRequestAdapter.request()的返回值
+     * @param statusCode 响应状态码，没有响应时为0
+     * @param e 请求抛出的异常，可以为null
+     * @return
+     */
+    public boolean isRetryable(String method, int errorCode, int statusCode, Exception e) {
+        if ("POST".equalsIgnoreCase(method) && !retryPost) {
+            return false;
+        }
+        if (errorCode == 0) {
+            return statusCode >= 500;
+        }
+        if (errorCode != -5 || null == e) {
+            return false;
+        }
+        // 连接超时、读取超时、连接池等待超时
+        return e instanceof InterruptedIOException || e instanceof SocketException
+                || e instanceof NoHttpResponseException;
+    }
+
+    /**
+     * 第retryCount次重试前的等待时间：baseDelay * 2^(retryCount-1)，不超过maxDelay，
+     * 在该值的一半到全部之间随机选取
+     *
+     * @param retryCount 从1开始
+     * @return 毫秒
+     */
+    public long getBackoffDelay(int retryCount) {
+        if (baseDelay <= 0) {
+            return 0;
+        }
+        long delay = baseDelay << Math.min(retryCount - 1, 16);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        long half = delay / 2;
+        synchronized (sRandom) {
+            return half + (long) (sRandom.nextDouble() * (delay - half));
+        }
+    }
+
+    /**
+     * 记录一次重试
+     *
+     * @param url
+     */
+    static void recordRetry(String url) {
+        String endpoint = getEndpoint(url);
+        synchronized (sRetryCounts) {
+            Integer count = sRetryCounts.get(endpoint);
+            sRetryCounts.put(endpoint, null == count ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @return 各接口（不含参数的url）的重试次数快照
+     */
+    public static Map<String, Integer> getRetryCounts() {
+        synchronized (sRetryCounts) {
+            return new HashMap<String, Integer>(sRetryCounts);
+        }
+    }
+
+    private static String getEndpoint(String url) {
+        try {
+            URI uri = new URI(url.trim());
+            return uri.getScheme() + "://" + uri.getHost() + uri.getPath();
+        } catch (Exception e) {
+            int index = url.indexOf('?');
+            return index < 0 ? url : url.substring(0, index);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[maxRetries=" + maxRetries + ",baseDelay=" + baseDelay + ",maxDelay="
+                + maxDelay + ",deadline=" + deadline + ",retryPost=" + retryPost + "]";
+    }
+}
@@ -0,0 +1,253 @@
+package com.android.kernellib.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 进程内共享的HttpClient，基于ThreadSafeClientConnManager连接池。
+ *
+ * HttpRequestAdapter、HttpClientWrap（包括图片下载）以及NetworkHelper.checkInternet都使用此client，
+ * 连接在请求之间通过keep-alive复用，避免每个请求都重新建立TCP连接和TLS握手。
+ *
+ * 超时、代理等请求相关参数请设置在请求自身的HttpParams上，不要修改共享client的参数。
+ */
+public class SharedHttpClient {
+
+    protected static final String TAG = SharedHttpClient.class.getSimpleName();
+
+    // 单个host最大连接数，与图片下载线程数一致
+    public static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+
+    // 连接池最大连接数
+    public static final int MAX_TOTAL_CONNECTIONS = 20;
+
+    // 从连接池获取连接的等待时间
+    protected static final long CONNECTION_POOL_TIMEOUT = 10 * 1000;
+
+    // 服务器未返回Keep-Alive时，连接默认保持时间
+    protected static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+    // 空闲连接回收间隔
+    protected static final long IDLE_REAP_INTERVAL = 30 * 1000;
+
+    // 空闲超过该时间的连接会被关闭
+    protected static final long IDLE_CONNECTION_TIMEOUT = 60 * 1000;
+
+    protected static final int DEFAULT_SOCKET_BUF = 8192;
+
+    private static DefaultHttpClient sHttpClient = null;
+
+    // 自定义SSL（信任所有证书）使用的client
+    private static DefaultHttpClient sCustomSSLHttpClient = null;
+
+    private static Object sInitLock = new Object();
+
+    private static Thread sIdleReaper = null;
+
+    // 新建立的连接数
+    private static final AtomicLong sOpenedConnectionCount = new AtomicLong();
+
+    // 复用的连接数
+    private static final AtomicLong sReusedConnectionCount = new AtomicLong();
+
+    private SharedHttpClient() {
+    }
+
+    /**
+     * 获取共享client
+     *
+     * @param isCustomSSLSocket 是否使用MySSLSocketFactory
+     * @return
+     */
+    public static HttpClient getHttpClient(boolean isCustomSSLSocket) {
+        synchronized (sInitLock) {
+            if (isCustomSSLSocket) {
+                if (sCustomSSLHttpClient == null) {
+                    sCustomSSLHttpClient =
+                            createHttpClient(MySSLSocketFactory.getFixedSocketFactory());
+                }
+                startIdleReaper();
+                return sCustomSSLHttpClient;
+            } else {
+                if (sHttpClient == null) {
+                    sHttpClient = createHttpClient(SSLSocketFactory.getSocketFactory());
+                }
+                startIdleReaper();
+                return sHttpClient;
+            }
+        }
+    }
+
+    public static HttpClient getHttpClient() {
+        return getHttpClient(false);
+    }
+
+    /**
+     * @return 新建立的连接数
+     */
+    public static long getOpenedConnectionCount() {
+        return sOpenedConnectionCount.get();
+    }
+
+    /**
+     * @return 复用已有连接的请求数
+     */
+    public static long getReusedConnectionCount() {
+        return sReusedConnectionCount.get();
+    }
+
+    /**
+     * 关闭连接池中过期和空闲的连接
+     */
+    public static void closeIdleConnections() {
+        closeIdleConnections(sHttpClient);
+        closeIdleConnections(sCustomSSLHttpClient);
+    }
+
+    private static void closeIdleConnections(HttpClient client) {
+        if (null == client) {
+            return;
+        }
+        ClientConnectionManager cm = client.getConnectionManager();
+        cm.closeExpiredConnections();
+        cm.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static DefaultHttpClient createHttpClient(SSLSocketFactory sslSocketFactory) {
+        HttpParams params = new BasicHttpParams();
+
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+
+        // 连接池中的连接可能已被服务器关闭，使用前检查
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, DEFAULT_SOCKET_BUF);
+
+        HttpClientParams.setRedirecting(params, true);
+        // 客户端在进程内共享，不保存也不发送服务器设置的cookie，需要时由调用方通过请求头传入
+        HttpClientParams.setCookiePolicy(params, CookiePolicy.IGNORE_COOKIES);
+
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setTimeout(params, CONNECTION_POOL_TIMEOUT);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", sslSocketFactory, 443));
+
+        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+
+        DefaultHttpClient client = new DefaultHttpClient(cm, params);
+        client.setKeepAliveStrategy(new KeepAliveStrategy());
+        // 重试统一由RetryPolicy决定，HttpClient自身不重试
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.addRequestInterceptor(new ConnectionReuseCounter());
+        return client;
+    }
+
+    private static void startIdleReaper() {
+        if (sIdleReaper != null) {
+            return;
+        }
+        sIdleReaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(IDLE_REAP_INTERVAL);
+                    } catch (InterruptedException e) {
+                        DebugLog.log(TAG, "idle reaper e:" + e);
+                    }
+                    try {
+                        closeIdleConnections();
+                    } catch (Exception e) {
+                        DebugLog.log(TAG, "closeIdleConnections e:" + e);
+                    }
+                }
+            }
+        }, TAG + ":idle");
+        sIdleReaper.setDaemon(true);
+        sIdleReaper.start();
+    }
+
+    /**
+     * 优先使用服务器返回的Keep-Alive: timeout，否则使用默认保持时间
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            HeaderElementIterator it =
+                    new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement he = it.nextElement();
+                String param = he.getName();
+                String value = he.getValue();
+                if (value != null && "timeout".equalsIgnoreCase(param)) {
+                    try {
+                        return Long.parseLong(value) * 1000;
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+            return DEFAULT_KEEP_ALIVE;
+        }
+    }
+
+    /**
+     * 通过连接上已发送的请求数判断连接是新建的还是复用的
+     */
+    private static class ConnectionReuseCounter implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException,
+                IOException {
+            Object conn = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+            if (!(conn instanceof HttpConnection)) {
+                return;
+            }
+            HttpConnectionMetrics metrics = ((HttpConnection) conn).getMetrics();
+            if (metrics != null && metrics.getRequestCount() > 0) {
+                sReusedConnectionCount.incrementAndGet();
+            } else {
+                sOpenedConnectionCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.android.kernellib.imageLoader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 可复用的Bitmap池，按占用字节数分桶。
+ *
+ * 内存缓存淘汰的Bitmap放入池中，解码时通过BitmapFactory.Options.inBitmap复用，减少滑动列表时的内存分配和GC。
+ * 复用规则：
+ * <ul>
+ * <li>API 11-18：宽高、Config完全一致，且inSampleSize为1</li>
+ * <li>API 19及以上：占用字节数不小于解码后需要的字节数</li>
+ * <li>API 11以下不支持复用，仍使用inPurgeable</li>
+ * </ul>
+ *
+ * 正在显示或已交给调用方的Bitmap不能放入池中，见{@link #markDisplayed}和{@link #markShared}。
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static final int KILOBYTE = 1024;
+
+    // 池的最大字节数
+    private static final int MAX_POOL_SIZE = 4 * KILOBYTE * KILOBYTE;
+
+    private static BitmapPool sInstance = null;
+
+    private static Object sInitLock = new Object();
+
+    private final int mMaxSize;
+
+    private int mSize = 0;
+
+    // key为Bitmap占用字节数
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayList<Bitmap>>();
+
+    // 按放入顺序排列，超出上限时从最早的开始丢弃。Bitmap未重写equals，按对象比较
+    private final LinkedHashSet<Bitmap> mLruSet = new LinkedHashSet<Bitmap>();
+
+    // ImageView -> 正在显示的Bitmap
+    private final WeakHashMap<Object, Bitmap> mDisplayed = new WeakHashMap<Object, Bitmap>();
+
+    // 正在显示的Bitmap -> 显示它的ImageView数。ImageView被回收时计数不会减少，该Bitmap不再复用
+    private final WeakHashMap<Bitmap, Integer> mDisplayCount = new WeakHashMap<Bitmap, Integer>();
+
+    // 从内存缓存取出、尚未显示或交给调用方的Bitmap -> 引用数，见acquire
+    private final WeakHashMap<Bitmap, Integer> mInUse = new WeakHashMap<Bitmap, Integer>();
+
+    // 通过回调交给调用方的Bitmap，调用方持有期间无法得知，不复用
+    private final WeakHashMap<Bitmap, Boolean> mShared = new WeakHashMap<Bitmap, Boolean>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+    private long mReusedBytes;
+
+    private BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public static BitmapPool getInstance() {
+        synchronized (sInitLock) {
+            if (sInstance == null) {
+                int maxSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_POOL_SIZE);
+                sInstance = new BitmapPool(maxSize);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 当前系统是否支持inBitmap
+     *
+     * @return
+     */
+    public static boolean isReuseSupported() {
+        // VERSION_CODES.HONEYCOMB 11
+        return Build.VERSION.SDK_INT >= 11;
+    }
+
+    /**
+     * 记录ImageView正在显示的Bitmap，替换之前显示的Bitmap
+     *
+     * @param view
+     * @param bitmap
+     */
+    public synchronized void markDisplayed(Object view, Bitmap bitmap) {
+        if (view == null) {
+            return;
+        }
+        Bitmap previous = bitmap == null ? mDisplayed.remove(view) : mDisplayed.put(view, bitmap);
+        if (previous == bitmap) {
+            return;
+        }
+        if (bitmap != null) {
+            increment(mDisplayCount, bitmap);
+        }
+        if (previous != null) {
+            decrement(mDisplayCount, previous);
+        }
+    }
+
+    /**
+     * 标记Bitmap正在使用，使用期间不会放入池中；已在池中时取回。
+     * 从内存缓存取出到显示或交给调用方之间调用，结束后调用{@link #release}。
+     *
+     * @param bitmap
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        increment(mInUse, bitmap);
+        if (mLruSet.remove(bitmap)) {
+            int size = ImgCacheMap.KiloByteBitmapCache.getBitmapSize(bitmap);
+            ArrayList<Bitmap> bucket = mBuckets.get(size);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(size);
+                }
+            }
+            mSize -= size;
+        }
+    }
+
+    /**
+     * 结束{@link #acquire}的标记
+     *
+     * @param bitmap
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap != null) {
+            decrement(mInUse, bitmap);
+        }
+    }
+
+    /**
+     * 记录交给调用方的Bitmap，这些Bitmap不会被复用
+     *
+     * @param bitmap
+     */
+    public synchronized void markShared(Bitmap bitmap) {
+        if (bitmap != null) {
+            mShared.put(bitmap, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 放入可复用的Bitmap
+     *
+     * @param bitmap
+     * @return 是否放入
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!isReuseSupported() || bitmap == null || bitmap.isRecycled()
+                || !bitmap.isMutable()) {
+            return false;
+        }
+        int size = ImgCacheMap.KiloByteBitmapCache.getBitmapSize(bitmap);
+        if (size <= 0 || size > mMaxSize / 2 || mShared.containsKey(bitmap)
+                || mDisplayCount.containsKey(bitmap) || mInUse.containsKey(bitmap)
+                || mLruSet.contains(bitmap)) {
+            return false;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mLruSet.add(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * 根据已解码出宽高（inJustDecodeBounds）的options取出可复用的Bitmap
+     *
+     * @param options
+     * @return 没有合适的Bitmap时返回null
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        if (!isReuseSupported() || options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = options.inSampleSize < 1 ? 1 : options.inSampleSize;
+        // VERSION_CODES.KITKAT 19
+        if (Build.VERSION.SDK_INT < 19 && sampleSize != 1) {
+            mMissCount++;
+            return null;
+        }
+        Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888
+                : options.inPreferredConfig;
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        int needed = width * height * getBytesPerPixel(config);
+
+        Bitmap candidate = null;
+        if (Build.VERSION.SDK_INT >= 19) {
+            // 不复用比需要大太多的Bitmap，避免浪费
+            Integer key = mBuckets.ceilingKey(needed);
+            if (key != null && key <= needed * 2) {
+                candidate = removeFromBucket(key, 0, 0, null);
+            }
+        } else {
+            candidate = removeFromBucket(needed, width, height, config);
+        }
+
+        if (candidate == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        mReusedBytes += ImgCacheMap.KiloByteBitmapCache.getBitmapSize(candidate);
+        return candidate;
+    }
+
+    /**
+     * 设置inBitmap等复用相关参数，options需已解码出宽高
+     *
+     * @param options
+     */
+    @SuppressWarnings("deprecation")
+    @TargetApi(11)
+    public void applyReuseOptions(BitmapFactory.Options options) {
+        if (isReuseSupported()) {
+            options.inMutable = true;
+            options.inBitmap = get(options);
+        } else {
+            // 仅在不支持inBitmap的系统上使用
+            options.inPurgeable = true;
+            options.inInputShareable = true;
+        }
+    }
+
+    /**
+     * 解码失败（inBitmap不兼容）时调用，清除inBitmap以便重新解码
+     *
+     * @param options
+     * @return 是否需要重新解码
+     */
+    @TargetApi(11)
+    public boolean clearReuseOptions(BitmapFactory.Options options) {
+        if (!isReuseSupported() || options.inBitmap == null) {
+            return false;
+        }
+        DebugLog.log(TAG, "inBitmap not compatible, decode without reuse");
+        options.inBitmap = null;
+        return true;
+    }
+
+    /**
+     * 解码文件，先尝试复用池中的Bitmap
+     *
+     * @param pathName
+     * @param options 需已解码出宽高
+     * @return
+     */
+    public Bitmap decodeFile(String pathName, BitmapFactory.Options options) {
+        applyReuseOptions(options);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(pathName, options);
+        } catch (IllegalArgumentException e) {
+            DebugLog.log(TAG, "decode e:" + e);
+        }
+        // decodeFile内部会捕获异常返回null，两种情况都去掉inBitmap重试
+        if (bitmap == null && clearReuseOptions(options)) {
+            bitmap = BitmapFactory.decodeFile(pathName, options);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 解码字节数组，先尝试复用池中的Bitmap
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param options 需已解码出宽高
+     * @return
+     */
+    public Bitmap decodeByteArray(byte[] data, int offset, int length,
+            BitmapFactory.Options options) {
+        applyReuseOptions(options);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            DebugLog.log(TAG, "decode e:" + e);
+        }
+        // decodeFile内部会捕获异常返回null，两种情况都去掉inBitmap重试
+        if (bitmap == null && clearReuseOptions(options)) {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+        return bitmap;
+    }
+
+    public synchronized void clear() {
+        mBuckets.clear();
+        mLruSet.clear();
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return 复用的Bitmap累计字节数，即少分配的内存
+     */
+    public synchronized long reusedBytes() {
+        return mReusedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,"
+                + "reusedBytes=%d]", mSize, mMaxSize, mHitCount, mMissCount, hitPercent,
+                mReusedBytes);
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mLruSet.isEmpty()) {
+            Iterator<Bitmap> it = mLruSet.iterator();
+            Bitmap eldest = it.next();
+            it.remove();
+            int size = ImgCacheMap.KiloByteBitmapCache.getBitmapSize(eldest);
+            ArrayList<Bitmap> bucket = mBuckets.get(size);
+            if (bucket != null) {
+                bucket.remove(eldest);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(size);
+                }
+            }
+            mSize -= size;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * 从桶中取出Bitmap
+     *
+     * @param size
+     * @param width
+     * @param height
+     * @param config 为null时不比较宽高和Config
+     * @return
+     */
+    private Bitmap removeFromBucket(int size, int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            return null;
+        }
+        Bitmap result = null;
+        Iterator<Bitmap> it = bucket.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.isRecycled()) {
+                it.remove();
+                mLruSet.remove(bitmap);
+                mSize -= size;
+                continue;
+            }
+            if (config == null || (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config)) {
+                it.remove();
+                result = bitmap;
+                break;
+            }
+        }
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        if (result != null) {
+            mLruSet.remove(result);
+            mSize -= size;
+        }
+        return result;
+    }
+
+    private static void increment(WeakHashMap<Bitmap, Integer> counts, Bitmap bitmap) {
+        Integer count = counts.get(bitmap);
+        counts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private static void decrement(WeakHashMap<Bitmap, Integer> counts, Bitmap bitmap) {
+        Integer count = counts.get(bitmap);
+        if (count == null || count <= 1) {
+            counts.remove(bitmap);
+        } else {
+            counts.put(bitmap, count - 1);
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
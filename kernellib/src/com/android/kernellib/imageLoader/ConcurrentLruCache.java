@@ -0,0 +1,414 @@
+package com.android.kernellib.imageLoader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段加锁的LruCache，与{@link LruCache}的sizeOf/entryRemoved/create约定相同。
+ *
+ * key按hash分到多个段，每个段有自己的锁和按访问顺序排列的LinkedHashMap，不同段的读写互不阻塞。
+ * 每次访问从全局时钟取一个序号记在条目上，淘汰时比较各段最久未访问条目的序号，
+ * 淘汰其中最小的一个，从而近似全局LRU。
+ *
+ * 命中、未命中等统计使用分槽计数，不需要加锁。
+ */
+public class ConcurrentLruCache<K, V> {
+    // 段数，2的幂
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment<K, V>[] mSegments;
+
+    // 全局访问时钟
+    private final AtomicLong mClock = new AtomicLong();
+
+    private final AtomicLong mSize = new AtomicLong();
+
+    private volatile int mMaxSize;
+
+    private final StripedCounter mPutCount = new StripedCounter();
+    private final StripedCounter mCreateCount = new StripedCounter();
+    private final StripedCounter mEvictionCount = new StripedCounter();
+    private final StripedCounter mHitCount = new StripedCounter();
+    private final StripedCounter mMissCount = new StripedCounter();
+
+    private static class Node<V> {
+        final V value;
+        final int size;
+        // 最近一次访问的全局时钟序号
+        volatile long stamp;
+
+        Node(V value, int size, long stamp) {
+            this.value = value;
+            this.size = size;
+            this.stamp = stamp;
+        }
+    }
+
+    private static class Segment<K, V> {
+        final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(0, 0.75f, true);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mSegments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            mSegments[i] = new Segment<K, V>();
+        }
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of its segment's queue. This returns null if a value is not cached
+     * and cannot be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Node<V> node = segment.map.get(key);
+            if (node != null) {
+                node.stamp = mClock.incrementAndGet();
+                mHitCount.increment();
+                return node.value;
+            }
+        }
+        mMissCount.increment();
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        int size = safeSizeOf(key, createdValue);
+        Node<V> previous;
+        synchronized (segment) {
+            mCreateCount.increment();
+            previous = segment.map.get(key);
+            if (previous == null) {
+                segment.map.put(key, new Node<V>(createdValue, size, mClock.incrementAndGet()));
+                mSize.addAndGet(size);
+            }
+        }
+
+        if (previous != null) {
+            // There was a conflict so keep the value already in the cache
+            entryRemoved(false, key, createdValue, previous.value);
+            return previous.value;
+        } else {
+            trimToSize(mMaxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * its segment's queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        int size = safeSizeOf(key, value);
+        Segment<K, V> segment = segmentFor(key);
+        Node<V> previous;
+        synchronized (segment) {
+            mPutCount.increment();
+            previous = segment.map.put(key, new Node<V>(value, size, mClock.incrementAndGet()));
+            mSize.addAndGet(previous == null ? size : size - previous.size);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(mMaxSize);
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Remove the least recently used entries until the total of remaining
+     * entries is at or below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        while (true) {
+            long size = mSize.get();
+            if (size < 0) {
+                throw new IllegalStateException(getClass().getName()
+                        + ".sizeOf() is reporting inconsistent results!");
+            }
+            if (size <= maxSize) {
+                break;
+            }
+
+            Segment<K, V> victim = findEldestSegment();
+            if (victim == null) {
+                if (mSize.get() != 0) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+                break;
+            }
+
+            K key;
+            Node<V> node;
+            synchronized (victim) {
+                Iterator<Map.Entry<K, Node<V>>> it = victim.map.entrySet().iterator();
+                if (!it.hasNext()) {
+                    // 其他线程已淘汰，重新选择
+                    continue;
+                }
+                Map.Entry<K, Node<V>> eldest = it.next();
+                key = eldest.getKey();
+                node = eldest.getValue();
+                it.remove();
+                mSize.addAndGet(-node.size);
+            }
+            mEvictionCount.increment();
+
+            entryRemoved(true, key, node.value, null);
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Segment<K, V> segment = segmentFor(key);
+        Node<V> previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                mSize.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    public final int size() {
+        return (int) mSize.get();
+    }
+
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    public final int hitCount() {
+        return (int) mHitCount.sum();
+    }
+
+    public final int missCount() {
+        return (int) mMissCount.sum();
+    }
+
+    public final int createCount() {
+        return (int) mCreateCount.sum();
+    }
+
+    public final int putCount() {
+        return (int) mPutCount.sum();
+    }
+
+    public final int evictionCount() {
+        return (int) mEvictionCount.sum();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed (approximately, across segments).
+     */
+    public final Map<K, V> snapshot() {
+        LinkedHashMap<K, Long> stamps = new LinkedHashMap<K, Long>();
+        LinkedHashMap<K, V> values = new LinkedHashMap<K, V>();
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                for (Map.Entry<K, Node<V>> entry : segment.map.entrySet()) {
+                    stamps.put(entry.getKey(), entry.getValue().stamp);
+                    values.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+        }
+        List<Map.Entry<K, Long>> list = new ArrayList<Map.Entry<K, Long>>(stamps.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<K, Long>>() {
+            @Override
+            public int compare(Map.Entry<K, Long> lhs, Map.Entry<K, Long> rhs) {
+                long l = lhs.getValue();
+                long r = rhs.getValue();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        LinkedHashMap<K, V> result = new LinkedHashMap<K, V>(list.size());
+        for (Map.Entry<K, Long> entry : list) {
+            result.put(entry.getKey(), values.get(entry.getKey()));
+        }
+        return result;
+    }
+
+    @Override
+    public final String toString() {
+        long hits = mHitCount.sum();
+        long misses = mMissCount.sum();
+        long accesses = hits + misses;
+        int hitPercent = accesses != 0 ? (int) (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mMaxSize, hits, misses, hitPercent);
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mSegments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * 比较各段最久未访问条目的时钟序号，返回其中最小的段
+     *
+     * @return 所有段都为空时返回null
+     */
+    private Segment<K, V> findEldestSegment() {
+        Segment<K, V> victim = null;
+        long oldest = Long.MAX_VALUE;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                Iterator<Node<V>> it = segment.map.values().iterator();
+                if (it.hasNext()) {
+                    long stamp = it.next().stamp;
+                    if (stamp < oldest) {
+                        oldest = stamp;
+                        victim = segment;
+                    }
+                }
+            }
+        }
+        return victim;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * 分槽计数器，不同线程累加到不同的槽，读取时求和
+     */
+    private static final class StripedCounter {
+        private static final int STRIPES = 8;
+
+        // 每个槽占一个缓存行，避免伪共享
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+        void increment() {
+            int index = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+            mCells.incrementAndGet(index);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += mCells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+}
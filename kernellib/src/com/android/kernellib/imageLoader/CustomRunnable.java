@@ -1,5 +1,7 @@
 package com.android.kernellib.imageLoader;
 
+import java.util.List;
+
 import android.graphics.Bitmap;
 
 /**
@@ -23,11 +25,6 @@ public abstract class CustomRunnable implements Runnable
 	{
 	}
 	
-	/**
-	 * @return 回调的key（ImageView obj's key）
-	 */
-	abstract String getSubIdentity();
-	
 	/**
 	 * 给未执行的任务回调结果的机会
 	 */
@@ -37,4 +34,23 @@ public abstract class CustomRunnable implements Runnable
 	 * 从已执行完毕的任务中取出执行结果
 	 */
 	abstract Bitmap getResult();
+	
+	/**
+	 * 通知等待者前取出执行结果，此时已不会有新的等待者加入
+	 * 
+	 * @param waiters 所有等待者
+	 * @return 默认返回getResult()
+	 */
+	Bitmap getResultForWaiters(List<CustomRunnable> waiters)
+	{
+		return getResult();
+	}
+	
+	/**
+	 * 执行结果是否来自缓存
+	 */
+	boolean isResultCached()
+	{
+		return false;
+	}
 }
\ No newline at end of file
@@ -1,102 +1,164 @@
 package com.android.kernellib.imageLoader;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-import com.android.kernellib.imageLoader.ImageLoader.DiskLoader;
+import android.graphics.Bitmap;
+
+import com.android.kernellib.utility.DebugLog;
 
 /**
  * @author zhuchengjin
  * 为图片加载专用，可以过滤重复启动相同任务
+ *
+ * 相同identity的任务通过{@link InFlightTable}合并，只执行一次，结束后把结果通知给所有等待者。
+ * 多个线程池共用同一个请求表时，任务可以通过{@link #handoff}交给另一个线程池继续执行。
  */
 public class CustomThreadPoolExecutor extends ThreadPoolExecutor {
     public static final String TAG = CustomThreadPoolExecutor.class.getSimpleName();
-    // 用于记录正在运行的任务
-    private HashMap<Object, Object> mRunningTaskMap = new HashMap<Object, Object>();
-    private Map<String, CustomRunnable> mSameIdentityTaskMap;
+    // 正在加载的请求
+    private final InFlightTable mInFlightTable;
+    // 任务总是先进入队列，由队列决定执行顺序
+    private volatile boolean mQueueFirst = false;
 
-    public CustomThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+    CustomThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime,
             TimeUnit unit, BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory,
-            RejectedExecutionHandler handler, Map<String, CustomRunnable> mSameIdentityTaskMap) {
-        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
+            InFlightTable inFlightTable) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory,
+                new DiscardOldestPolicy());
 
-        this.mSameIdentityTaskMap = mSameIdentityTaskMap;
+        mInFlightTable = inFlightTable;
     }
 
     @Override
     protected void afterExecute(Runnable r, Throwable t) {
-        if (r != null && r instanceof CustomRunnable) {
-            CustomRunnable finishedRunnable = (CustomRunnable) r;
-            Object obj = finishedRunnable.getIdentity();
-            if (obj != null) {
-                mRunningTaskMap.remove(obj);
-
-                // 找出相同key值的task，通知其执行结果
-                synchronized (mSameIdentityTaskMap) {
-                    for (Iterator<Map.Entry<String, CustomRunnable>> it =
-                            mSameIdentityTaskMap.entrySet().iterator(); it.hasNext();) {
-                        Map.Entry<String, CustomRunnable> pairs = it.next();
-                        CustomRunnable unExecutedRunnable = pairs.getValue();
-                        // 当finishedRunnable.getResult() == null
-                        // 的时候，可能是DiskLoader没有取到本地，交给ImageDownloader来处理了，这种情况下，不应该onResult
-                        if (obj.equals(unExecutedRunnable.getIdentity())
-                                && !(finishedRunnable.getResult() == null && finishedRunnable instanceof DiskLoader)) {
-                            unExecutedRunnable.onResult(finishedRunnable.getResult(), false);
-                            it.remove();
-                        }
-                    }
-                }
-            }
+        if (r instanceof CustomRunnable) {
+            // 已交给其他任务继续执行时不通知
+            notifyWaiters((CustomRunnable) r, false);
         }
         super.afterExecute(r, t);
     }
 
     @Override
-    protected void beforeExecute(Thread t, Runnable r) {
-        if (r != null && r instanceof CustomRunnable) {
-            Object obj = ((CustomRunnable) r).getIdentity();
-            if (obj != null) {
-                mRunningTaskMap.put(obj, obj);
-                // 运行列表不可能多余线程池最大值
-                if (mRunningTaskMap.size() > getMaximumPoolSize()) {
-                    mRunningTaskMap.clear();
-                }
+    public void execute(Runnable command) {
+        if (command instanceof CustomRunnable) {
+            CustomRunnable customRunnable = (CustomRunnable) command;
+            if (!mInFlightTable.join(customRunnable.getIdentity(), customRunnable)) {
+                // 相同任务正在执行，等待其结果
+                return;
             }
         }
-        super.beforeExecute(t, r);
+        enqueue(command);
     }
 
-    @Override
-    public void execute(Runnable command) {
-        if (command != null && command instanceof CustomRunnable) {
-            CustomRunnable customRunnable = (CustomRunnable) command;
-            Object obj = customRunnable.getIdentity();
+    /**
+     * 把请求表中from负责的请求交给本线程池的to继续执行，等待者不变
+     *
+     * @param from 当前执行任务
+     * @param to 下一阶段任务，identity须与from相同
+     * @return 是否交出
+     */
+    public boolean handoff(CustomRunnable from, CustomRunnable to) {
+        if (!mInFlightTable.handoff(to.getIdentity(), from, to)) {
+            return false;
+        }
+        enqueue(to);
+        return true;
+    }
+
+    /**
+     * 从队列中移除未执行的任务，并通知等待者失败
+     *
+     * @param r
+     * @return 是否移除
+     */
+    public boolean drop(Runnable r) {
+        if (!getQueue().remove(r)) {
+            return false;
+        }
+        onDropped(r);
+        return true;
+    }
 
-            if (obj != null && mRunningTaskMap.containsKey(obj)) {
-                String subIdentity = customRunnable.getSubIdentity();
+    /**
+     * 任务已被队列丢弃时调用，结束其负责的请求
+     *
+     * @param r
+     */
+    void onDropped(Runnable r) {
+        if (r instanceof CustomRunnable) {
+            DebugLog.log(TAG, "dropped: " + ((CustomRunnable) r).getIdentity());
+            notifyWaiters((CustomRunnable) r, true);
+        }
+    }
 
-                if (subIdentity != null) {
-                    synchronized (mSameIdentityTaskMap) {
-                        mSameIdentityTaskMap.put(subIdentity, customRunnable);
-                    }
-                }
+    /**
+     * 设置任务是否总是先进入队列。队列自行排序（如按优先级）时使用，避免新任务越过队列直接执行。
+     *
+     * @param queueFirst
+     */
+    public void setQueueFirst(boolean queueFirst) {
+        mQueueFirst = queueFirst;
+    }
 
-                return;
+    /**
+     * 按队列中的任务数启动核心线程，队列暂停后恢复时调用
+     */
+    public void startWorkers() {
+        int count = getQueue().size();
+        for (int i = 0; i < count; i++) {
+            if (!prestartCoreThread()) {
+                break;
             }
         }
+    }
+
+    private void enqueue(Runnable command) {
+        if (mQueueFirst && !isShutdown()) {
+            // 线程数未达到核心线程数时，ThreadPoolExecutor会直接执行新任务而不经过队列
+            getQueue().offer(command);
+            prestartCoreThread();
+            return;
+        }
         super.execute(command);
     }
 
     /**
-     * 清除正在运行任务记录
+     * @param owner
+     * @param dropped 任务未执行，通知失败
      */
-    public void resetRunningTaskMap() {
-        mRunningTaskMap.clear();
+    private void notifyWaiters(CustomRunnable owner, boolean dropped) {
+        List<CustomRunnable> waiters = mInFlightTable.complete(owner.getIdentity(), owner);
+        if (waiters == null) {
+            return;
+        }
+        Bitmap bt = dropped ? null : owner.getResultForWaiters(waiters);
+        boolean isCached = !dropped && owner.isResultCached();
+        for (CustomRunnable waiter : waiters) {
+            waiter.onResult(bt, isCached);
+        }
+    }
+
+    /**
+     * 队列满时丢弃最早的任务，被丢弃的任务结束其负责的请求
+     */
+    private static class DiscardOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            CustomThreadPoolExecutor executor = (CustomThreadPoolExecutor) e;
+            if (e.isShutdown()) {
+                executor.onDropped(r);
+                return;
+            }
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+                executor.onDropped(oldest);
+            }
+            executor.enqueue(r);
+        }
     }
 }
@@ -0,0 +1,466 @@
+package com.android.kernellib.imageLoader;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Process;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 小图片的打包存储：多张图片顺序追加到段文件（segment）中，内存中保存每张图片所在的段和偏移。
+ *
+ * 相比每张图片一个文件，省去了文件系统块、inode以及每次读取时的open/close。
+ * 已写满的段以只读方式映射到内存，读取时直接从映射区复制数据；正在追加的段通过FileChannel按位置读取。
+ *
+ * 覆盖和删除只写入新记录（删除写入墓碑记录），旧数据成为无效空间，
+ * 无效空间超过阈值时由后台线程把有效数据复制到新的段，然后删除旧段。
+ *
+ * 段文件记录格式：
+ *
+ * <pre>
+ *     int   magic
+ *     short key长度
+ *     int   数据长度，-1表示删除
+ *     byte[] key
+ *     byte[] 数据
+ * </pre>
+ */
+class DiskBlobStore {
+    private static final String TAG = "DiskBlobStore";
+
+    // 可以打包存储的最大图片大小，更大的图片仍按普通文件存放
+    static final int MAX_BLOB_SIZE = 8 * 1024;
+
+    private static final String SEGMENT_PREFIX = "seg_";
+    private static final String SEGMENT_EXTNAME = ".blob";
+
+    // 单个段文件大小上限
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int RECORD_MAGIC = 0x4b4c4231;
+
+    // magic + key长度 + 数据长度
+    private static final int RECORD_HEADER_SIZE = 4 + 2 + 4;
+
+    private static final int TOMBSTONE = -1;
+
+    // 无效空间超过总大小的该比例，且不少于一个段时压缩
+    private static final float COMPACT_DEAD_RATIO = 0.5f;
+
+    // 超出上限后淘汰到上限的比例（低水位）
+    private static final float LOW_WATER_RATIO = 0.8f;
+
+    private final File mDirectory;
+
+    // key为图片hash，按访问顺序排列
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0,
+            0.75f, true);
+
+    // 按编号排列的段，最后一个为正在追加的段
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+
+    // 有效数据大小
+    private long mLiveSize = 0;
+
+    // 段文件总大小
+    private long mTotalSize = 0;
+
+    private boolean mOpened = false;
+
+    private boolean mCompacting = false;
+
+    private static class Entry {
+        Segment segment;
+        // 数据在段文件中的偏移
+        long offset;
+        int length;
+        // 整条记录的大小
+        int recordSize;
+    }
+
+    private static class Segment {
+        int id;
+        File file;
+        RandomAccessFile raf;
+        FileChannel channel;
+        long length;
+        // 写满后的只读映射
+        MappedByteBuffer mapped;
+    }
+
+    DiskBlobStore(File directory) {
+        mDirectory = directory;
+    }
+
+    synchronized boolean contains(String hash) {
+        ensureOpened();
+        return mEntries.containsKey(hash);
+    }
+
+    /**
+     * 当前有效数据大小
+     *
+     * @return
+     */
+    synchronized long size() {
+        ensureOpened();
+        return mLiveSize;
+    }
+
+    /**
+     * 段文件总大小，包括尚未压缩掉的已删除数据
+     *
+     * @return
+     */
+    synchronized long diskSize() {
+        ensureOpened();
+        return mTotalSize;
+    }
+
+    /**
+     * 读取图片数据
+     *
+     * @param hash
+     * @return 不存在或读取失败时返回null
+     */
+    synchronized byte[] get(String hash) {
+        ensureOpened();
+        Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return readData(entry);
+        } catch (IOException e) {
+            DebugLog.log(TAG, "get e:" + e);
+            removeLocked(hash);
+            return null;
+        }
+    }
+
+    /**
+     * 保存图片数据，超过MAX_BLOB_SIZE时返回false
+     *
+     * @param hash
+     * @param data
+     * @param length
+     * @return
+     */
+    synchronized boolean put(String hash, byte[] data, int length) {
+        if (length <= 0 || length > MAX_BLOB_SIZE) {
+            return false;
+        }
+        ensureOpened();
+        try {
+            Entry entry = appendRecord(hash, data, length);
+            Entry previous = mEntries.put(hash, entry);
+            if (previous != null) {
+                mLiveSize -= previous.length;
+            }
+            mLiveSize += length;
+            return true;
+        } catch (IOException e) {
+            DebugLog.log(TAG, "put e:" + e);
+            return false;
+        }
+    }
+
+    synchronized void remove(String hash) {
+        ensureOpened();
+        removeLocked(hash);
+        compactIfNeeded();
+    }
+
+    /**
+     * 段文件总大小超出maxSize时按LRU顺序淘汰，直到有效数据低于低水位，然后压缩段文件释放磁盘空间
+     *
+     * @param maxSize
+     */
+    synchronized void trimToSize(long maxSize) {
+        ensureOpened();
+        if (mTotalSize <= maxSize) {
+            return;
+        }
+        long lowWater = (long) (maxSize * LOW_WATER_RATIO);
+        DebugLog.log(TAG, "trimToSize size:" + mLiveSize + " lowWater:" + lowWater);
+        ArrayList<String> evicted = new ArrayList<String>();
+        long size = mLiveSize;
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (size > lowWater && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            size -= eldest.getValue().length;
+            evicted.add(eldest.getKey());
+        }
+        for (String hash : evicted) {
+            removeLocked(hash);
+        }
+        if (mTotalSize > mLiveSize) {
+            startCompaction();
+        }
+    }
+
+    private void removeLocked(String hash) {
+        Entry previous = mEntries.remove(hash);
+        if (previous == null) {
+            return;
+        }
+        mLiveSize -= previous.length;
+        try {
+            appendRecord(hash, null, TOMBSTONE);
+        } catch (IOException e) {
+            DebugLog.log(TAG, "remove e:" + e);
+        }
+    }
+
+    private byte[] readData(Entry entry) throws IOException {
+        byte[] data = new byte[entry.length];
+        Segment segment = entry.segment;
+        if (segment.mapped == null && segment != getActiveSegment()) {
+            segment.mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    segment.length);
+        }
+        if (segment.mapped != null) {
+            ByteBuffer buffer = segment.mapped.duplicate();
+            buffer.position((int) entry.offset);
+            buffer.get(data);
+        } else {
+            readFully(segment.channel, ByteBuffer.wrap(data), entry.offset);
+        }
+        return data;
+    }
+
+    private Entry appendRecord(String hash, byte[] data, int length) throws IOException {
+        byte[] key = hash.getBytes("US-ASCII");
+        int dataSize = length > 0 ? length : 0;
+        int recordSize = RECORD_HEADER_SIZE + key.length + dataSize;
+
+        Segment segment = getActiveSegment();
+        if (segment == null || (segment.length > 0 && segment.length + recordSize > SEGMENT_SIZE)) {
+            segment = openSegment(segment == null ? 0 : segment.id + 1);
+            mSegments.add(segment);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putShort((short) key.length);
+        buffer.putInt(length);
+        buffer.put(key);
+        if (dataSize > 0) {
+            buffer.put(data, 0, dataSize);
+        }
+        buffer.flip();
+
+        long position = segment.length;
+        while (buffer.hasRemaining()) {
+            position += segment.channel.write(buffer, position);
+        }
+
+        Entry entry = new Entry();
+        entry.segment = segment;
+        entry.offset = segment.length + RECORD_HEADER_SIZE + key.length;
+        entry.length = length;
+        entry.recordSize = recordSize;
+
+        segment.length += recordSize;
+        mTotalSize += recordSize;
+        return entry;
+    }
+
+    private Segment getActiveSegment() {
+        return mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment();
+        segment.id = id;
+        segment.file = new File(mDirectory, SEGMENT_PREFIX + id + SEGMENT_EXTNAME);
+        segment.raf = new RandomAccessFile(segment.file, "rw");
+        segment.channel = segment.raf.getChannel();
+        segment.length = segment.channel.size();
+        return segment;
+    }
+
+    private void closeSegment(Segment segment) {
+        try {
+            segment.raf.close();
+        } catch (IOException e) {
+            DebugLog.log(TAG, "closeSegment e:" + e);
+        }
+        segment.mapped = null;
+    }
+
+    private void ensureOpened() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+        String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith(SEGMENT_PREFIX) && filename.endsWith(SEGMENT_EXTNAME);
+            }
+        });
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_EXTNAME.length())));
+                } catch (NumberFormatException e) {
+                    DebugLog.log(TAG, "skip " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (Integer id : ids) {
+            try {
+                Segment segment = openSegment(id);
+                mSegments.add(segment);
+                loadSegment(segment);
+            } catch (IOException e) {
+                DebugLog.log(TAG, "open segment " + id + " e:" + e);
+            }
+        }
+        DebugLog.log(TAG, "open " + mDirectory + " entries:" + mEntries.size() + " size:"
+                + mLiveSize + " total:" + mTotalSize);
+        compactIfNeeded();
+    }
+
+    /**
+     * 顺序读取段中的记录建立索引，遇到不完整的记录时截断
+     *
+     * @param segment
+     * @throws IOException
+     */
+    private void loadSegment(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.length) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            int keyLength = header.getShort();
+            int length = header.getInt();
+            int dataSize = length > 0 ? length : 0;
+            int recordSize = RECORD_HEADER_SIZE + keyLength + dataSize;
+            if (magic != RECORD_MAGIC || keyLength <= 0 || length > MAX_BLOB_SIZE
+                    || (length != TOMBSTONE && length <= 0)
+                    || position + recordSize > segment.length) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            readFully(segment.channel, ByteBuffer.wrap(key), position + RECORD_HEADER_SIZE);
+            String hash = new String(key, "US-ASCII");
+
+            Entry previous;
+            if (length == TOMBSTONE) {
+                previous = mEntries.remove(hash);
+            } else {
+                Entry entry = new Entry();
+                entry.segment = segment;
+                entry.offset = position + RECORD_HEADER_SIZE + keyLength;
+                entry.length = length;
+                entry.recordSize = recordSize;
+                previous = mEntries.put(hash, entry);
+                mLiveSize += length;
+            }
+            if (previous != null) {
+                mLiveSize -= previous.length;
+            }
+            position += recordSize;
+        }
+        if (position < segment.length) {
+            // 进程退出时未写完的记录
+            DebugLog.log(TAG, "truncate " + segment.file + " at " + position);
+            segment.channel.truncate(position);
+            segment.length = position;
+        }
+        mTotalSize += segment.length;
+    }
+
+    private void compactIfNeeded() {
+        long dead = mTotalSize - mLiveSize;
+        if (dead < SEGMENT_SIZE || dead < mTotalSize * COMPACT_DEAD_RATIO) {
+            return;
+        }
+        startCompaction();
+    }
+
+    private void startCompaction() {
+        if (mCompacting) {
+            return;
+        }
+        mCompacting = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                compact();
+            }
+        }, TAG + ":compact");
+        thread.start();
+    }
+
+    /**
+     * 把有效数据按LRU顺序复制到新的段，然后删除旧段。旧段中的墓碑记录随之丢弃。
+     */
+    private synchronized void compact() {
+        long temp = System.currentTimeMillis();
+        long before = mTotalSize;
+        ArrayList<Segment> oldSegments = new ArrayList<Segment>(mSegments);
+        try {
+            Segment active = getActiveSegment();
+            mSegments.add(openSegment(active == null ? 0 : active.id + 1));
+            ArrayList<String> hashes = new ArrayList<String>(mEntries.keySet());
+            for (String hash : hashes) {
+                Entry entry = mEntries.get(hash);
+                byte[] data = readData(entry);
+                Entry moved = appendRecord(hash, data, data.length);
+                // 重新put会改变访问顺序，直接替换位置信息
+                entry.segment = moved.segment;
+                entry.offset = moved.offset;
+                entry.recordSize = moved.recordSize;
+            }
+        } catch (IOException e) {
+            // 复制失败时保留旧段，新段中的记录在下次打开时覆盖旧记录，数据一致
+            DebugLog.log(TAG, "compact e:" + e);
+            mCompacting = false;
+            return;
+        }
+        for (Segment segment : oldSegments) {
+            mSegments.remove(segment);
+            mTotalSize -= segment.length;
+            closeSegment(segment);
+            segment.file.delete();
+        }
+        mCompacting = false;
+        DebugLog.log(TAG, "compact " + before + " -> " + mTotalSize + " time:"
+                + (System.currentTimeMillis() - temp));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+            position += count;
+        }
+    }
+}
@@ -1,13 +1,17 @@
 package com.android.kernellib.imageLoader;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+
+import org.apache.http.HttpResponse;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -20,9 +24,9 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Environment;
-import android.os.Process;
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.kernellib.imageLoader.ImageLoader.ImageType;
 import com.android.kernellib.utility.DebugLog;
@@ -36,14 +40,17 @@ public class DiskCache
 	/**
 	 * 通过缓存内容进行文件夹分类。
 	 * 1. AD广告
-	 * 2. TODO 可以通过文件夹分类，实现文件存放散裂化，提高IO读取效率
+	 * 2. THUMBNAIL头像、图标等小图，使用打包存储，见DiskBlobStore
+	 * 目录内文件按hash前缀分两级子目录存放，见DiskJournal
 	 */
 	public static final int DISK_CACHE_TYPE_COMMON = 0;
 	public static final int DISK_CACHE_TYPE_AD = DISK_CACHE_TYPE_COMMON + 1;
+	public static final int DISK_CACHE_TYPE_THUMBNAIL = DISK_CACHE_TYPE_AD + 1;
 
 	private final static String TAG = "DiskCache";
 	private final static long MAX_SIZE = 20 * 1024 * 1024;//20M
 	private final static long MAX_SIZE_AD = 10 * 1024 * 1024;//10M
+	private final static long MAX_SIZE_THUMBNAIL = 10 * 1024 * 1024;//10M
 
 	// 手机存储
 	private SparseArray<File> mCacheDirMap = new SparseArray<File>(3);
@@ -53,18 +60,30 @@ public class DiskCache
 	//存储文件夹名(默认)
 	private final static String CACHE_DIR_DEFAULT = "images" + File.separator + "default";
 	private final static String CACHE_DIR_AD = "images" + File.separator + "ad";
+	private final static String CACHE_DIR_THUMBNAIL = "images" + File.separator + "thumbnail";
+	//打包存储的段文件所在子目录
+	private final static String BLOB_DIR = "blob";
 
 	//正在写文件扩展名
 	private final static String WRITING_FILE_EXTNAME = ".w";
 	//正常显示文件扩展名
 	private final static String READING_FILE_EXTNAME = ".r";
-	//磁盘中图片大小统计
-	private volatile long mSize = 0;
-	//保存删除线程
-	private Thread mDeleteThread = null;
+	//响应元数据文件扩展名，见DiskCacheMeta
+	private final static String META_FILE_EXTNAME = ".m";
+	//未下载完文件的续传信息扩展名，内容为DiskCacheMeta，包含校验值和完整长度
+	private final static String PARTIAL_FILE_EXTNAME = ".p";
+	//写文件缓冲区大小
+	private final static int BUFFER_SIZE = 8192;
+	//预览相对正常解码的额外采样倍数
+	private final static int PREVIEW_SAMPLE_FACTOR = 4;
+	//缓存目录索引，key为目录路径
+	private HashMap<String, DiskJournal> mJournalMap = new HashMap<String, DiskJournal>();
+	//小图打包存储，key为目录路径
+	private HashMap<String, DiskBlobStore> mBlobStoreMap = new HashMap<String, DiskBlobStore>();
 
 	private static SparseArray<String> sDirNameTypePairs = new SparseArray<String>(3);
 	private static SparseArray<Long> sDirMaxSizePairs = new SparseArray<Long>(3);
+	private static SparseBooleanArray sDirPackedPairs = new SparseBooleanArray(3);
 	static {
 	    // default
 		sDirNameTypePairs.put(DISK_CACHE_TYPE_COMMON, CACHE_DIR_DEFAULT);
@@ -72,6 +91,27 @@ public class DiskCache
 		// ad
 		sDirNameTypePairs.put(DISK_CACHE_TYPE_AD, CACHE_DIR_AD);
 		sDirMaxSizePairs.put(DISK_CACHE_TYPE_AD, MAX_SIZE_AD);
+		// thumbnail
+		sDirNameTypePairs.put(DISK_CACHE_TYPE_THUMBNAIL, CACHE_DIR_THUMBNAIL);
+		sDirMaxSizePairs.put(DISK_CACHE_TYPE_THUMBNAIL, MAX_SIZE_THUMBNAIL);
+		sDirPackedPairs.put(DISK_CACHE_TYPE_THUMBNAIL, true);
+	}
+
+	/**
+	 * 未下载完的文件，可以从offset处续传
+	 */
+	static class Partial
+	{
+		//下载开始时的响应元数据，contentLength为完整长度
+		final DiskCacheMeta meta;
+		//已下载的长度
+		final long offset;
+
+		Partial(DiskCacheMeta meta, long offset)
+		{
+			this.meta = meta;
+			this.offset = offset;
+		}
 	}
 
     public DiskCache() {
@@ -87,8 +127,19 @@ public class DiskCache
         sDirMaxSizePairs.put(diskCacheType, maxSize * 1024L * 1024L);
     }
 
+    /**
+     * 设置diskCacheType是否使用打包存储，不超过{@link DiskBlobStore#MAX_BLOB_SIZE}的图片
+     * 追加到段文件中保存，更大的图片仍按普通文件保存。需在第一次读写该类型之前设置。
+     * 
+     * @param packed
+     * @param diskCacheType
+     */
+    public void setPackedStore(boolean packed, int diskCacheType) {
+        sDirPackedPairs.put(diskCacheType, packed);
+    }
+
 	/**
-	 * 检查大小
+	 * 检查大小，超出上限时按LRU顺序淘汰，大小统计和淘汰顺序都来自内存索引，不扫描目录
 	 * 
 	 * @return
 	 */
@@ -97,84 +148,40 @@ public class DiskCache
 	    if(null == context) {
 	        return;
 	    }
-		if (getDirMaxSizeByType(diskCacheType) < mSize || mSize == 0)
+		DiskJournal journal = getJournal(context, diskCacheType);
+		DiskBlobStore blobStore = getBlobStore(context, diskCacheType);
+		long maxSize = getDirMaxSizeByType(diskCacheType);
+		if (blobStore == null)
 		{
-		    DebugLog.log(TAG, "checkSize   size exceed");
-			//异步删除老文件
-			if (mDeleteThread == null)
+			if (journal != null)
 			{
-			    DebugLog.log(TAG, "checkSize   size exceed thread start");
-
-				mDeleteThread = new Thread(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
-						try
-						{
-							File dir = getDir(context, diskCacheType);
-							ArrayList<File> list = new ArrayList<File>();
-							//遍历所有文件
-							if (dir != null)
-							{
-								File[] files = dir.listFiles();
-								if (files != null)
-								{
-									mSize = 0;
-									for (File temp : files)
-									{
-										if (temp != null && temp.exists() && temp.isFile())
-										{
-											mSize += temp.length();
-											list.add(temp);
-										}
-									}
-								}
-							}
-							//只有大小超大时执行。
-							if (mSize > getDirMaxSizeByType(diskCacheType))
-							{
-								Collections.sort(list, new Sorter());
-								File fd = null;
-								int count = list.size() / 3;
-								for (int i = 0; i < count; i++)
-								{
-									fd = list.get(i);
-									if (fd != null && fd.exists() && fd.isFile())
-									{
-										long mod = fd.lastModified();
-										DebugLog.log(TAG, "checkSize run mod:" + mod);
-										mSize -= fd.length();
-										fd.delete();
-									}
-								}
-							}
-						}
-						catch (Exception e)
-						{
-
-						}
-
-						mDeleteThread = null;
-					}
-				});
-				mDeleteThread.start();
-			}
-			else
-			{
-			    DebugLog.log(TAG, "checkSize   size exceed thread has excute");
+				journal.trimToSize(maxSize);
 			}
+			return;
 		}
+		//打包存储与普通文件共用目录上限，按各自当前占用的磁盘大小分配
+		long journalSize = journal != null ? journal.size() : 0;
+		long blobSize = blobStore.diskSize();
+		long total = journalSize + blobSize;
+		if (total <= maxSize)
+		{
+			return;
+		}
+		if (journal != null)
+		{
+			journal.trimToSize(maxSize * journalSize / total);
+		}
+		blobStore.trimToSize(maxSize * blobSize / total);
 	}
 
 	/**
-	 * 添加图片到磁盘
+	 * 添加图片到磁盘，会对bitmap重新压缩
 	 * 
 	 * @param context
 	 * @param url
+	 * @deprecated 重新压缩耗费CPU且保存的是缩放后的图片，请使用{@link #putBytesToDisk}保存原始数据
 	 */
+	@Deprecated
 	public void putBitmapToDisk(Context context, String url, Bitmap bp,
 			ImageType type, int diskCacheType) {
 		if (bp == null || url == null || context == null)
@@ -204,6 +211,7 @@ public class DiskCache
 			    DebugLog.log(TAG, "putBitmapToDisk bitmapfile.exists()");
 				bitmapfile.delete();
 			}
+			ensureParentDir(bitmapfile);
 			FileOutputStream fos = null;
 			try
 			{
@@ -231,19 +239,12 @@ public class DiskCache
 
 				temp = System.currentTimeMillis();
 
-				File renamefile = getRFile(context, hash, diskCacheType);
-				if (renamefile != null)
-				{
-					if (renamefile.exists())
-					{
-						renamefile.delete();
-					}
-					bitmapfile.renameTo(getRFile(context, hash, diskCacheType));
+				fos.close();
+				fos = null;
+				commitWritingFile(context, hash, diskCacheType);
 
-					DebugLog.log(TAG, "putBitmapToDisk rename:" + (System.currentTimeMillis() - temp));
-					mSize += getRFile(context, hash, diskCacheType).length();
-					temp = System.currentTimeMillis();
-				}
+				DebugLog.log(TAG, "putBitmapToDisk rename:" + (System.currentTimeMillis() - temp));
+				temp = System.currentTimeMillis();
 			}
 			catch (Exception e)
 			{
@@ -270,6 +271,435 @@ public class DiskCache
 	}
 
 
+	/**
+	 * 保存服务器返回的原始图片数据到磁盘，先写入.w文件，写完后重命名为.r文件
+	 * 
+	 * @param context
+	 * @param url
+	 * @param in 图片数据流，由调用方关闭
+	 * @param diskCacheType
+	 * @return 是否保存成功
+	 */
+	public boolean putBytesToDisk(Context context, String url, InputStream in, int diskCacheType)
+	{
+		return putBytesToDisk(context, url, in, diskCacheType, null);
+	}
+
+	/**
+	 * 保存服务器返回的原始图片数据和响应元数据到磁盘
+	 * 
+	 * @param context
+	 * @param url
+	 * @param in 图片数据流，由调用方关闭
+	 * @param diskCacheType
+	 * @param meta 响应元数据，为null表示一直有效；打包存储的小图不保存元数据
+	 * @return 是否保存成功
+	 */
+	boolean putBytesToDisk(Context context, String url, InputStream in, int diskCacheType,
+			DiskCacheMeta meta)
+	{
+		return putBytesToDisk(context, url, in, diskCacheType, meta, -1);
+	}
+
+	/**
+	 * 保存服务器返回的原始图片数据和响应元数据到磁盘。长度已知且有强校验值时先记录续传信息，
+	 * 中途失败时保留已写入的部分，之后可通过{@link #getPartial}和{@link #appendBytesToDisk}续传
+	 * 
+	 * @param context
+	 * @param url
+	 * @param in 图片数据流，由调用方关闭
+	 * @param diskCacheType
+	 * @param meta 响应元数据，为null表示一直有效；打包存储的小图不保存元数据
+	 * @param contentLength 响应体长度，未知时为-1；已知时写入的长度不一致视为失败
+	 * @return 是否保存成功
+	 */
+	boolean putBytesToDisk(Context context, String url, InputStream in, int diskCacheType,
+			DiskCacheMeta meta, long contentLength)
+	{
+		if (in == null || url == null || context == null)
+		{
+		    DebugLog.log(TAG, "putBytesToDisk   null");
+			return false;
+		}
+
+		checkSize(context, diskCacheType);
+
+		String hash = hashKeyForDisk(url);
+
+		DiskBlobStore blobStore = getBlobStore(context, diskCacheType);
+		if (blobStore != null)
+		{
+			//先读取不超过MAX_BLOB_SIZE的数据，读完则打包存储，否则连同剩余数据写入普通文件
+			byte[] head = new byte[DiskBlobStore.MAX_BLOB_SIZE + 1];
+			int length = 0;
+			try
+			{
+				int count;
+				while (length < head.length
+						&& (count = in.read(head, length, head.length - length)) != -1)
+				{
+					length += count;
+				}
+			}
+			catch (IOException e)
+			{
+			    DebugLog.log(TAG, "putBytesToDisk e:" + e);
+				return false;
+			}
+			if (length <= DiskBlobStore.MAX_BLOB_SIZE)
+			{
+				boolean success = blobStore.put(hash, head, length);
+				DiskJournal journal = getJournal(context, diskCacheType);
+				if (success && journal != null && journal.contains(hash))
+				{
+					journal.remove(hash);
+				}
+				if (success)
+				{
+					writeMeta(context, hash, diskCacheType, null);
+					removePartialFiles(context, hash, diskCacheType);
+				}
+				DebugLog.log(TAG, "putBytesToDisk packed " + url + " success:" + success);
+				return success;
+			}
+			blobStore.remove(hash);
+			in = new SequenceInputStream(new ByteArrayInputStream(head, 0, length), in);
+		}
+
+		File writingFile = getWFile(context, hash, diskCacheType);
+		if (writingFile == null)
+		{
+			return false;
+		}
+		if (writingFile.exists())
+		{
+			writingFile.delete();
+		}
+		ensureParentDir(writingFile);
+
+		//先记录续传信息，写入中途进程退出时也能续传
+		boolean resumable = false;
+		File partialFile = getFile(context, hash, PARTIAL_FILE_EXTNAME, diskCacheType);
+		if (partialFile != null)
+		{
+			if (contentLength > 0 && meta != null && meta.getRangeValidator() != null)
+			{
+				meta.contentLength = contentLength;
+				resumable = meta.write(partialFile);
+			}
+			else if (partialFile.exists())
+			{
+				partialFile.delete();
+			}
+		}
+
+		long temp = System.currentTimeMillis();
+		boolean success = writeStream(in, writingFile, false);
+		success = finishWriting(context, hash, diskCacheType, meta, success, contentLength,
+				resumable);
+
+		DebugLog.log(TAG, "putBytesToDisk " + url + " success:" + success + " time:"
+				+ (System.currentTimeMillis() - temp));
+		return success;
+	}
+
+	/**
+	 * 获得url未下载完的部分
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 * @return 没有可续传的部分时返回null，无效的部分会被删除
+	 */
+	Partial getPartial(Context context, String url, int diskCacheType)
+	{
+		if (url == null || context == null)
+		{
+			return null;
+		}
+		String hash = hashKeyForDisk(url);
+		File partialFile = getFile(context, hash, PARTIAL_FILE_EXTNAME, diskCacheType);
+		if (partialFile == null || !partialFile.exists())
+		{
+			return null;
+		}
+		File writingFile = getWFile(context, hash, diskCacheType);
+		DiskCacheMeta meta = null;
+		long offset = 0;
+		if (System.currentTimeMillis() - partialFile.lastModified() < DiskJournal.PARTIAL_MAX_AGE
+				&& writingFile != null)
+		{
+			meta = DiskCacheMeta.read(partialFile);
+			offset = writingFile.length();
+		}
+		if (meta == null || meta.getRangeValidator() == null || offset <= 0
+				|| offset >= meta.contentLength)
+		{
+			removePartialFiles(context, hash, diskCacheType);
+			return null;
+		}
+		DebugLog.log(TAG, "getPartial " + url + " offset:" + offset + " " + meta);
+		return new Partial(meta, offset);
+	}
+
+	/**
+	 * 服务器返回206后把剩余数据追加到未下载完的文件，写完后提交
+	 * 
+	 * @param context
+	 * @param url
+	 * @param in 从start开始的数据流，由调用方关闭
+	 * @param diskCacheType
+	 * @param meta 206响应的元数据
+	 * @param start Content-Range的起始位置
+	 * @param total Content-Range的完整长度
+	 * @return 是否保存成功，失败时保留已写入的部分
+	 */
+	boolean appendBytesToDisk(Context context, String url, InputStream in, int diskCacheType,
+			DiskCacheMeta meta, long start, long total)
+	{
+		if (in == null || url == null || context == null || meta == null)
+		{
+		    DebugLog.log(TAG, "appendBytesToDisk   null");
+			return false;
+		}
+		String hash = hashKeyForDisk(url);
+		File writingFile = getWFile(context, hash, diskCacheType);
+		File partialFile = getFile(context, hash, PARTIAL_FILE_EXTNAME, diskCacheType);
+		if (writingFile == null || partialFile == null)
+		{
+			return false;
+		}
+		DiskCacheMeta partial = DiskCacheMeta.read(partialFile);
+		if (partial == null || partial.contentLength != total || writingFile.length() < start)
+		{
+		    DebugLog.log(TAG, "appendBytesToDisk mismatch " + url + " start:" + start
+		    		+ " total:" + total + " " + partial);
+			removePartialFiles(context, hash, diskCacheType);
+			return false;
+		}
+
+		checkSize(context, diskCacheType);
+
+		long temp = System.currentTimeMillis();
+		//重试时可能已经多写了一部分，截断到start
+		boolean success = truncate(writingFile, start) && writeStream(in, writingFile, true);
+		meta.contentLength = total;
+		success = finishWriting(context, hash, diskCacheType, meta, success, total, true);
+
+		DebugLog.log(TAG, "appendBytesToDisk " + url + " start:" + start + " success:"
+				+ success + " time:" + (System.currentTimeMillis() - temp));
+		return success;
+	}
+
+	/**
+	 * 删除url未下载完的部分，服务器不接受续传请求（416）时调用
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 */
+	void removePartial(Context context, String url, int diskCacheType)
+	{
+		if (url == null || context == null)
+		{
+			return;
+		}
+		removePartialFiles(context, hashKeyForDisk(url), diskCacheType);
+	}
+
+	private void removePartialFiles(Context context, String hash, int diskCacheType)
+	{
+		File partialFile = getFile(context, hash, PARTIAL_FILE_EXTNAME, diskCacheType);
+		if (partialFile != null && partialFile.exists())
+		{
+			partialFile.delete();
+		}
+		File writingFile = getWFile(context, hash, diskCacheType);
+		if (writingFile != null && writingFile.exists())
+		{
+			writingFile.delete();
+		}
+	}
+
+	/**
+	 * 写入结束后校验长度并提交；失败时可续传的部分保留，其余删除
+	 * 
+	 * @param context
+	 * @param hash
+	 * @param diskCacheType
+	 * @param meta
+	 * @param success 数据流是否完整读完
+	 * @param contentLength 完整长度，未知时为-1
+	 * @param resumable 是否已记录续传信息
+	 * @return 是否保存成功
+	 */
+	private boolean finishWriting(Context context, String hash, int diskCacheType,
+			DiskCacheMeta meta, boolean success, long contentLength, boolean resumable)
+	{
+		File writingFile = getWFile(context, hash, diskCacheType);
+		long length = writingFile.length();
+		if (success)
+		{
+			success = contentLength < 0 ? length > 0 : length == contentLength;
+		}
+		if (success)
+		{
+			success = commitWritingFile(context, hash, diskCacheType);
+		}
+		if (success)
+		{
+			writeMeta(context, hash, diskCacheType, meta);
+			removePartialFiles(context, hash, diskCacheType);
+		}
+		else if (resumable && length > 0 && length < contentLength)
+		{
+		    DebugLog.log(TAG, "finishWriting keep partial " + hash + " " + length + "/"
+		    		+ contentLength);
+		}
+		else
+		{
+			removePartialFiles(context, hash, diskCacheType);
+		}
+		return success;
+	}
+
+	/**
+	 * 把数据流写入文件
+	 * 
+	 * @param in
+	 * @param file
+	 * @param append 是否追加到文件末尾
+	 * @return 是否完整读完数据流
+	 */
+	private boolean writeStream(InputStream in, File file, boolean append)
+	{
+		boolean success = false;
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(file, append);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1)
+			{
+				fos.write(buffer, 0, count);
+			}
+			fos.flush();
+			success = true;
+		}
+		catch (IOException e)
+		{
+		    DebugLog.log(TAG, "writeStream e:" + e);
+		}
+		finally
+		{
+			if (fos != null)
+			{
+				try
+				{
+					fos.close();
+				}
+				catch (IOException e1)
+				{
+				    DebugLog.log(TAG, "writeStream e1:" + e1);
+				}
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * 文件长于length时截断
+	 * 
+	 * @param file
+	 * @param length
+	 * @return 是否成功
+	 */
+	private boolean truncate(File file, long length)
+	{
+		if (file.length() <= length)
+		{
+			return true;
+		}
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(length);
+			return true;
+		}
+		catch (IOException e)
+		{
+		    DebugLog.log(TAG, "truncate e:" + e);
+			return false;
+		}
+		finally
+		{
+			if (raf != null)
+			{
+				try
+				{
+					raf.close();
+				}
+				catch (IOException e1)
+				{
+				    DebugLog.log(TAG, "truncate e1:" + e1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 保存原始图片数据到磁盘
+	 * 
+	 * @param context
+	 * @param url
+	 * @param data 图片数据
+	 * @param diskCacheType
+	 * @return 是否保存成功
+	 */
+	public boolean putBytesToDisk(Context context, String url, byte[] data, int diskCacheType)
+	{
+		if (data == null || data.length < 1)
+		{
+			return false;
+		}
+		return putBytesToDisk(context, url, new ByteArrayInputStream(data), diskCacheType);
+	}
+
+	/**
+	 * 将已写完的文件（.w）重命名为可读文件（.r）
+	 * 
+	 * @param context
+	 * @param hash
+	 * @param diskCacheType
+	 * @return 是否成功
+	 */
+	private boolean commitWritingFile(Context context, String hash, int diskCacheType)
+	{
+		File writingFile = getWFile(context, hash, diskCacheType);
+		File readingFile = getRFile(context, hash, diskCacheType);
+		if (writingFile == null || readingFile == null || !writingFile.exists())
+		{
+			return false;
+		}
+		if (readingFile.exists())
+		{
+			readingFile.delete();
+		}
+		if (!writingFile.renameTo(readingFile))
+		{
+		    DebugLog.log(TAG, "commitWritingFile rename fail: " + hash);
+			return false;
+		}
+		DiskJournal journal = getJournal(context, diskCacheType);
+		if (journal != null)
+		{
+			journal.recordPut(hash, readingFile.length());
+		}
+		return true;
+	}
+
 	/**
 	 * 从磁盘读取图片
 	 * @param context 上下文
@@ -280,8 +710,27 @@ public class DiskCache
 	 * @param isLoadLocalExistImg 是否是本地存储的图片，这个时候 url 就是一个本地文件夹路径，而不是网络地址
 	 * @return
 	 */
-	@SuppressWarnings("deprecation")
 	public Bitmap getBitmapFromDisk(Context context, String url,ImageType type, boolean isFullQuality, int diskCacheType,boolean isLoadLocalExistImg)
+	{
+		return getBitmapFromDisk(context, url, type, isFullQuality, diskCacheType,
+				isLoadLocalExistImg, 0, 0);
+	}
+
+	/**
+	 * 从磁盘读取图片，按目标尺寸采样解码
+	 * @param context 上下文
+	 * @param url 图片地址
+	 * @param type 图片类型
+	 * @param isFullQuality 是否全品质加载图片，为true时忽略目标尺寸
+	 * @param diskCacheType 磁盘缓存类型
+	 * @param isLoadLocalExistImg 是否是本地存储的图片，这个时候 url 就是一个本地文件夹路径，而不是网络地址
+	 * @param targetWidth 目标宽度，小于等于0表示不限制
+	 * @param targetHeight 目标高度，小于等于0表示不限制，宽高都不限制时按480x800采样
+	 * @return
+	 */
+	public Bitmap getBitmapFromDisk(Context context, String url, ImageType type,
+			boolean isFullQuality, int diskCacheType, boolean isLoadLocalExistImg,
+			int targetWidth, int targetHeight)
 	{
 	    if(null == context) {
             return null;
@@ -291,31 +740,49 @@ public class DiskCache
 		DebugLog.log(TAG, "getBitmapFromDisk " + url);
 
 		File bitmapfile = null;
+		DiskJournal journal = null;
+		String hash = null;
 		if(isLoadLocalExistImg)
 		{
 			bitmapfile = new File(url);
 		} else
 		{
-			String hash = hashKeyForDisk(url);
-			bitmapfile = getRFile(context, hash, diskCacheType);
+			hash = hashKeyForDisk(url);
+			DiskBlobStore blobStore = getBlobStore(context, diskCacheType);
+			if (blobStore != null)
+			{
+				byte[] data = blobStore.get(hash);
+				if (data != null)
+				{
+					ret = decodeBlob(data, type, isFullQuality, targetWidth, targetHeight);
+					if (ret == null)
+					{
+						blobStore.remove(hash);
+					}
+					return ret;
+				}
+			}
+			journal = getJournal(context, diskCacheType);
+			//索引中没有时不访问文件系统
+			if (journal == null || !journal.contains(hash))
+			{
+				return null;
+			}
+			bitmapfile = journal.getReadableEntryFile(hash);
 		}
-		if (bitmapfile != null && bitmapfile.exists())
+		if (bitmapfile != null && (journal != null || bitmapfile.exists()))
 		{
 			final BitmapFactory.Options options = new BitmapFactory.Options();
 
 			try
 			{
-				if (!isFullQuality) {
-			        options.inJustDecodeBounds = true;
-                    BitmapFactory.decodeFile(bitmapfile.getAbsolutePath(), options);
-                    options.inSampleSize = UITools.computeSampleSize(options, 480, 480 * 800);
-                    options.inPreferredConfig = Bitmap.Config.RGB_565;
-				}
+				//先取宽高，用于计算缩放比例和选择可复用的Bitmap
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(bitmapfile.getAbsolutePath(), options);
+				applySampleSize(options, isFullQuality, targetWidth, targetHeight);
 				options.inJustDecodeBounds = false;
 				options.inDither = false;
-				options.inPurgeable = true;
-				options.inInputShareable = true;
-				ret = BitmapFactory.decodeFile(bitmapfile.getAbsolutePath(), options);
+				ret = BitmapPool.getInstance().decodeFile(bitmapfile.getAbsolutePath(), options);
 				switch(type)
 				{
 					case CIRCLE:
@@ -344,11 +811,146 @@ public class DiskCache
 			    DebugLog.log(TAG, "getBitmapFromDisk " + oe);
 				System.gc();
 			}
+
+			if (journal != null)
+			{
+				if (ret != null)
+				{
+					journal.recordRead(hash);
+				}
+				else if (!bitmapfile.exists())
+				{
+					//文件已被外部删除，同步索引
+					journal.remove(hash);
+				}
+			}
 		}
 
 		return ret;
 	}
 	
+	/**
+	 * 从正在下载的文件（.w）解码低分辨率预览，未下载的部分由解码器填充
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 * @param targetWidth 目标宽度，小于等于0表示不限制
+	 * @param targetHeight 目标高度，小于等于0表示不限制
+	 * @return 数据不足以解码时返回null
+	 */
+	Bitmap getPreviewFromDisk(Context context, String url, int diskCacheType, int targetWidth,
+			int targetHeight)
+	{
+		if (url == null || context == null)
+		{
+			return null;
+		}
+		File writingFile = getWFile(context, hashKeyForDisk(url), diskCacheType);
+		if (writingFile == null || !writingFile.exists())
+		{
+			return null;
+		}
+		Bitmap ret = null;
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		try
+		{
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(writingFile.getAbsolutePath(), options);
+			if (options.outWidth <= 0 || options.outHeight <= 0)
+			{
+				return null;
+			}
+			applySampleSize(options, false, targetWidth, targetHeight);
+			options.inSampleSize = Math.max(1, options.inSampleSize) * PREVIEW_SAMPLE_FACTOR;
+			options.inJustDecodeBounds = false;
+			options.inDither = false;
+			ret = BitmapFactory.decodeFile(writingFile.getAbsolutePath(), options);
+		}
+		catch (Exception e)
+		{
+		    DebugLog.log(TAG, "getPreviewFromDisk " + e);
+		}
+		catch (OutOfMemoryError oe)
+		{
+		    DebugLog.log(TAG, "getPreviewFromDisk " + oe);
+			System.gc();
+		}
+		return ret;
+	}
+
+	/**
+	 * 根据已解码出的宽高设置采样率，有目标尺寸时采样到不小于目标尺寸，否则按480x800采样
+	 * 
+	 * @param options
+	 * @param isFullQuality
+	 * @param targetWidth
+	 * @param targetHeight
+	 */
+	private void applySampleSize(BitmapFactory.Options options, boolean isFullQuality,
+			int targetWidth, int targetHeight)
+	{
+		if (isFullQuality)
+		{
+			return;
+		}
+		if (targetWidth > 0 || targetHeight > 0)
+		{
+			options.inSampleSize = UITools.computeSampleSizeForTarget(options, targetWidth,
+					targetHeight);
+		}
+		else
+		{
+			options.inSampleSize = UITools.computeSampleSize(options, 480, 480 * 800);
+		}
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+	}
+
+	/**
+	 * 解码打包存储的图片数据
+	 * 
+	 * @param data
+	 * @param type
+	 * @param isFullQuality
+	 * @param targetWidth
+	 * @param targetHeight
+	 * @return
+	 */
+	private Bitmap decodeBlob(byte[] data, ImageType type, boolean isFullQuality,
+			int targetWidth, int targetHeight)
+	{
+		Bitmap ret = null;
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		try
+		{
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			applySampleSize(options, isFullQuality, targetWidth, targetHeight);
+			options.inJustDecodeBounds = false;
+			options.inDither = false;
+			ret = BitmapPool.getInstance().decodeByteArray(data, 0, data.length, options);
+			if (ret != null && type == ImageType.CIRCLE)
+			{
+				Bitmap temp = toRoundBitmap(ret);
+				if (temp != null)
+				{
+					ret.recycle();
+					ret = temp;
+				}
+			}
+		}
+		catch (Exception e)
+		{
+		    DebugLog.log(TAG, "decodeBlob " + e);
+		}
+		catch (OutOfMemoryError oe)
+		{
+		    DebugLog.log(TAG, "decodeBlob " + oe);
+			System.gc();
+		}
+		return ret;
+	}
+
 	/**
 	 * 从磁盘读取图片
 	 * 
@@ -368,7 +970,6 @@ public class DiskCache
 	 * @param url
 	 * @return
 	 */
-	@SuppressWarnings("deprecation")
 	public Bitmap getBitmapFromDiskForExistImage(Context context, String url,ImageType type, boolean isFullQuality)
 	{
 	    if(null == context) {
@@ -385,17 +986,13 @@ public class DiskCache
 
 			try
 			{
-				if (!isFullQuality) {
-			        options.inJustDecodeBounds = true;
-                    BitmapFactory.decodeFile(bitmapfile.getAbsolutePath(), options);
-                    options.inSampleSize = UITools.computeSampleSize(options, 480, 480 * 800);
-                    options.inPreferredConfig = Bitmap.Config.RGB_565;
-				}
+				//先取宽高，用于计算缩放比例和选择可复用的Bitmap
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(bitmapfile.getAbsolutePath(), options);
+				applySampleSize(options, isFullQuality, 0, 0);
 				options.inJustDecodeBounds = false;
 				options.inDither = false;
-				options.inPurgeable = true;
-				options.inInputShareable = true;
-				ret = BitmapFactory.decodeFile(bitmapfile.getAbsolutePath(), options);
+				ret = BitmapPool.getInstance().decodeFile(bitmapfile.getAbsolutePath(), options);
 				switch(type)
 				{
 					case CIRCLE:
@@ -522,14 +1119,135 @@ public class DiskCache
 	{
 		String hash = hashKeyForDisk(url);
 
-		DebugLog.log(TAG, "getBitmapFromDisk " + hash);
+		DebugLog.log(TAG, "hasBitmap " + hash);
 
-		File bitmapfile = getRFile(context, hash, diskCacheType);
-		if (bitmapfile != null && bitmapfile.exists())
+		DiskBlobStore blobStore = getBlobStore(context, diskCacheType);
+		if (blobStore != null && blobStore.contains(hash))
 		{
 			return true;
 		}
-		return false;
+		DiskJournal journal = getJournal(context, diskCacheType);
+		return journal != null && journal.contains(hash);
+	}
+
+	/**
+	 * 获得磁盘中图片的文件，用于按区域解码
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 * @return 不在磁盘中或打包存储的小图返回null
+	 */
+	File getCachedFile(Context context, String url, int diskCacheType)
+	{
+		if (url == null || context == null)
+		{
+			return null;
+		}
+		String hash = hashKeyForDisk(url);
+		DiskJournal journal = getJournal(context, diskCacheType);
+		if (journal == null || !journal.contains(hash))
+		{
+			return null;
+		}
+		File file = journal.getReadableEntryFile(hash);
+		if (!file.exists())
+		{
+			journal.remove(hash);
+			return null;
+		}
+		journal.recordRead(hash);
+		return file;
+	}
+
+	/**
+	 * 判断磁盘中的图片是否仍然有效，没有元数据的图片视为一直有效
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 * @return
+	 */
+	public boolean isFresh(Context context, String url, int diskCacheType)
+	{
+		DiskCacheMeta meta = getMeta(context, url, diskCacheType);
+		return meta == null || meta.isFresh(System.currentTimeMillis());
+	}
+
+	/**
+	 * 获得图片的响应元数据
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 * @return 没有元数据时返回null
+	 */
+	DiskCacheMeta getMeta(Context context, String url, int diskCacheType)
+	{
+		if (url == null || context == null)
+		{
+			return null;
+		}
+		return DiskCacheMeta.read(getFile(context, hashKeyForDisk(url), META_FILE_EXTNAME,
+				diskCacheType));
+	}
+
+	/**
+	 * 服务器返回304后更新元数据，不重新写入图片
+	 * 
+	 * @param context
+	 * @param url
+	 * @param diskCacheType
+	 * @param response 304响应
+	 * @return 是否更新成功
+	 */
+	boolean refreshMeta(Context context, String url, int diskCacheType, HttpResponse response)
+	{
+		if (url == null || context == null || response == null)
+		{
+			return false;
+		}
+		String hash = hashKeyForDisk(url);
+		DiskJournal journal = getJournal(context, diskCacheType);
+		if (journal == null || !journal.contains(hash))
+		{
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		DiskCacheMeta meta = getMeta(context, url, diskCacheType);
+		meta = meta == null ? DiskCacheMeta.fromResponse(response, now) : meta.refresh(response,
+				now);
+		DebugLog.log(TAG, "refreshMeta " + url + " " + meta);
+		journal.recordRead(hash);
+		return writeMeta(context, hash, diskCacheType, meta);
+	}
+
+	/**
+	 * 写入元数据，meta为null时删除原有的元数据
+	 * 
+	 * @param context
+	 * @param hash
+	 * @param diskCacheType
+	 * @param meta
+	 * @return
+	 */
+	private boolean writeMeta(Context context, String hash, int diskCacheType, DiskCacheMeta meta)
+	{
+		File metaFile = getFile(context, hash, META_FILE_EXTNAME, diskCacheType);
+		if (metaFile == null)
+		{
+			return false;
+		}
+		if (meta == null)
+		{
+			if (metaFile.exists())
+			{
+				metaFile.delete();
+			}
+			return true;
+		}
+		ensureParentDir(metaFile);
+		return meta.write(metaFile);
 	}
 
 	/**
@@ -601,6 +1319,64 @@ public class DiskCache
         return cacheDir;
 	}
 
+	/**
+	 * 获得缓存目录对应的索引，首次使用时加载journal
+	 * 
+	 * @param context
+	 * @param diskCacheType
+	 * @return
+	 */
+	private DiskJournal getJournal(Context context, int diskCacheType)
+	{
+		File dir = getDir(context, diskCacheType);
+		if (dir == null)
+		{
+			return null;
+		}
+		String key = dir.getAbsolutePath();
+		synchronized (mJournalMap)
+		{
+			DiskJournal journal = mJournalMap.get(key);
+			if (journal == null)
+			{
+				journal = new DiskJournal(dir, READING_FILE_EXTNAME);
+				mJournalMap.put(key, journal);
+			}
+			return journal;
+		}
+	}
+
+	/**
+	 * 获得打包存储，diskCacheType未设置为打包存储时返回null
+	 * 
+	 * @param context
+	 * @param diskCacheType
+	 * @return
+	 */
+	private DiskBlobStore getBlobStore(Context context, int diskCacheType)
+	{
+		if (!sDirPackedPairs.get(diskCacheType))
+		{
+			return null;
+		}
+		File dir = getDir(context, diskCacheType);
+		if (dir == null)
+		{
+			return null;
+		}
+		String key = dir.getAbsolutePath();
+		synchronized (mBlobStoreMap)
+		{
+			DiskBlobStore blobStore = mBlobStoreMap.get(key);
+			if (blobStore == null)
+			{
+				blobStore = new DiskBlobStore(new File(dir, BLOB_DIR));
+				mBlobStoreMap.put(key, blobStore);
+			}
+			return blobStore;
+		}
+	}
+
 	/**
 	 * 通过diskcacheType 文件夹分类获取文件夹名字
 	 * 
@@ -638,7 +1414,7 @@ public class DiskCache
 	 */
 	private File getRFile(Context context, String hash, int diskCacheType)
 	{
-		File file = getFile(context, hash + READING_FILE_EXTNAME, diskCacheType);
+		File file = getFile(context, hash, READING_FILE_EXTNAME, diskCacheType);
 
 		return file;
 	}
@@ -652,24 +1428,26 @@ public class DiskCache
 	 */
 	private File getWFile(Context context, String hash, int diskCacheType)
 	{
-		File file = getFile(context, hash + WRITING_FILE_EXTNAME, diskCacheType);
+		File file = getFile(context, hash, WRITING_FILE_EXTNAME, diskCacheType);
 
 		return file;
 	}
 
 	/**
-	 * 获得文件
+	 * 获得文件，位于hash对应的分片目录下
 	 * 
 	 * @param context
-	 * @param name
+	 * @param hash
+	 * @param extName
 	 * @return
 	 */
-	private File getFile(Context context, String name, int diskCacheType)
+	private File getFile(Context context, String hash, String extName, int diskCacheType)
 	{
 		File file = null;
 		try
 		{
-			file = new File(getDir(context, diskCacheType), name);
+			File shardDir = DiskJournal.getShardDir(getDir(context, diskCacheType), hash);
+			file = new File(shardDir, hash + extName);
 		}
 		catch (Exception e)
 		{
@@ -678,6 +1456,20 @@ public class DiskCache
 		return file;
 	}
 
+	/**
+	 * 分片目录在第一次写入时创建
+	 * 
+	 * @param file
+	 */
+	private void ensureParentDir(File file)
+	{
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists())
+		{
+			parent.mkdirs();
+		}
+	}
+
 	/**
 	 * 将下载地址转换加密
 	 * 
@@ -721,17 +1513,4 @@ public class DiskCache
 		}
 		return sb.toString();
 	}
-
-	/**
-	 * @author zhuchengjin 按照修改时间排序
-	 */
-	static class Sorter implements Comparator<File>
-	{
-		public int compare(File r1, File r2)
-		{
-			long time1 = r1.lastModified();
-			long time2 = r2.lastModified();
-			return (int) (time1 - time2);
-		}
-	}
 }
@@ -0,0 +1,257 @@
+package com.android.kernellib.imageLoader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.text.TextUtils;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 磁盘缓存条目的响应元数据（ETag、Last-Modified、过期时间），保存在缓存文件旁的.m文件中。
+ *
+ * 过期时间按Cache-Control的no-cache/max-age、Expires、Last-Modified估算的顺序确定。
+ * 过期的条目带上If-None-Match/If-Modified-Since重新验证，服务器返回304时只更新元数据。
+ * 没有元数据的条目（旧版本写入或打包存储的小图）视为一直有效。
+ */
+class DiskCacheMeta {
+    private static final String TAG = "DiskCacheMeta";
+
+    // 只有ETag、没有有效期时的默认有效期
+    private static final long DEFAULT_FRESHNESS = 60 * 60 * 1000;
+
+    // 根据Last-Modified估算有效期的比例
+    private static final float HEURISTIC_FRESHNESS_RATIO = 0.1f;
+
+    // 估算的有效期上限
+    private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000;
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_EXPIRES = "expires";
+    private static final String KEY_CONTENT_LENGTH = "contentLength";
+
+    String etag;
+
+    String lastModified;
+
+    // 过期时间（System.currentTimeMillis），Long.MAX_VALUE表示不过期
+    long expires = Long.MAX_VALUE;
+
+    // 完整的响应体长度，断点续传时校验已下载的部分，未知时为-1
+    long contentLength = -1;
+
+    boolean isFresh(long now) {
+        return now < expires;
+    }
+
+    /**
+     * @return 是否可以发起条件请求
+     */
+    boolean hasValidator() {
+        return !TextUtils.isEmpty(etag) || !TextUtils.isEmpty(lastModified);
+    }
+
+    /**
+     * 断点续传时If-Range使用的校验值：强ETag优先，其次Last-Modified
+     *
+     * @return 没有可用的校验值时返回null
+     */
+    String getRangeValidator() {
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        if (!TextUtils.isEmpty(lastModified)) {
+            return lastModified;
+        }
+        return null;
+    }
+
+    /**
+     * 根据200响应的头信息生成元数据
+     *
+     * @param response
+     * @param now
+     * @return
+     */
+    static DiskCacheMeta fromResponse(HttpResponse response, long now) {
+        DiskCacheMeta meta = new DiskCacheMeta();
+        meta.etag = getHeader(response, "ETag");
+        meta.lastModified = getHeader(response, "Last-Modified");
+
+        boolean noCache = false;
+        long maxAge = -1;
+        Header[] headers = response.getHeaders("Cache-Control");
+        if (headers != null) {
+            for (Header header : headers) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if ("no-cache".equalsIgnoreCase(name) || "no-store".equalsIgnoreCase(name)) {
+                        noCache = true;
+                    } else if ("max-age".equalsIgnoreCase(name)) {
+                        try {
+                            maxAge = Long.parseLong(element.getValue());
+                        } catch (NumberFormatException e) {
+                            DebugLog.log(TAG, "max-age: " + element.getValue());
+                        }
+                    }
+                }
+            }
+        }
+
+        // 以服务器时间计算相对有效期，避免客户端时钟误差
+        long serverDate = parseDate(getHeader(response, "Date"), now);
+        if (noCache) {
+            meta.expires = now;
+        } else if (maxAge >= 0) {
+            meta.expires = now + maxAge * 1000;
+        } else if (response.containsHeader("Expires")) {
+            long expires = parseDate(getHeader(response, "Expires"), 0);
+            meta.expires = now + Math.max(0, expires - serverDate);
+        } else if (!TextUtils.isEmpty(meta.lastModified)) {
+            long lastModified = parseDate(meta.lastModified, serverDate);
+            long freshness = (long) ((serverDate - lastModified) * HEURISTIC_FRESHNESS_RATIO);
+            meta.expires = now + Math.max(0, Math.min(freshness, MAX_HEURISTIC_FRESHNESS));
+        } else if (!TextUtils.isEmpty(meta.etag)) {
+            meta.expires = now + DEFAULT_FRESHNESS;
+        }
+        return meta;
+    }
+
+    /**
+     * 304响应后更新有效期，响应中没有的校验信息沿用原值
+     *
+     * @param response
+     * @param now
+     * @return
+     */
+    DiskCacheMeta refresh(HttpResponse response, long now) {
+        DiskCacheMeta meta = fromResponse(response, now);
+        if (TextUtils.isEmpty(meta.etag)) {
+            meta.etag = etag;
+        }
+        if (TextUtils.isEmpty(meta.lastModified)) {
+            meta.lastModified = lastModified;
+        }
+        if (meta.expires == Long.MAX_VALUE && meta.hasValidator()) {
+            // 304通常不带有效期，按默认有效期计算，避免每次都重新验证
+            meta.expires = now + DEFAULT_FRESHNESS;
+        }
+        return meta;
+    }
+
+    /**
+     * @param file
+     * @return 文件不存在或损坏时返回null
+     */
+    static DiskCacheMeta read(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            Properties properties = new Properties();
+            properties.load(in);
+            DiskCacheMeta meta = new DiskCacheMeta();
+            meta.etag = properties.getProperty(KEY_ETAG);
+            meta.lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+            meta.expires = Long.parseLong(properties.getProperty(KEY_EXPIRES));
+            String contentLength = properties.getProperty(KEY_CONTENT_LENGTH);
+            if (!TextUtils.isEmpty(contentLength)) {
+                meta.contentLength = Long.parseLong(contentLength);
+            }
+            return meta;
+        } catch (Exception e) {
+            DebugLog.log(TAG, "read " + file + " e:" + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "read e:" + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 先写临时文件再重命名
+     *
+     * @param file
+     * @return
+     */
+    boolean write(File file) {
+        Properties properties = new Properties();
+        if (!TextUtils.isEmpty(etag)) {
+            properties.setProperty(KEY_ETAG, etag);
+        }
+        if (!TextUtils.isEmpty(lastModified)) {
+            properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+        }
+        properties.setProperty(KEY_EXPIRES, String.valueOf(expires));
+        if (contentLength >= 0) {
+            properties.setProperty(KEY_CONTENT_LENGTH, String.valueOf(contentLength));
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            properties.store(out, null);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                return tmp.renameTo(file);
+            }
+            return true;
+        } catch (IOException e) {
+            DebugLog.log(TAG, "write " + file + " e:" + e);
+            tmp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "write e:" + e);
+                }
+            }
+        }
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static long parseDate(String value, long defaultValue) {
+        if (TextUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return date.getTime();
+        } catch (DateParseException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DiskCacheMeta[etag=" + etag + ",lastModified=" + lastModified + ",expires="
+                + expires + ",contentLength=" + contentLength + "]";
+    }
+}
@@ -0,0 +1,581 @@
+package com.android.kernellib.imageLoader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Process;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 磁盘缓存目录的索引，参考DiskLruCache的journal实现。
+ *
+ * journal文件只追加PUT/READ/REMOVE记录，启动时读入一次，之后文件大小统计、LRU淘汰、
+ * 是否存在的判断都只访问内存。无效记录过多时重写journal进行压缩。
+ *
+ * 缓存文件按hash前缀分两级子目录存放（每级256个），如 ab/cd/abcd....r，避免单个目录文件过多。
+ * 旧版本平铺在根目录的文件在首次打开时由后台线程迁移。
+ *
+ * <pre>
+ *     kernellib.DiskJournal
+ *     1
+ *
+ *     PUT 3400330d1dfc7f3f7f4b8d4d803dfcf6 2342
+ *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *     REMOVE 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * </pre>
+ */
+class DiskJournal {
+    private static final String TAG = "DiskJournal";
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    // 存在该文件表示已迁移为分片目录
+    static final String SHARDED_MARK_FILE = "sharded";
+    static final String MAGIC = "kernellib.DiskJournal";
+    static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // 无效记录超过该值时压缩journal
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    // 超出上限后淘汰到上限的比例（低水位）
+    private static final float LOW_WATER_RATIO = 0.8f;
+
+    // 分片目录层数
+    private static final int SHARD_LEVELS = 2;
+
+    // 每层目录名长度，2位16进制即256个目录
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    // 正在写文件扩展名，迁移时清理旧目录残留
+    private static final String WRITING_FILE_EXTNAME = ".w";
+
+    // 未下载完文件的续传信息扩展名，见DiskCache#getPartial
+    private static final String PARTIAL_FILE_EXTNAME = ".p";
+
+    // 未下载完的文件超过该时间不再续传，打开时清理
+    static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    // 响应元数据文件扩展名，删除缓存文件时一并删除
+    private static final String META_FILE_EXTNAME = ".m";
+
+    // 缓存目录
+    private final File mDirectory;
+
+    // 缓存文件扩展名
+    private final String mEntryExtName;
+
+    // key为文件hash，value为文件大小，按访问顺序排列
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0,
+            0.75f, true);
+
+    private long mSize = 0;
+
+    private int mRedundantOpCount = 0;
+
+    private Writer mJournalWriter = null;
+
+    private boolean mOpened = false;
+
+    // 是否还有未迁移的平铺文件
+    private volatile boolean mLegacyLayout = false;
+
+    DiskJournal(File directory, String entryExtName) {
+        mDirectory = directory;
+        mEntryExtName = entryExtName;
+    }
+
+    /**
+     * 获得hash对应的分片目录
+     *
+     * @param root 缓存根目录
+     * @param hash
+     * @return
+     */
+    static File getShardDir(File root, String hash) {
+        if (hash == null || hash.length() < SHARD_LEVELS * SHARD_NAME_LENGTH) {
+            return root;
+        }
+        File dir = root;
+        for (int i = 0; i < SHARD_LEVELS; i++) {
+            int start = i * SHARD_NAME_LENGTH;
+            dir = new File(dir, hash.substring(start, start + SHARD_NAME_LENGTH));
+        }
+        return dir;
+    }
+
+    /**
+     * 获得缓存文件
+     *
+     * @param hash
+     * @return
+     */
+    File getEntryFile(String hash) {
+        return new File(getShardDir(mDirectory, hash), hash + mEntryExtName);
+    }
+
+    /**
+     * 获得要读取的缓存文件，迁移未完成时先把旧的平铺文件移动到分片目录
+     *
+     * @param hash
+     * @return
+     */
+    File getReadableEntryFile(String hash) {
+        File file = getEntryFile(hash);
+        if (mLegacyLayout && !file.exists()) {
+            moveToShard(new File(mDirectory, hash + mEntryExtName), hash);
+        }
+        return file;
+    }
+
+    /**
+     * 是否存在缓存，只查询内存索引
+     *
+     * @param hash
+     * @return
+     */
+    synchronized boolean contains(String hash) {
+        ensureOpened();
+        return mEntries.containsKey(hash);
+    }
+
+    /**
+     * 当前缓存文件总大小
+     *
+     * @return
+     */
+    synchronized long size() {
+        ensureOpened();
+        return mSize;
+    }
+
+    /**
+     * 记录一次读取，更新LRU顺序
+     *
+     * @param hash
+     */
+    synchronized void recordRead(String hash) {
+        ensureOpened();
+        if (mEntries.get(hash) == null) {
+            return;
+        }
+        mRedundantOpCount++;
+        // READ记录丢失只影响淘汰顺序，不立即flush
+        appendRecord(READ + ' ' + hash, false);
+    }
+
+    /**
+     * 记录新写入的缓存文件
+     *
+     * @param hash
+     * @param size 文件大小
+     */
+    synchronized void recordPut(String hash, long size) {
+        ensureOpened();
+        Long previous = mEntries.put(hash, size);
+        if (previous != null) {
+            mSize -= previous;
+            mRedundantOpCount++;
+        }
+        mSize += size;
+        appendRecord(PUT + ' ' + hash + ' ' + size, true);
+        compactIfNeeded();
+    }
+
+    /**
+     * 删除缓存文件并记录
+     *
+     * @param hash
+     */
+    synchronized void remove(String hash) {
+        ensureOpened();
+        Long previous = mEntries.remove(hash);
+        deleteEntryFile(hash);
+        if (previous != null) {
+            mSize -= previous;
+            mRedundantOpCount += 2;
+            appendRecord(REMOVE + ' ' + hash, true);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * 超出maxSize时按LRU顺序淘汰，直到低于低水位
+     *
+     * @param maxSize
+     */
+    synchronized void trimToSize(long maxSize) {
+        ensureOpened();
+        if (mSize <= maxSize) {
+            return;
+        }
+        long lowWater = (long) (maxSize * LOW_WATER_RATIO);
+        DebugLog.log(TAG, "trimToSize size:" + mSize + " lowWater:" + lowWater);
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > lowWater && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            deleteEntryFile(eldest.getKey());
+            mSize -= eldest.getValue();
+            it.remove();
+            mRedundantOpCount += 2;
+            appendRecord(REMOVE + ' ' + eldest.getKey(), false);
+        }
+        flushJournal();
+        compactIfNeeded();
+    }
+
+    private void ensureOpened() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+        File journalFile = new File(mDirectory, JOURNAL_FILE);
+        if (!journalFile.exists() || !readJournal(journalFile)) {
+            rebuildFromDirectory();
+            rewriteJournal();
+        } else {
+            openJournalWriter(journalFile);
+            compactIfNeeded();
+        }
+        DebugLog.log(TAG, "open " + mDirectory + " entries:" + mEntries.size() + " size:"
+                + mSize);
+
+        if (!new File(mDirectory, SHARDED_MARK_FILE).exists()) {
+            mLegacyLayout = true;
+            startMigration();
+        }
+        startPartialSweep();
+    }
+
+    private void deleteEntryFile(String hash) {
+        File file = getEntryFile(hash);
+        if (file.exists()) {
+            file.delete();
+        }
+        File metaFile = new File(getShardDir(mDirectory, hash), hash + META_FILE_EXTNAME);
+        if (metaFile.exists()) {
+            metaFile.delete();
+        }
+        if (mLegacyLayout) {
+            File legacy = new File(mDirectory, hash + mEntryExtName);
+            if (legacy.exists()) {
+                legacy.delete();
+            }
+        }
+    }
+
+    private boolean moveToShard(File legacy, String hash) {
+        if (!legacy.exists()) {
+            return false;
+        }
+        File dir = getShardDir(mDirectory, hash);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return legacy.renameTo(new File(dir, legacy.getName()));
+    }
+
+    /**
+     * 后台把根目录下平铺的缓存文件迁移到分片目录，只执行一次
+     */
+    private void startMigration() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                int count = 0;
+                File[] files = mDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        String name = file.getName();
+                        if (!file.isFile()) {
+                            continue;
+                        }
+                        if (name.endsWith(mEntryExtName)) {
+                            String hash =
+                                    name.substring(0, name.length() - mEntryExtName.length());
+                            if (moveToShard(file, hash)) {
+                                count++;
+                            }
+                        } else if (name.endsWith(WRITING_FILE_EXTNAME)) {
+                            // 旧版本未写完的文件
+                            file.delete();
+                        }
+                    }
+                }
+                try {
+                    new File(mDirectory, SHARDED_MARK_FILE).createNewFile();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "migration e:" + e);
+                }
+                mLegacyLayout = false;
+                DebugLog.log(TAG, "migration done " + mDirectory + " count:" + count);
+            }
+        }, TAG + ":migration");
+        thread.start();
+    }
+
+    /**
+     * 后台删除分片目录中超过PARTIAL_MAX_AGE的未写完文件和续传信息，每次打开执行一次
+     */
+    private void startPartialSweep() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                ArrayList<File> list = new ArrayList<File>();
+                collectFiles(mDirectory, 0, WRITING_FILE_EXTNAME, list);
+                collectFiles(mDirectory, 0, PARTIAL_FILE_EXTNAME, list);
+                long before = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+                int count = 0;
+                for (File file : list) {
+                    if (file.lastModified() < before && file.delete()) {
+                        count++;
+                    }
+                }
+                DebugLog.log(TAG, "partial sweep done " + mDirectory + " count:" + count);
+            }
+        }, TAG + ":sweep");
+        thread.start();
+    }
+
+    /**
+     * 读入journal
+     *
+     * @param journalFile
+     * @return false journal损坏
+     */
+    private boolean readJournal(File journalFile) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                    "US-ASCII"));
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                DebugLog.log(TAG, "readJournal unexpected header");
+                return false;
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readRecord(line)) {
+                    // 最后一行可能因进程退出而不完整，忽略，随后压缩时重写
+                    DebugLog.log(TAG, "readJournal skip line: " + line);
+                    mRedundantOpCount += REDUNDANT_OP_COMPACT_THRESHOLD;
+                    continue;
+                }
+                lineCount++;
+            }
+            mRedundantOpCount += lineCount - mEntries.size();
+            return true;
+        } catch (IOException e) {
+            DebugLog.log(TAG, "readJournal e:" + e);
+            mEntries.clear();
+            mSize = 0;
+            mRedundantOpCount = 0;
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "readJournal e:" + e);
+                }
+            }
+        }
+    }
+
+    private boolean readRecord(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return false;
+        }
+        String hash = parts[1];
+        if (PUT.equals(parts[0]) && parts.length == 3) {
+            long size;
+            try {
+                size = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            Long previous = mEntries.put(hash, size);
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mSize += size;
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            mEntries.get(hash);
+        } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            Long previous = mEntries.remove(hash);
+            if (previous != null) {
+                mSize -= previous;
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * journal不存在或损坏时，逐个分片目录扫描重建索引，按修改时间排列。
+     * 根目录下旧版本平铺的文件也计入索引，随后由迁移线程移动。
+     */
+    private void rebuildFromDirectory() {
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOpCount = 0;
+        ArrayList<File> list = new ArrayList<File>();
+        collectFiles(mDirectory, 0, mEntryExtName, list);
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : list) {
+            String name = file.getName();
+            String hash = name.substring(0, name.length() - mEntryExtName.length());
+            long size = file.length();
+            mEntries.put(hash, size);
+            mSize += size;
+        }
+    }
+
+    private void collectFiles(File dir, int level, String extName, ArrayList<File> list) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                if (file.getName().endsWith(extName)) {
+                    list.add(file);
+                }
+            } else if (level < SHARD_LEVELS && file.getName().length() == SHARD_NAME_LENGTH) {
+                collectFiles(file, level + 1, extName, list);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size()) {
+            rewriteJournal();
+        }
+    }
+
+    /**
+     * 用当前索引重写journal，先写临时文件再重命名
+     */
+    private void rewriteJournal() {
+        closeJournalWriter();
+
+        File journalFile = new File(mDirectory, JOURNAL_FILE);
+        File journalFileTmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journalFileTmp), "US-ASCII"));
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!journalFileTmp.renameTo(journalFile)) {
+                journalFile.delete();
+                journalFileTmp.renameTo(journalFile);
+            }
+            mRedundantOpCount = 0;
+        } catch (IOException e) {
+            DebugLog.log(TAG, "rewriteJournal e:" + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    DebugLog.log(TAG, "rewriteJournal e:" + e);
+                }
+            }
+        }
+        openJournalWriter(journalFile);
+    }
+
+    private void openJournalWriter(File journalFile) {
+        try {
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journalFile, true), "US-ASCII"));
+        } catch (IOException e) {
+            DebugLog.log(TAG, "openJournalWriter e:" + e);
+            mJournalWriter = null;
+        }
+    }
+
+    private void closeJournalWriter() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException e) {
+                DebugLog.log(TAG, "closeJournalWriter e:" + e);
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    private void appendRecord(String record, boolean flush) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(record);
+            mJournalWriter.write('\n');
+            if (flush) {
+                mJournalWriter.flush();
+            }
+        } catch (IOException e) {
+            DebugLog.log(TAG, "appendRecord e:" + e);
+        }
+    }
+
+    private void flushJournal() {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            DebugLog.log(TAG, "flushJournal e:" + e);
+        }
+    }
+}
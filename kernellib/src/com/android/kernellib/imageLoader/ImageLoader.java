@@ -1,19 +1,29 @@
 package com.android.kernellib.imageLoader;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build;
@@ -21,12 +31,18 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Process;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
-import com.android.kernellib.http.ByteArrayResponseHandler;
+import com.android.kernellib.http.AbstractResponseHandler;
 import com.android.kernellib.http.HttpClientWrap;
+import com.android.kernellib.http.HttpDispatcher;
+import com.android.kernellib.http.NetworkStateCache;
 import com.android.kernellib.utility.DebugLog;
-import com.android.kernellib.utility.UITools;
+import com.android.kernellib.utility.NetworkHelper;
 
 public class ImageLoader {
     /**
@@ -46,8 +62,69 @@ public class ImageLoader {
         public void onErrorResponse(int errorCode);
     }
 
+    /**
+     * 渐进显示：下载较大的图片时，在下载过程中先回调低分辨率的预览，完整的图片仍通过
+     * onSuccessResponse返回并替换预览。传入该接口的回调即开启渐进显示，绑定的ImageView也会先显示预览。
+     * 下载失败时已显示的预览不会被清除。
+     */
+    public interface ProgressiveImageListener extends ImageListener {
+        /**
+         * 在主线程回调，可能多次，分辨率低于最终的图片
+         * 
+         * @param preview
+         * @param url
+         */
+        public void onPreviewResponse(Bitmap preview, String url);
+    }
+
+    /**
+     * 网络请求优先级，如首页大图用HIGH，预加载用LOW
+     */
+    public enum Priority {
+        LOW, NORMAL, HIGH
+    }
+
+    /**
+     * 预加载方式
+     */
+    public enum PrefetchMode {
+        // 只下载到磁盘缓存，不解码
+        DISK_ONLY,
+        // 下载并解码到内存缓存
+        MEMORY_AND_DISK
+    }
+
     private static final String TAG = "ImageLoader";
 
+    // 每次预加载的url数上限
+    private static final int MAX_PREFETCH_COUNT = 20;
+
+    // 磁盘队列剩余容量低于该值时不再添加预加载任务，为可见图片留出位置
+    private static final int PREFETCH_DISK_QUEUE_RESERVE = 20;
+
+    // 等待同一url的其他下载结束时，检查是否已中断的间隔（毫秒）
+    private static final long DOWNLOAD_WAIT_INTERVAL = 200;
+
+    // 等待下载的任务数上限，超出时丢弃排序最低的任务
+    private static final int DOWNLOAD_QUEUE_SIZE = 40;
+
+    // 响应体不小于该长度时才解码预览
+    private static final long PREVIEW_MIN_LENGTH = 64 * 1024;
+
+    // 每次下载最多解码的预览数，在下载到1/(n+1)、2/(n+1)...时解码
+    private static final int MAX_PREVIEW_COUNT = 2;
+
+    // 目标尺寸从ImageView的布局参数或测量结果获取
+    private static final int TARGET_SIZE_AUTO = 0;
+
+    // 不限制目标尺寸
+    private static final int TARGET_SIZE_NONE = -1;
+
+    // 等待ImageView绘制的超时时间，超时后按屏幕尺寸加载
+    private static final long MEASURE_TIMEOUT = 1000;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * @author zhuchengjin 图片类型定义
      */
@@ -73,32 +150,39 @@ public class ImageLoader {
     };
 
     /**
-     * 用于记录由于Identity相同，而没有得到执行的任务（因为这些任务有可能需要执行结果的回调） key 由 CustomRunnable 的getSubIdentity提供
+     * 正在加载的请求，磁盘和网络线程池共用。相同url和尺寸的请求只读一次磁盘、最多下载一次，结果通知所有等待者
      */
-    private Map<String, CustomRunnable> mSameIdentityTaskMap =
-            new LinkedHashMap<String, CustomRunnable>() {
+    private final InFlightTable mInFlightTable = new InFlightTable();
 
-                private static final long serialVersionUID = -3664050382241914314L;
+    // 预加载统计
+    private final PrefetchMetrics mPrefetchMetrics = new PrefetchMetrics();
 
-                @Override
-                protected boolean removeEldestEntry(Entry<String, CustomRunnable> eldest) {
-                    return size() > 40;
-                }
-            };
+    // 暂停期间的预加载任务，恢复后执行
+    private final ArrayList<DiskLoader> mPendingPrefetches = new ArrayList<DiskLoader>();
+
+    // 是否暂停，由mPendingPrefetches同步
+    private boolean mPaused = false;
+
+    // 分组 -> 未完成的请求句柄
+    private final HashMap<Object, ArrayList<ImageRequest>> mRequestGroups =
+            new HashMap<Object, ArrayList<ImageRequest>>();
 
     // 线程池
     private final CustomThreadPoolExecutor EXECUTOR_FOR_DISK = new CustomThreadPoolExecutor(2, 2,
             2, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(40), sThreadFactoryDisk,
-            new ThreadPoolExecutor.DiscardOldestPolicy(), mSameIdentityTaskMap);
+            mInFlightTable);
+
+    // 正在下载的url（区分磁盘缓存类型），同一url不同尺寸的下载任务共用一次下载和磁盘写入
+    private final ConcurrentHashMap<String, CountDownLatch> mDownloadingUrls =
+            new ConcurrentHashMap<String, CountDownLatch>();
+
+    // 下载队列，按优先级、可见性、请求时间排序
+    private final ImageRequestQueue mDownloadQueue = new ImageRequestQueue(DOWNLOAD_QUEUE_SIZE);
 
+    // 线程数为WIFI下的并发上限，实际并发数由HttpDispatcher按网络类型和下载速度限制
     private final CustomThreadPoolExecutor EXECUTOR_FOR_NETWORK = new CustomThreadPoolExecutor(10,
-            10, 2, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1), sThreadFactoryNet,
-            new ThreadPoolExecutor.DiscardOldestPolicy(), mSameIdentityTaskMap);
-    // 下载队列监视器
-    private MessageMonitor mMessageMonitor = new MessageMonitor();
-    // 写磁盘队列监视器
-    private BitmapToDiskMonitor mMessageMonitor2 = new BitmapToDiskMonitor();
-    
+            10, 2, TimeUnit.SECONDS, mDownloadQueue, sThreadFactoryNet, mInFlightTable);
+
     // 内存缓存
     private ImgCacheMap<String, Bitmap> mImageCacheMap = new ImgCacheMap<String, Bitmap>(5, true);
     // 磁盘缓存
@@ -124,9 +208,13 @@ public class ImageLoader {
             EXECUTOR_FOR_DISK.allowCoreThreadTimeOut(true);
             EXECUTOR_FOR_NETWORK.allowCoreThreadTimeOut(true);
         }
-
-        EXECUTOR_FOR_NETWORK.execute(mMessageMonitor);
-        EXECUTOR_FOR_NETWORK.execute(mMessageMonitor2);
+        EXECUTOR_FOR_NETWORK.setQueueFirst(true);
+        mDownloadQueue.setOnDropListener(new ImageRequestQueue.OnDropListener() {
+            @Override
+            public void onDropped(Runnable r) {
+                EXECUTOR_FOR_NETWORK.onDropped(r);
+            }
+        });
     }
 
     /**
@@ -143,6 +231,24 @@ public class ImageLoader {
         return mImageLoader;
     }
 
+    /**
+     * 设置ImageView显示的图片，并记录到BitmapPool，正在显示的Bitmap不会被复用
+     * 
+     * @param iv
+     * @param bt
+     */
+    private static void setImageBitmap(ImageView iv, Bitmap bt) {
+        iv.setImageBitmap(bt);
+        BitmapPool.getInstance().markDisplayed(iv, bt);
+    }
+
+    /**
+     * @return 磁盘缓存，供同一包内按区域解码等直接读取磁盘文件的加载器使用
+     */
+    static DiskCache getDiskCache() {
+        return getInstance().mDiskCache;
+    }
+
     /**
      * Update disk cache max size
      * 
@@ -159,7 +265,7 @@ public class ImageLoader {
      */
     public static void loadImage(ImageView iv) {
         if (iv != null && iv.getContext() != null) {
-        	iv.setImageBitmap(null);
+        	setImageBitmap(iv, null);
             loadImage(iv.getContext(), null, iv, ImageType.JPG, false, null,
                     DiskCache.DISK_CACHE_TYPE_COMMON);
         }
@@ -186,7 +292,7 @@ public class ImageLoader {
      */
     public static void loadImage(ImageView iv, int defaultResId) {
         if (iv != null) {
-        	iv.setImageBitmap(null);
+        	setImageBitmap(iv, null);
             iv.setImageResource(defaultResId);
             if (iv.getContext() != null) {
                 loadImage(iv.getContext(), null, iv, ImageType.PNG, false, null,
@@ -202,7 +308,7 @@ public class ImageLoader {
      */
     public static void loadImageWithPNG(ImageView iv) {
         if (iv != null && iv.getContext() != null) {
-        	iv.setImageBitmap(null);
+        	setImageBitmap(iv, null);
             loadImage(iv.getContext(), null, iv, ImageType.PNG, false, null,
                     DiskCache.DISK_CACHE_TYPE_COMMON);
         }
@@ -215,7 +321,7 @@ public class ImageLoader {
      */
     public static void loadImageCircle(ImageView iv) {
         if (iv != null && iv.getContext() != null) {
-        	iv.setImageBitmap(null);
+        	setImageBitmap(iv, null);
             loadImage(iv.getContext(), null, iv, ImageType.CIRCLE, false, null,
                     DiskCache.DISK_CACHE_TYPE_COMMON);
         }
@@ -227,9 +333,198 @@ public class ImageLoader {
                 DiskCache.DISK_CACHE_TYPE_COMMON);
     }
 
+    /**
+     * 按指定优先级加载图片，以PNG格式处理图片
+     * 
+     * @param iv
+     * @param priority 网络请求优先级
+     */
+    public static void loadImage(ImageView iv, Priority priority) {
+        if (iv != null && iv.getContext() != null) {
+            setImageBitmap(iv, null);
+            loadImage(iv.getContext(), null, iv, ImageType.PNG, false, null,
+                    DiskCache.DISK_CACHE_TYPE_COMMON, false, TARGET_SIZE_AUTO, TARGET_SIZE_AUTO,
+                    priority, null);
+        }
+    }
+
+    /**
+     * 按指定优先级加载图片，结果通过回调返回
+     * 
+     * @param context
+     * @param url
+     * @param imgListener
+     * @param isFullQuality
+     * @param priority 网络请求优先级
+     */
+    public static void loadImage(Context context, String url, ImageListener imgListener,
+            boolean isFullQuality, Priority priority) {
+        loadImage(context, url, null, ImageType.PNG, isFullQuality, imgListener,
+                DiskCache.DISK_CACHE_TYPE_COMMON, false, TARGET_SIZE_AUTO, TARGET_SIZE_AUTO,
+                priority, null);
+    }
+
+    /**
+     * 加载图片并返回请求句柄，以PNG格式处理图片
+     * 
+     * @param iv
+     * @param imgListener 可以为null
+     * @param priority 网络请求优先级
+     * @param group 分组，可通过{@link #cancelRequests(Object)}批量取消，可以为null
+     * @return 请求句柄，ImageView未设置url时返回已失败的句柄
+     */
+    public static ImageRequest loadImage(ImageView iv, ImageListener imgListener,
+            Priority priority, Object group) {
+        String url = iv != null && iv.getTag() instanceof String ? (String) iv.getTag() : null;
+        ImageRequest request = createRequest(url, group);
+        if (iv != null && iv.getContext() != null) {
+            setImageBitmap(iv, null);
+            loadImage(iv.getContext(), null, iv, ImageType.PNG, false, imgListener,
+                    DiskCache.DISK_CACHE_TYPE_COMMON, false, TARGET_SIZE_AUTO, TARGET_SIZE_AUTO,
+                    priority, request);
+        } else {
+            request.finish(ImageRequest.Status.FAILED, null);
+        }
+        return request;
+    }
+
+    /**
+     * 加载图片并返回请求句柄，结果通过回调返回
+     * 
+     * @param context
+     * @param url
+     * @param imgListener 可以为null，此时通过{@link ImageRequest#await()}取得结果
+     * @param priority 网络请求优先级
+     * @param group 分组，可通过{@link #cancelRequests(Object)}批量取消，可以为null
+     * @return 请求句柄
+     */
+    public static ImageRequest loadImage(Context context, String url, ImageListener imgListener,
+            Priority priority, Object group) {
+        ImageRequest request = createRequest(url, group);
+        loadImage(context, url, null, ImageType.PNG, false, imgListener,
+                DiskCache.DISK_CACHE_TYPE_COMMON, false, TARGET_SIZE_AUTO, TARGET_SIZE_AUTO,
+                priority, request);
+        return request;
+    }
+
+    /**
+     * 取消该分组中所有未完成的请求，如Activity销毁时取消其发起的请求
+     * 
+     * @param group
+     * @return 取消的请求数
+     */
+    public static int cancelRequests(Object group) {
+        if (group == null) {
+            return 0;
+        }
+        ArrayList<ImageRequest> requests;
+        ImageLoader loader = getInstance();
+        synchronized (loader.mRequestGroups) {
+            requests = loader.mRequestGroups.remove(group);
+        }
+        if (requests == null) {
+            return 0;
+        }
+        int count = 0;
+        for (ImageRequest request : requests) {
+            if (request.cancel()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ImageRequest createRequest(String url, Object group) {
+        ImageRequest request = new ImageRequest(url, group);
+        if (group != null) {
+            ImageLoader loader = getInstance();
+            synchronized (loader.mRequestGroups) {
+                ArrayList<ImageRequest> requests = loader.mRequestGroups.get(group);
+                if (requests == null) {
+                    requests = new ArrayList<ImageRequest>();
+                    loader.mRequestGroups.put(group, requests);
+                }
+                requests.add(request);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * 请求完成时调用，从分组中移除
+     */
+    static void onRequestFinished(ImageRequest request) {
+        Object group = request.getGroup();
+        if (group == null) {
+            return;
+        }
+        ImageLoader loader = getInstance();
+        synchronized (loader.mRequestGroups) {
+            ArrayList<ImageRequest> requests = loader.mRequestGroups.get(group);
+            if (requests != null) {
+                requests.remove(request);
+                if (requests.isEmpty()) {
+                    loader.mRequestGroups.remove(group);
+                }
+            }
+        }
+    }
+
+    /**
+     * 请求取消时调用，没有其他请求等待的任务移出队列，正在进行的下载被中断
+     */
+    static void onRequestCancelled(ImageRequest request) {
+        ImageLoader loader = getInstance();
+        loader.mDownloadQueue.purge();
+        for (Runnable r : loader.EXECUTOR_FOR_DISK.getQueue().toArray(new Runnable[0])) {
+            if (r instanceof CustomRunnableImp && ((CustomRunnableImp) r).isCancelled()) {
+                loader.EXECUTOR_FOR_DISK.drop(r);
+            }
+        }
+        Object key = request.getKey();
+        if (key != null) {
+            CustomRunnable owner = loader.mInFlightTable.getOwner(key);
+            if (owner instanceof ImageDownloader && ((ImageDownloader) owner).isCancelled()) {
+                ((ImageDownloader) owner).abort();
+            }
+        }
+    }
+
+    /**
+     * 按指定尺寸加载图片，以PNG格式处理图片。解码时采样到不小于指定尺寸，不同尺寸分别缓存。
+     * 
+     * @param iv
+     * @param targetWidth 目标宽度（像素），小于等于0表示不限制
+     * @param targetHeight 目标高度（像素），小于等于0表示不限制
+     */
+    public static void loadImage(ImageView iv, int targetWidth, int targetHeight) {
+        if (iv != null && iv.getContext() != null) {
+            setImageBitmap(iv, null);
+            loadImage(iv.getContext(), null, iv, ImageType.PNG, false, null,
+                    DiskCache.DISK_CACHE_TYPE_COMMON, false, toExplicitSize(targetWidth),
+                    toExplicitSize(targetHeight), Priority.NORMAL, null);
+        }
+    }
+
+    /**
+     * 按指定尺寸加载图片，结果通过回调返回
+     * 
+     * @param context
+     * @param url
+     * @param imgListener
+     * @param targetWidth 目标宽度（像素），小于等于0表示不限制
+     * @param targetHeight 目标高度（像素），小于等于0表示不限制
+     */
+    public static void loadImage(Context context, String url, ImageListener imgListener,
+            int targetWidth, int targetHeight) {
+        loadImage(context, url, null, ImageType.PNG, false, imgListener,
+                DiskCache.DISK_CACHE_TYPE_COMMON, false, toExplicitSize(targetWidth),
+                toExplicitSize(targetHeight), Priority.NORMAL, null);
+    }
+
     public static void loadImage(ImageView img, ImageListener imgListener, boolean isFullQuality) {
         if (img != null && img.getContext() != null) {
-        	img.setImageBitmap(null);
+        	setImageBitmap(img, null);
             loadImage(img.getContext(), null, img, ImageType.PNG, isFullQuality, imgListener,
                     DiskCache.DISK_CACHE_TYPE_COMMON);
         }
@@ -238,6 +533,25 @@ public class ImageLoader {
 	private static void loadImage(Context context, String url, ImageView iv,
 			ImageType type, boolean isFullQuality, ImageListener imgListener,
 			int diskCacheType, boolean isLoadLocalExistImg) {
+		loadImage(context, url, iv, type, isFullQuality, imgListener, diskCacheType,
+				isLoadLocalExistImg, TARGET_SIZE_AUTO, TARGET_SIZE_AUTO, Priority.NORMAL, null);
+	}
+
+	/**
+	 * 加载图片
+	 * 
+	 * @param targetWidth 目标宽度，TARGET_SIZE_AUTO时从ImageView获取
+	 * @param targetHeight 目标高度，TARGET_SIZE_AUTO时从ImageView获取
+	 * @param priority 网络请求优先级
+	 * @param request 请求句柄，可以为null
+	 */
+	private static void loadImage(final Context context, final String url, final ImageView iv,
+			final ImageType type, final boolean isFullQuality, final ImageListener imgListener,
+			final int diskCacheType, final boolean isLoadLocalExistImg, int targetWidth,
+			int targetHeight, Priority priority, ImageRequest request) {
+        if (request != null && request.isDone()) {
+            return;
+        }
         Context finalContext = null;
         if (null != context) {
             finalContext = context.getApplicationContext();
@@ -245,6 +559,9 @@ public class ImageLoader {
             finalContext = iv.getContext().getApplicationContext();
         }
         if (null == finalContext) {
+            if (request != null) {
+                request.finish(ImageRequest.Status.FAILED, null);
+            }
             return;
         }
 
@@ -254,6 +571,9 @@ public class ImageLoader {
         } else if (iv != null && (iv.getTag() instanceof String)) {
             finalUrl = (String) iv.getTag();
         } else {
+            if (request != null) {
+                request.finish(ImageRequest.Status.FAILED, null);
+            }
             if (imgListener != null) {
                 imgListener.onErrorResponse(-1);
             }
@@ -263,20 +583,53 @@ public class ImageLoader {
             sTotalLoadImageCount++;
             DebugLog.log(TAG, "Totally loadImage count: " + sTotalLoadImageCount);
         }
+        if (iv != null) {
+            // ImageView已用于新的图片，取消之前排队的请求
+            getInstance().cancelStaleRequests(iv);
+        }
+
+        if (isFullQuality) {
+            targetWidth = TARGET_SIZE_NONE;
+            targetHeight = TARGET_SIZE_NONE;
+        } else if (iv != null && targetWidth == TARGET_SIZE_AUTO
+                && targetHeight == TARGET_SIZE_AUTO) {
+            int[] size = getTargetSize(iv);
+            if (size == null) {
+                // 还未测量，等到绘制前再加载
+                loadImageWhenMeasured(context, url, iv, type, isFullQuality, imgListener,
+                        diskCacheType, isLoadLocalExistImg, finalUrl, priority, request);
+                return;
+            }
+            targetWidth = size[0];
+            targetHeight = size[1];
+        }
+        targetWidth = bucketTargetSize(targetWidth);
+        targetHeight = bucketTargetSize(targetHeight);
+        String cacheKey = getMemoryCacheKey(finalUrl, targetWidth, targetHeight);
 
         // 取内存bitmap
-        Bitmap bt = getInstance().getBitmapFromMemory(finalUrl);
+        Bitmap bt = getInstance().getBitmapFromMemory(cacheKey);
         if (bt != null) {
             DebugLog.log(TAG, "loadImage memory: " + finalUrl);
-            if (iv != null && finalUrl.equals(iv.getTag())) {
-                iv.setImageBitmap(bt);
-                if (imgListener != null) {
-                    imgListener.onSuccessResponse(bt, finalUrl,true);
+            getInstance().mPrefetchMetrics.recordHit(finalUrl, true);
+            try {
+                if (request != null) {
+                    request.finish(ImageRequest.Status.SUCCESS, bt);
                 }
-            } else {
-                if (imgListener != null) {
-                    imgListener.onSuccessResponse(bt, finalUrl,true);
+                if (iv != null && finalUrl.equals(iv.getTag())) {
+                    setImageBitmap(iv, bt);
+                    if (imgListener != null) {
+                        BitmapPool.getInstance().markShared(bt);
+                        imgListener.onSuccessResponse(bt, finalUrl,true);
+                    }
+                } else {
+                    if (imgListener != null) {
+                        BitmapPool.getInstance().markShared(bt);
+                        imgListener.onSuccessResponse(bt, finalUrl,true);
+                    }
                 }
+            } finally {
+                BitmapPool.getInstance().release(bt);
             }
             return;
         }
@@ -284,13 +637,229 @@ public class ImageLoader {
 		if (iv != null) {
 			getInstance().getBitmapFromDisk(finalContext, iv, type,
 					isFullQuality, imgListener, diskCacheType,
-					isLoadLocalExistImg);
+					isLoadLocalExistImg, targetWidth, targetHeight, priority, request);
 		} else {
 			getInstance().getBitmapFromDisk(finalContext, finalUrl, type,
 					isFullQuality, imgListener, diskCacheType,
-					isLoadLocalExistImg);
+					isLoadLocalExistImg, targetWidth, targetHeight, priority, request);
 		}
     }
+
+    /**
+     * ImageView还未测量时，在绘制前取得尺寸后再加载。
+     * 超时仍未绘制（GONE或不在界面上）时按屏幕尺寸加载，从窗口移除时取消请求。
+     */
+    @SuppressLint("NewApi")
+    private static void loadImageWhenMeasured(Context context, String url, ImageView iv,
+            ImageType type, boolean isFullQuality, ImageListener imgListener, int diskCacheType,
+            boolean isLoadLocalExistImg, String finalUrl, Priority priority,
+            ImageRequest request) {
+        MeasureWaiter waiter = new MeasureWaiter(context, url, iv, type, isFullQuality,
+                imgListener, diskCacheType, isLoadLocalExistImg, finalUrl, priority, request);
+        iv.getViewTreeObserver().addOnPreDrawListener(waiter);
+        sMainHandler.postDelayed(waiter, MEASURE_TIMEOUT);
+        if (Build.VERSION.SDK_INT >= 12) {
+            DetachCanceller canceller = new DetachCanceller(waiter);
+            waiter.mDetachListener = canceller;
+            iv.addOnAttachStateChangeListener(canceller);
+        }
+    }
+
+    /**
+     * 等待ImageView测量，绘制前、超时或从窗口移除三者只处理先到的一个，均在主线程调用
+     */
+    private static class MeasureWaiter implements ViewTreeObserver.OnPreDrawListener, Runnable {
+        private final Context mContext;
+        private final String mUrl;
+        private final ImageView mIv;
+        private final ImageType mType;
+        private final boolean mIsFullQuality;
+        private final ImageListener mImgListener;
+        private final int mDiskCacheType;
+        private final boolean mIsLoadLocalExistImg;
+        private final String mFinalUrl;
+        private final Priority mPriority;
+        private final ImageRequest mRequest;
+        // API 12以上才有，类型为DetachCanceller
+        private Object mDetachListener;
+        private boolean mDone = false;
+
+        MeasureWaiter(Context context, String url, ImageView iv, ImageType type,
+                boolean isFullQuality, ImageListener imgListener, int diskCacheType,
+                boolean isLoadLocalExistImg, String finalUrl, Priority priority,
+                ImageRequest request) {
+            mContext = context;
+            mUrl = url;
+            mIv = iv;
+            mType = type;
+            mIsFullQuality = isFullQuality;
+            mImgListener = imgListener;
+            mDiskCacheType = diskCacheType;
+            mIsLoadLocalExistImg = isLoadLocalExistImg;
+            mFinalUrl = finalUrl;
+            mPriority = priority;
+            mRequest = request;
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            if (!stopWaiting()) {
+                return true;
+            }
+            int[] size = getTargetSize(mIv);
+            int width = size == null ? TARGET_SIZE_NONE : toExplicitSize(size[0]);
+            int height = size == null ? TARGET_SIZE_NONE : toExplicitSize(size[1]);
+            load(width, height);
+            return true;
+        }
+
+        /**
+         * 超时仍未绘制，按屏幕尺寸加载
+         */
+        @Override
+        public void run() {
+            if (!stopWaiting()) {
+                return;
+            }
+            DisplayMetrics dm = mIv.getResources().getDisplayMetrics();
+            load(dm.widthPixels, dm.heightPixels);
+        }
+
+        void cancel() {
+            if (stopWaiting() && mRequest != null) {
+                mRequest.finish(ImageRequest.Status.CANCELLED, null);
+            }
+        }
+
+        private void load(int width, int height) {
+            // ImageView已被用于加载其他图片
+            if (TextUtils.isEmpty(mUrl) && !mFinalUrl.equals(mIv.getTag())) {
+                if (mRequest != null) {
+                    mRequest.finish(ImageRequest.Status.CANCELLED, null);
+                }
+                return;
+            }
+            loadImage(mContext, mUrl, mIv, mType, mIsFullQuality, mImgListener, mDiskCacheType,
+                    mIsLoadLocalExistImg, width, height, mPriority, mRequest);
+        }
+
+        /**
+         * @return 是否由本次调用结束等待
+         */
+        @SuppressLint("NewApi")
+        private boolean stopWaiting() {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            ViewTreeObserver observer = mIv.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(this);
+            }
+            sMainHandler.removeCallbacks(this);
+            if (mDetachListener != null) {
+                mIv.removeOnAttachStateChangeListener((DetachCanceller) mDetachListener);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * ImageView从窗口移除时取消等待测量的请求
+     */
+    @TargetApi(12)
+    private static class DetachCanceller implements View.OnAttachStateChangeListener {
+        private final MeasureWaiter mWaiter;
+
+        DetachCanceller(MeasureWaiter waiter) {
+            mWaiter = waiter;
+        }
+
+        @Override
+        public void onViewAttachedToWindow(View v) {
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            mWaiter.cancel();
+        }
+    }
+
+    /**
+     * 从布局参数或测量结果获取ImageView的目标尺寸
+     * 
+     * @param iv
+     * @return 需要等待测量时返回null，TARGET_SIZE_NONE表示该方向不限制
+     */
+    private static int[] getTargetSize(ImageView iv) {
+        ViewGroup.LayoutParams lp = iv.getLayoutParams();
+        int width = getTargetDimension(iv.getWidth(),
+                lp == null ? ViewGroup.LayoutParams.WRAP_CONTENT : lp.width,
+                iv.getPaddingLeft() + iv.getPaddingRight());
+        int height = getTargetDimension(iv.getHeight(),
+                lp == null ? ViewGroup.LayoutParams.WRAP_CONTENT : lp.height,
+                iv.getPaddingTop() + iv.getPaddingBottom());
+        if (width == TARGET_SIZE_AUTO || height == TARGET_SIZE_AUTO) {
+            return null;
+        }
+        return new int[] {
+                width, height
+        };
+    }
+
+    private static int getTargetDimension(int viewSize, int paramSize, int padding) {
+        if (paramSize > 0) {
+            return Math.max(paramSize - padding, 1);
+        }
+        // wrap_content的尺寸由图片决定，不限制
+        if (paramSize == ViewGroup.LayoutParams.WRAP_CONTENT) {
+            return TARGET_SIZE_NONE;
+        }
+        if (viewSize > 0) {
+            return Math.max(viewSize - padding, 1);
+        }
+        // match_parent或按权重分配，需要等待测量
+        return TARGET_SIZE_AUTO;
+    }
+
+    private static int toExplicitSize(int size) {
+        return size > 0 ? size : TARGET_SIZE_NONE;
+    }
+
+    /**
+     * 目标尺寸分档，向上取到2的幂或其1.5倍，相近尺寸共用同一缓存
+     * 
+     * @param size
+     * @return
+     */
+    static int bucketTargetSize(int size) {
+        if (size <= 0) {
+            return TARGET_SIZE_NONE;
+        }
+        int bucket = Integer.highestOneBit(size);
+        if (bucket == size) {
+            return size;
+        }
+        if (size <= bucket + bucket / 2) {
+            return bucket + bucket / 2;
+        }
+        return bucket * 2;
+    }
+
+    /**
+     * 内存缓存key，按目标尺寸区分，未限制尺寸时为url
+     * 
+     * @param url
+     * @param targetWidth
+     * @param targetHeight
+     * @return
+     */
+    static String getMemoryCacheKey(String url, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return url;
+        }
+        return url + "#" + Math.max(targetWidth, 0) + "x" + Math.max(targetHeight, 0);
+    }
     
 	private static void loadImage(Context context, String url, ImageView iv,
 			ImageType type, boolean isFullQuality, ImageListener imgListener,
@@ -306,46 +875,239 @@ public class ImageLoader {
      * @param flag
      */
     public static void setPauseWork(boolean flag) {
-        getInstance().mMessageMonitor.setPause(flag);
+        ImageLoader loader = getInstance();
+        loader.mDownloadQueue.setPaused(flag);
+        ArrayList<DiskLoader> pending = null;
+        synchronized (loader.mPendingPrefetches) {
+            loader.mPaused = flag;
+            if (!flag && !loader.mPendingPrefetches.isEmpty()) {
+                pending = new ArrayList<DiskLoader>(loader.mPendingPrefetches);
+                loader.mPendingPrefetches.clear();
+            }
+        }
+        if (!flag) {
+            // 暂停期间线程可能已超时退出
+            loader.EXECUTOR_FOR_NETWORK.startWorkers();
+        }
+        if (pending != null) {
+            for (DiskLoader task : pending) {
+                loader.submitPrefetch(task);
+            }
+        }
     }
 
     /**
-     * 取得内存中bitmap
+     * 预加载即将显示的图片，优先级低于正常加载。
      * 
-     * @param key
-     * @return
+     * 按网络类型限制下载数：WIFI不限制，4G最多10个，3G最多4个，2G或未知网络不下载、只从磁盘预加载。
+     * 与正在加载的相同请求合并；滑动暂停期间（{@link #setPauseWork}）延后执行。
+     * 
+     * @param context
+     * @param urls
+     * @param targetWidth 目标宽度（像素），小于等于0表示不限制，应与显示时一致
+     * @param targetHeight 目标高度（像素），小于等于0表示不限制，应与显示时一致
+     * @param mode 预加载方式
+     * @return 添加的预加载任务数
      */
-    private Bitmap getBitmapFromMemory(String key) {
-        return mImageCacheMap.get(key);
+    public static int prefetch(Context context, List<String> urls, int targetWidth,
+            int targetHeight, PrefetchMode mode) {
+        if (context == null || urls == null || urls.isEmpty()) {
+            return 0;
+        }
+        ImageLoader loader = getInstance();
+        Context appContext = context.getApplicationContext();
+        if (mode == null) {
+            mode = PrefetchMode.DISK_ONLY;
+        }
+        int width = bucketTargetSize(toExplicitSize(targetWidth));
+        int height = bucketTargetSize(toExplicitSize(targetHeight));
+        int networkBudget = getPrefetchNetworkBudget(appContext);
+        int count = 0;
+        for (String url : urls) {
+            if (TextUtils.isEmpty(url)) {
+                continue;
+            }
+            loader.mPrefetchMetrics.onRequested();
+            if (count >= MAX_PREFETCH_COUNT) {
+                loader.mPrefetchMetrics.onThrottled();
+                continue;
+            }
+            if (mode == PrefetchMode.MEMORY_AND_DISK
+                    && loader.hasBitmapInMemory(getMemoryCacheKey(url, width, height))) {
+                loader.mPrefetchMetrics.onAlreadyCached();
+                continue;
+            }
+            DiskLoader task = loader.new DiskLoader(appContext, url, ImageType.PNG, false, null,
+                    DiskCache.DISK_CACHE_TYPE_COMMON, false);
+            task.setTargetSize(width, height);
+            task.setPriority(Priority.LOW);
+            task.setPrefetch(mode, networkBudget > 0);
+            if (networkBudget > 0) {
+                networkBudget--;
+            }
+            loader.submitPrefetch(task);
+            count++;
+        }
+        return count;
     }
 
     /**
-     * 添加图片到内存
-     * 
-     * @param key
-     * @param bt
+     * @return 预加载统计
      */
-    private void putBitmapToMemory(String key, Bitmap bt) {
-        mImageCacheMap.put(key, bt);
+    public static PrefetchMetrics getPrefetchMetrics() {
+        return getInstance().mPrefetchMetrics;
     }
 
     /**
-     * 获取disk图片 异步加载
-     * 
-     * @param iv
+     * @param context
+     * @return 本次预加载允许下载的数量
      */
-	private void getBitmapFromDisk(Context appContext, ImageView iv,
-			ImageType type, boolean isFullQuality, ImageListener callBack,
-			int diskCacheType, boolean isLoadLocalExistImg) {
-		EXECUTOR_FOR_DISK.execute(new DiskLoader(appContext, iv, type,
-				isFullQuality, callBack, diskCacheType, isLoadLocalExistImg));
+    private static int getPrefetchNetworkBudget(Context context) {
+        String type = NetworkStateCache.getInstance(context).getNetworkType();
+        if (NetworkHelper.NET_WIFI.equals(type)) {
+            return MAX_PREFETCH_COUNT;
+        } else if (NetworkHelper.NET_FG.equals(type)) {
+            return 10;
+        } else if (NetworkHelper.NET_TG.equals(type)) {
+            return 4;
+        }
+        // 2G或未知网络只从磁盘预加载
+        return 0;
+    }
+
+    private void submitPrefetch(DiskLoader task) {
+        synchronized (mPendingPrefetches) {
+            if (mPaused) {
+                mPendingPrefetches.add(task);
+                if (mPendingPrefetches.size() > MAX_PREFETCH_COUNT) {
+                    // 丢弃最早的，滑过的位置已不需要
+                    mPendingPrefetches.remove(0);
+                    mPrefetchMetrics.onThrottled();
+                }
+                return;
+            }
+        }
+        if (EXECUTOR_FOR_DISK.getQueue().remainingCapacity() < PREFETCH_DISK_QUEUE_RESERVE) {
+            mPrefetchMetrics.onThrottled();
+            return;
+        }
+        EXECUTOR_FOR_DISK.execute(task);
+    }
+
+    /**
+     * @return 等待下载的任务数
+     */
+    public static int getPendingDownloadCount() {
+        return getInstance().mDownloadQueue.size();
+    }
+
+    /**
+     * @return 因ImageView被重用或回收而取消的下载任务数
+     */
+    public static long getCancelledDownloadCount() {
+        return getInstance().mDownloadQueue.getCancelledCount();
+    }
+
+    /**
+     * @return 下载任务在队列中的平均等待时间（毫秒）
+     */
+    public static long getAverageDownloadWaitTime() {
+        return getInstance().mDownloadQueue.getAverageWaitTime();
+    }
+
+    /**
+     * @return 下载任务在队列中的最长等待时间（毫秒）
+     */
+    public static long getMaxDownloadWaitTime() {
+        return getInstance().mDownloadQueue.getMaxWaitTime();
+    }
+
+    /**
+     * @return 正在加载（读磁盘或下载）的不同请求数
+     */
+    public static int getInFlightRequestCount() {
+        return getInstance().mInFlightTable.size();
+    }
+
+    /**
+     * 取消该ImageView之前发起、但已没有其他等待者的磁盘和网络任务
+     * 
+     * @param iv
+     */
+    private void cancelStaleRequests(ImageView iv) {
+        mDownloadQueue.cancel(iv);
+        for (Runnable r : EXECUTOR_FOR_DISK.getQueue().toArray(new Runnable[0])) {
+            if (r instanceof CustomRunnableImp && ((CustomRunnableImp) r).isBoundTo(iv)
+                    && ((CustomRunnableImp) r).isCancelled()) {
+                EXECUTOR_FOR_DISK.drop(r);
+            }
+        }
+    }
+
+    /**
+     * 取得内存中bitmap
+     * 
+     * @param key
+     * @return
+     */
+    /**
+     * 从内存缓存取图片，返回前在BitmapPool中标记为使用中，避免显示前被淘汰复用。
+     * 显示或交给调用方后须调用{@link BitmapPool#release}。
+     * 
+     * @param key
+     * @return
+     */
+    private Bitmap getBitmapFromMemory(String key) {
+        BitmapPool pool = BitmapPool.getInstance();
+        // 淘汰的Bitmap放入池中时也持有池的锁，取出和标记之间不会被放入池中
+        synchronized (pool) {
+            Bitmap bt = mImageCacheMap.get(key);
+            pool.acquire(bt);
+            return bt;
+        }
+    }
+
+    private boolean hasBitmapInMemory(String key) {
+        return mImageCacheMap.get(key) != null;
+    }
+
+    /**
+     * 添加图片到内存
+     * 
+     * @param key
+     * @param bt
+     */
+    private void putBitmapToMemory(String key, Bitmap bt) {
+        mImageCacheMap.put(key, bt);
+    }
+
+    /**
+     * 获取disk图片 异步加载
+     * 
+     * @param iv
+     */
+	private void getBitmapFromDisk(Context appContext, ImageView iv,
+			ImageType type, boolean isFullQuality, ImageListener callBack,
+			int diskCacheType, boolean isLoadLocalExistImg, int targetWidth, int targetHeight,
+			Priority priority, ImageRequest request) {
+		DiskLoader loader = new DiskLoader(appContext, iv, type, isFullQuality, callBack,
+				diskCacheType, isLoadLocalExistImg);
+		loader.setTargetSize(targetWidth, targetHeight);
+		loader.setPriority(priority);
+		loader.setRequest(request);
+		EXECUTOR_FOR_DISK.execute(loader);
 	}
 
 	private void getBitmapFromDisk(Context appContext, String url, ImageType type,
 			boolean isFullQuality, ImageListener callBack, int diskCacheType,
-			boolean isLoadLocalExistImg) {
-		EXECUTOR_FOR_DISK.execute(new DiskLoader(appContext, url, type, isFullQuality, callBack,
-				diskCacheType, isLoadLocalExistImg));
+			boolean isLoadLocalExistImg, int targetWidth, int targetHeight, Priority priority,
+			ImageRequest request) {
+		DiskLoader loader = new DiskLoader(appContext, url, type, isFullQuality, callBack,
+				diskCacheType, isLoadLocalExistImg);
+		loader.setTargetSize(targetWidth, targetHeight);
+		loader.setPriority(priority);
+		loader.setRequest(request);
+		EXECUTOR_FOR_DISK.execute(loader);
 	}
 
     /**
@@ -380,19 +1142,9 @@ public class ImageLoader {
          * 处理磁盘图片
          */
         private void processDiskBitmap() {
-            ImageView iv = null;
-            if (mImageView != null) {
-                iv = mImageView.get();
-                if (iv == null) {
-                    DebugLog.log("DiskLoader", "DiskLoader run iv == null: " + mUrl);
-                    return;
-                }
-            } else {
-                if (mImgListener == null) {
-                    DebugLog.log("DiskLoader",
-                            "DiskLoader load picture with url mCallback == null: " + mUrl);
-                    return;
-                }
+            if (isCancelled()) {
+                DebugLog.log("DiskLoader", "DiskLoader run no waiter: " + mUrl);
+                return;
             }
             if (mAppContext == null) {
                 DebugLog.log("DiskLoader", "DiskLoader run context is null: " + mUrl);
@@ -400,39 +1152,63 @@ public class ImageLoader {
             }
             DebugLog.log("DiskLoader", "DiskLoader Start : " + mUrl);
 
-			final Bitmap bt = mDiskCache.getBitmapFromDisk(mAppContext, mUrl, mImageType,
-					mIsFullQuality, mDiskCacheType, mIsLoadLocalExistImage);
+			final Bitmap bt;
+			if (mPrefetchMode == PrefetchMode.DISK_ONLY) {
+				// 只需保证图片在磁盘中，有正常加载的等待者时再解码
+				if (mDiskCache.hasBitmap(mAppContext, mUrl, mDiskCacheType)
+						&& (!mNetworkAllowed || mDiskCache.isFresh(mAppContext, mUrl,
+								mDiskCacheType))) {
+					mStoredOnDisk = true;
+					mPrefetchMetrics.onAlreadyCached();
+					return;
+				}
+				bt = null;
+			} else if (!mIsLoadLocalExistImage && mNetworkAllowed
+					&& !mDiskCache.isFresh(mAppContext, mUrl, mDiskCacheType)) {
+				// 已过期，由下载任务重新验证
+				DebugLog.log("DiskLoader", "DiskLoader disk data stale :" + mUrl);
+				bt = null;
+			} else {
+				bt = mDiskCache.getBitmapFromDisk(mAppContext, mUrl, mImageType,
+						mIsFullQuality, mDiskCacheType, mIsLoadLocalExistImage, mTargetWidth,
+						mTargetHeight);
+			}
             
             // 取得磁盘图片
             if (bt != null) {
                 DebugLog.log("DiskLoader", "DiskLoader disk data back :" + mUrl);
 
                 // 添加到内存
-                putBitmapToMemory(mUrl, bt);
+                putBitmapToMemory(getCacheKey(), bt);
+                if (mPrefetchMode == null) {
+                    mPrefetchMetrics.recordHit(mUrl, false);
+                } else {
+                    mPrefetchMetrics.onPrefetched(mUrl);
+                }
                 if (DebugLog.isDebug()) {
                     sLoadImageFromDiskCount++;
                     DebugLog.log(TAG, "LoadImage from disk count: " + sLoadImageFromDiskCount);
                 }
-                onResult(bt, true);
+                setResult(bt, true);
             } else {
-				if (!mIsLoadLocalExistImage) {
+				if (!mIsLoadLocalExistImage && mNetworkAllowed) {
 					// 取网络图片
 					DebugLog.log("DiskLoader", "DiskLoader load net : " + mUrl);
 
-//					ImageListener listener = mImgListener == null ? null : mImgListener.get();
-					if (iv != null) {
-						mMessageMonitor.addRunnable(new ImageDownloader(mAppContext, iv, mImageType,
-								mIsFullQuality, mImgListener, mDiskCacheType));
-					} else {
-						mMessageMonitor.addRunnable(new ImageDownloader(mAppContext, mUrl, mImageType,
-								mIsFullQuality, mImgListener, mDiskCacheType));
-					}
+					// 下载任务接替本任务，等待者不变，结果由下载任务通知
+					ImageDownloader downloader = new ImageDownloader(mAppContext, mUrl,
+							mImageType, mIsFullQuality, null, mDiskCacheType);
+					downloader.setTargetSize(mTargetWidth, mTargetHeight);
+					downloader.setPriority(mPriority);
+					downloader.setPrefetch(mPrefetchMode, true);
+					EXECUTOR_FOR_NETWORK.handoff(this, downloader);
 				}
             }
         }
     }
 
-    private static class CustomRunnableImp extends CustomRunnable {
+    private static class CustomRunnableImp extends CustomRunnable implements
+            ImageRequestQueue.Request {
 
         // 保存图片view
         protected WeakReference<ImageView> mImageView = null;
@@ -446,6 +1222,9 @@ public class ImageLoader {
         // 执行完成结果
         private WeakReference<Bitmap> bitmapWR;
 
+        // 执行结果是否来自磁盘缓存
+        private boolean mResultCached = false;
+
         protected boolean mIsFullQuality = false;
 
         // 可能会被设置的，执行完的回调
@@ -457,6 +1236,25 @@ public class ImageLoader {
 
         //是否只是从本地已经存在的位置获取图片
         protected boolean mIsLoadLocalExistImage = false;
+
+        // 解码目标尺寸，小于等于0表示不限制
+        protected int mTargetWidth = TARGET_SIZE_NONE;
+        protected int mTargetHeight = TARGET_SIZE_NONE;
+
+        // 网络请求优先级
+        protected Priority mPriority = Priority.NORMAL;
+
+        // 请求句柄，可以为null
+        protected ImageRequest mRequest;
+
+        // 预加载方式，null表示正常加载
+        protected PrefetchMode mPrefetchMode;
+
+        // 磁盘未命中时是否下载
+        protected boolean mNetworkAllowed = true;
+
+        // 图片已在磁盘缓存中但没有解码（只预加载到磁盘）
+        protected volatile boolean mStoredOnDisk = false;
         
         // 通知ui更新
         private Handler mMainHandler = new Handler(Looper.getMainLooper());
@@ -500,25 +1298,197 @@ public class ImageLoader {
 			mIsLoadLocalExistImage = isLoadLocalExistImage;
 		}
         
+        /**
+         * 设置解码目标尺寸
+         * 
+         * @param width
+         * @param height
+         */
+        void setTargetSize(int width, int height) {
+            mTargetWidth = width;
+            mTargetHeight = height;
+        }
+
+        void setPriority(Priority priority) {
+            mPriority = priority == null ? Priority.NORMAL : priority;
+        }
+
+        /**
+         * 设置为预加载任务，须在提交前调用
+         * 
+         * @param mode
+         * @param networkAllowed 磁盘未命中时是否下载
+         */
+        void setPrefetch(PrefetchMode mode, boolean networkAllowed) {
+            mPrefetchMode = mode;
+            mNetworkAllowed = networkAllowed;
+        }
+
+        void setRequest(ImageRequest request) {
+            mRequest = request;
+            if (request != null) {
+                request.setKey(getIdentity());
+            }
+        }
+
+        /**
+         * 优先级取所有有效等待者中最高的
+         */
+        @Override
+        public Priority getPriority() {
+            Priority priority = mPriority;
+            for (CustomRunnable waiter : getWaiters()) {
+                if (waiter instanceof CustomRunnableImp && !((CustomRunnableImp) waiter).isStale()
+                        && ((CustomRunnableImp) waiter).mPriority.compareTo(priority) > 0) {
+                    priority = ((CustomRunnableImp) waiter).mPriority;
+                }
+            }
+            return priority;
+        }
+
+        /**
+         * 所有等待者都已失效时取消
+         */
+        @Override
+        public boolean isCancelled() {
+            List<CustomRunnable> waiters = getWaiters();
+            if (waiters.isEmpty()) {
+                return isStale();
+            }
+            for (CustomRunnable waiter : waiters) {
+                if (!(waiter instanceof CustomRunnableImp)
+                        || !((CustomRunnableImp) waiter).isStale()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 任一等待者可见时可见
+         */
+        @Override
+        public boolean isVisible() {
+            List<CustomRunnable> waiters = getWaiters();
+            if (waiters.isEmpty()) {
+                return isShowing();
+            }
+            for (CustomRunnable waiter : waiters) {
+                if (!(waiter instanceof CustomRunnableImp)
+                        || ((CustomRunnableImp) waiter).isShowing()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isBoundTo(Object view) {
+            if (view == null) {
+                return false;
+            }
+            for (CustomRunnable waiter : getWaiters()) {
+                if (waiter instanceof CustomRunnableImp
+                        && ((CustomRunnableImp) waiter).isOwnView(view)) {
+                    return true;
+                }
+            }
+            return isOwnView(view);
+        }
+
+        /**
+         * @return 请求句柄已取消，或ImageView已被用于其他图片或已被回收
+         */
+        boolean isStale() {
+            if (mRequest != null && mRequest.isCancelled()) {
+                return true;
+            }
+            return mImageView != null && !isViewValide();
+        }
+
+        private boolean isShowing() {
+            if (mImageView == null) {
+                return true;
+            }
+            ImageView iv = mImageView.get();
+            return iv != null && iv.getWindowToken() != null && isViewValide();
+        }
+
+        private boolean isOwnView(Object view) {
+            return mImageView != null && mImageView.get() == view;
+        }
+
+        /**
+         * @return 请求表中与本任务相同的请求，本任务执行结束时通知这些请求
+         */
+        private List<CustomRunnable> getWaiters() {
+            return mImageLoader.mInFlightTable.getWaiters(getIdentity());
+        }
+
+        /**
+         * 记录执行结果，任务结束后由线程池通知所有等待者
+         * 
+         * @param bt
+         * @param isCached
+         */
+        void setResult(Bitmap bt, boolean isCached) {
+            bitmapWR = new WeakReference<Bitmap>(bt);
+            mResultCached = isCached;
+        }
+
+        @Override
+        boolean isResultCached() {
+            return mResultCached;
+        }
+
+        /**
+         * 只预加载到磁盘的任务有正常加载的等待者时，在通知前解码
+         */
+        @Override
+        Bitmap getResultForWaiters(List<CustomRunnable> waiters) {
+            Bitmap bt = getResult();
+            if (bt == null && mStoredOnDisk && needsBitmap(waiters)) {
+                bt = mImageLoader.mDiskCache.getBitmapFromDisk(mAppContext, mUrl, mImageType,
+                        mIsFullQuality, mDiskCacheType, false, mTargetWidth, mTargetHeight);
+                mImageLoader.putBitmapToMemory(getCacheKey(), bt);
+                bitmapWR = new WeakReference<Bitmap>(bt);
+            }
+            return bt;
+        }
+
+        private static boolean needsBitmap(List<CustomRunnable> waiters) {
+            for (CustomRunnable waiter : waiters) {
+                if (waiter instanceof CustomRunnableImp
+                        && ((CustomRunnableImp) waiter).mPrefetchMode == null
+                        && !((CustomRunnableImp) waiter).isStale()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return 内存缓存key，同一url不同尺寸分别缓存
+         */
+        String getCacheKey() {
+            return getMemoryCacheKey(mUrl, mTargetWidth, mTargetHeight);
+        }
+
         @Override
         public Object getIdentity() {
             if (mUrl != null) {
-                return mUrl;
+                // 不下载的请求不与普通请求合并
+                return mIsLoadLocalExistImage || !mNetworkAllowed ? getCacheKey() + "#local"
+                        : getCacheKey();
             } else {
                 return super.getIdentity();
             }
         }
 
-        @Override
-        String getSubIdentity() {
-            return this.toString();
-        }
-
 		boolean isViewValide() {
 			if (mImageView != null) {
 				ImageView iv = mImageView.get();
-				if (iv != null && (iv.getTag() instanceof String)
-						&& mUrl.equals(iv.getTag())) {
+				if (iv != null && mUrl != null && mUrl.equals(iv.getTag())) {
 					return true;
 				} else {
 					return false;
@@ -533,6 +1503,11 @@ public class ImageLoader {
             if (mImageView == null && (mImgListener == null/* || mImgListener.get() == null*/)) {
                 // 通过url请求图片
                 DebugLog.log("DiskLoader", "DiskLoader run null with url: " + mUrl);
+                if (mRequest != null) {
+                    // 没有回调时通过句柄取得结果
+                    mRequest.finish(bt != null ? ImageRequest.Status.SUCCESS
+                            : ImageRequest.Status.FAILED, bt);
+                }
                 return;
             }
             if (mImageView != null) {
@@ -540,51 +1515,115 @@ public class ImageLoader {
                 ImageView iv = mImageView.get();
                 if (iv == null || !(iv.getTag() instanceof String) || !mUrl.equals(iv.getTag())) {
                     DebugLog.log("DiskLoader", "DiskLoader run null with ImageView: " + mUrl);
+                    if (mRequest != null) {
+                        mRequest.finish(ImageRequest.Status.CANCELLED, null);
+                    }
                     return;
                 }
             }
+            if (mRequest != null && !mRequest.finish(
+                    bt != null ? ImageRequest.Status.SUCCESS : ImageRequest.Status.FAILED, bt)) {
+                // 已取消
+                return;
+            }
 
+            // 结果已在内存缓存中，通知到主线程之前不能被淘汰复用
+            BitmapPool.getInstance().acquire(bt);
             mMainHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if (mImageView == null) {
-                        if (bt != null && mImgListener != null) {
+                    try {
+                        deliverResult(bt, isCached);
+                    } finally {
+                        BitmapPool.getInstance().release(bt);
+                    }
+                }
+            });
+
+            this.bitmapWR = new WeakReference<Bitmap>(bt);
+        }
+
+        private void deliverResult(Bitmap bt, boolean isCached) {
+            if (mImageView == null) {
+                if (bt != null && mImgListener != null) {
+                    ImageListener cb = mImgListener/*.get()*/;
+                    if (cb != null) {
+                        BitmapPool.getInstance().markShared(bt);
+                        cb.onSuccessResponse(bt, mUrl,isCached);
+                    }
+                } else if (mImgListener != null) {
+                    ImageListener cb = mImgListener/*.get()*/;
+                    if (cb != null) {
+                        cb.onErrorResponse(-1);
+                    }
+                }
+            } else {
+                ImageView iv = mImageView.get();
+
+                if (iv != null) {
+                    if (bt != null) {
+                        setImageBitmap(iv, bt);
+                        if (mImgListener != null) {
                             ImageListener cb = mImgListener/*.get()*/;
                             if (cb != null) {
+                                BitmapPool.getInstance().markShared(bt);
                                 cb.onSuccessResponse(bt, mUrl,isCached);
                             }
-                        } else if (mImgListener != null) {
+                        }
+                    } else {
+                        if (mImgListener != null) {
                             ImageListener cb = mImgListener/*.get()*/;
                             if (cb != null) {
                                 cb.onErrorResponse(-1);
                             }
                         }
-                    } else {
-                        ImageView iv = mImageView.get();
+                    }
+                }
+            }
+        }
 
-                        if (iv != null) {
-                            if (bt != null) {
-                                iv.setImageBitmap(bt);
-                                if (mImgListener != null) {
-                                    ImageListener cb = mImgListener/*.get()*/;
-                                    if (cb != null) {
-                                        cb.onSuccessResponse(bt, mUrl,isCached);
-                                    }
-                                }
-                            } else {
-                                if (mImgListener != null) {
-                                    ImageListener cb = mImgListener/*.get()*/;
-                                    if (cb != null) {
-                                        cb.onErrorResponse(-1);
-                                    }
-                                }
-                            }
+        /**
+         * @return 需要渐进显示预览的等待者
+         */
+        List<CustomRunnableImp> getPreviewWaiters() {
+            List<CustomRunnableImp> result = new ArrayList<CustomRunnableImp>(1);
+            for (CustomRunnable waiter : getWaiters()) {
+                if (waiter instanceof CustomRunnableImp
+                        && ((CustomRunnableImp) waiter).wantsPreview()) {
+                    result.add((CustomRunnableImp) waiter);
+                }
+            }
+            return result;
+        }
+
+        private boolean wantsPreview() {
+            return mPrefetchMode == null && mImgListener instanceof ProgressiveImageListener
+                    && !isStale();
+        }
+
+        /**
+         * 下载过程中通知预览，在最终结果之前到达主线程
+         * 
+         * @param preview
+         */
+        void onPreview(final Bitmap preview) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isStale()) {
+                        return;
+                    }
+                    if (mImageView != null) {
+                        ImageView iv = mImageView.get();
+                        if (iv == null) {
+                            return;
                         }
+                        setImageBitmap(iv, preview);
                     }
+                    BitmapPool.getInstance().markShared(preview);
+                    ((ProgressiveImageListener) mImgListener).onPreviewResponse(preview, mUrl);
                 }
             });
-
-            this.bitmapWR = new WeakReference<Bitmap>(bt);
         }
 
         @Override
@@ -597,6 +1636,18 @@ public class ImageLoader {
      * @author zhuchengjin 网络加载图片
      */
     class ImageDownloader extends CustomRunnableImp {
+        // 所有等待者都已取消，中断下载
+        private volatile boolean mAborted = false;
+
+        // 正在进行的请求
+        private volatile HttpClientWrap mWrap;
+
+        // 已解码的预览数
+        private int mPreviewCount = 0;
+
+        // 下载到该位置时解码下一个预览，-1表示尚未决定是否需要预览
+        private long mNextPreviewPosition = -1;
+
         public ImageDownloader(Context appContext, ImageView iv, ImageType type,
                 boolean isFullQuality, ImageListener imgLis, int diskCacheType) {
             super(appContext, iv, type, isFullQuality, imgLis, diskCacheType, false);
@@ -620,61 +1671,167 @@ public class ImageLoader {
         }
 
         /**
-         * 下载图片处理
+         * 中断正在进行的下载，已写入磁盘的部分保留，下次下载时续传
+         */
+        void abort() {
+            mAborted = true;
+            HttpClientWrap wrap = mWrap;
+            if (wrap != null) {
+                DebugLog.log("ImageDownloader", "abort: " + mUrl);
+                wrap.abort();
+            }
+        }
+
+        boolean isAborted() {
+            return mAborted;
+        }
+
+        /**
+         * 写入磁盘的过程中调用，需要渐进显示时在到达预定位置后从未写完的文件解码预览
          * 
+         * @param position 已写入的长度
+         * @param total 完整长度
          */
-        protected void processDownload() {
-            ImageView iv = null;
-            if (mImageView != null) {
-                iv = mImageView.get();
-                if (iv == null) {
-                    DebugLog.log("ImageDownloader", "processDownload mImageView has released: " + mUrl);
-                    return;
-                }
-            } else {
-                if (mImgListener == null/* || mImgListener.get() == null*/) {
-                    DebugLog.log("ImageDownloader",
-                            "ImageDownloader load picture with url, mCallback == null: " + mUrl);
+        void onProgress(long position, long total) {
+            if (mNextPreviewPosition < 0) {
+                if (total < PREVIEW_MIN_LENGTH || getPreviewWaiters().isEmpty()) {
+                    mNextPreviewPosition = Long.MAX_VALUE;
                     return;
                 }
+                mNextPreviewPosition = getPreviewPosition(total);
+            }
+            if (position < mNextPreviewPosition) {
+                return;
+            }
+            mPreviewCount++;
+            mNextPreviewPosition =
+                    mPreviewCount < MAX_PREVIEW_COUNT ? getPreviewPosition(total) : Long.MAX_VALUE;
+            List<CustomRunnableImp> waiters = getPreviewWaiters();
+            if (waiters.isEmpty()) {
+                return;
+            }
+            Bitmap preview = mDiskCache.getPreviewFromDisk(mAppContext, mUrl, mDiskCacheType,
+                    mTargetWidth, mTargetHeight);
+            DebugLog.log("ImageDownloader", "onProgress preview " + position + "/" + total
+                    + " " + (preview != null) + ": " + mUrl);
+            if (preview == null) {
+                return;
+            }
+            for (CustomRunnableImp waiter : waiters) {
+                waiter.onPreview(preview);
+            }
+        }
+
+        private long getPreviewPosition(long total) {
+            return total * (mPreviewCount + 1) / (MAX_PREVIEW_COUNT + 1);
+        }
+
+        /**
+         * 下载图片处理
+         * 
+         */
+        protected void processDownload() {
+            if (isCancelled()) {
+                DebugLog.log("ImageDownloader", "processDownload no waiter: " + mUrl);
+                return;
             }
 
             if (mAppContext == null) {
                 DebugLog.log("ImageDownloader", "ImageDownloader run context is null: " + mUrl);
                 return;
             }
+            // 请求表按url和尺寸合并，同一url的其他尺寸正在下载时等待其写完磁盘，之后直接从磁盘解码
+            String downloadKey = mUrl + "#" + mDiskCacheType;
+            CountDownLatch downloading = new CountDownLatch(1);
+            if (!acquireDownload(downloadKey, downloading)) {
+                DebugLog.log("ImageDownloader", "processDownload aborted while waiting: " + mUrl);
+                return;
+            }
+            try {
+                processDownloadLocked();
+            } finally {
+                mDownloadingUrls.remove(downloadKey);
+                downloading.countDown();
+            }
+        }
+
+        /**
+         * 成为url唯一的下载任务，其他任务正在下载时等待其结束
+         * 
+         * @return false表示等待期间已中断或所有等待者已取消
+         */
+        private boolean acquireDownload(String downloadKey, CountDownLatch downloading) {
+            CountDownLatch running;
+            while ((running = mDownloadingUrls.putIfAbsent(downloadKey, downloading)) != null) {
+                DebugLog.log("ImageDownloader", "processDownload wait for same url: " + mUrl);
+                try {
+                    while (!running.await(DOWNLOAD_WAIT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        if (mAborted || isCancelled()) {
+                            return false;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void processDownloadLocked() {
             long time = 0;
             if (DebugLog.isDebug())
                 time = System.currentTimeMillis();
 
             final Bitmap diskbt;
             // 判断磁盘图片是否存在
-            if (mDiskCache.hasBitmap(mAppContext, mUrl, mDiskCacheType)) {
+            boolean onDisk = mDiskCache.hasBitmap(mAppContext, mUrl, mDiskCacheType);
+            if (onDisk && mDiskCache.isFresh(mAppContext, mUrl, mDiskCacheType)) {
                 DebugLog.log("ImageDownloader", "processDownload file has exits: " + mUrl);
+                if (mPrefetchMode == PrefetchMode.DISK_ONLY) {
+                    mStoredOnDisk = true;
+                    return;
+                }
                 // 取出磁盘图片
                 diskbt =
                         mDiskCache.getBitmapFromDisk(mAppContext, mUrl, mImageType, mIsFullQuality,
-                                mDiskCacheType);
+                                mDiskCacheType, false, mTargetWidth, mTargetHeight);
+                if (mPrefetchMode == null) {
+                    mPrefetchMetrics.recordHit(mUrl, false);
+                }
                 if (DebugLog.isDebug()) {
                     sLoadImageFromDiskCount++;
                     DebugLog.log(TAG, "LoadImage from disk count: " + sLoadImageFromDiskCount);
                 }
-                onResult(diskbt, true);
+                setResult(diskbt, true);
             } else {
-                Bitmap bt = getBitmapStream(mAppContext, mUrl);
+                // 磁盘中的图片已过期时发起条件请求
+                DiskCacheMeta meta =
+                        onDisk ? mDiskCache.getMeta(mAppContext, mUrl, mDiskCacheType) : null;
+                Bitmap bt = getBitmapStream(mAppContext, mUrl, meta);
+                if (bt == null && !mStoredOnDisk && onDisk && !mAborted) {
+                    // 重新验证失败（如网络不可用）时仍使用过期的图片
+                    DebugLog.log("ImageDownloader", "processDownload use stale: " + mUrl);
+                    if (mPrefetchMode == PrefetchMode.DISK_ONLY) {
+                        mStoredOnDisk = true;
+                    } else {
+                        bt = mDiskCache.getBitmapFromDisk(mAppContext, mUrl, mImageType,
+                                mIsFullQuality, mDiskCacheType, false, mTargetWidth,
+                                mTargetHeight);
+                    }
+                }
                 if (DebugLog.isDebug()) {
                     sLoadImageFromNetCount++;
                     DebugLog.log(TAG, "LoadImage from network count: "
                             + sLoadImageFromNetCount);
                 }
-                onResult(bt, false);
+                setResult(bt, false);
+                if (mPrefetchMode != null && (bt != null || mStoredOnDisk)) {
+                    mPrefetchMetrics.onPrefetched(mUrl);
+                }
                 if (bt != null) {
-                    // 保存到磁盘
-                    mMessageMonitor2.addRequest(mAppContext, mUrl, bt, mImageType, mDiskCacheType);
-                    // 取出磁盘图片
+                    // 下载时原始数据已写入磁盘缓存
                     diskbt = bt;
-                          //mDiskCache.getBitmapFromDisk(mAppContext, mUrl, mImageType, mIsFullQuality,
-                          //        mDiskCacheType);
                 } else {
                     DebugLog.log("ImageDownloader", "processDownload download error: " + mUrl);
                     diskbt = null;
@@ -686,16 +1843,19 @@ public class ImageLoader {
                             + " : " + mUrl);
 
             // 添加到内存
-            putBitmapToMemory(mUrl, diskbt);
+            putBitmapToMemory(getCacheKey(), diskbt);
         }
 
         /**
-         * 获取图片数据,转换为bitmap
+         * 下载图片原始数据直接写入磁盘缓存，再从磁盘解码为bitmap，下载过程不在内存中保存完整数据。
+         * 磁盘中有过期的图片时带上If-None-Match/If-Modified-Since，服务器返回304时只更新有效期。
+         * 上次下载中断时带上Range/If-Range从已下载的位置续传，服务器返回206时追加到未写完的文件。
          * 
          * @param url
+         * @param meta 磁盘中过期图片的元数据，可以为null
          * @return
          */
-        private Bitmap getBitmapStream(Context context, String url) {
+        private Bitmap getBitmapStream(Context context, String url, DiskCacheMeta meta) {
             if (TextUtils.isEmpty(url) || context == null) {
                 DebugLog.log("ImageDownloader", "getBitmapStream para error: " + url);
                 return null;
@@ -703,8 +1863,36 @@ public class ImageLoader {
             HttpClientWrap wrap = null;
             try {
                 wrap = new HttpClientWrap(context);
+                wrap.setRequestType(HttpDispatcher.TYPE_IMAGE);
+                // 图片由DiskCache缓存和校验，不经过HttpResponseCache，避免在内存中缓冲并重复写入磁盘
+                wrap.setUseResponseCache(false);
+                mWrap = wrap;
+                mPreviewCount = 0;
+                mNextPreviewPosition = -1;
+                if (mAborted) {
+                    return null;
+                }
 
-                int errorCode = wrap.wrapHttpGet(url, new ByteArrayResponseHandler());
+                // 图片本身已压缩，不使用gzip，响应长度可用于校验和续传
+                Hashtable<String, String> headers = new Hashtable<String, String>();
+                headers.put("Accept-Encoding", "identity");
+                boolean conditional = null != meta && meta.hasValidator();
+                if (conditional) {
+                    if (!TextUtils.isEmpty(meta.etag)) {
+                        headers.put("If-None-Match", meta.etag);
+                    }
+                    if (!TextUtils.isEmpty(meta.lastModified)) {
+                        headers.put("If-Modified-Since", meta.lastModified);
+                    }
+                }
+                DiskCache.Partial partial = mDiskCache.getPartial(context, url, mDiskCacheType);
+                if (null != partial) {
+                    headers.put("Range", "bytes=" + partial.offset + "-");
+                    headers.put("If-Range", partial.meta.getRangeValidator());
+                }
+                int errorCode =
+                        wrap.wrapHttpGet(url, new DiskCacheResponseHandler(context, url,
+                                mDiskCacheType, this), headers);
                 HttpResponse response = wrap.getHttpResponse();
                 if (null == response) {
                     DebugLog.log("ImageDownloader",
@@ -713,33 +1901,39 @@ public class ImageLoader {
                     return null;
                 }
 
-                int responseCode = response.getStatusLine().getStatusCode();
-                if (responseCode != 200) {
+                if (errorCode != 0) {
                     DebugLog.log("ImageDownloader", "getBitmapStream null: " + url
-                            + " responseCode: " + responseCode);
+                            + " errorCode: " + errorCode);
                     return null;
                 }
 
-                if (errorCode != 0) {
+                int responseCode = response.getStatusLine().getStatusCode();
+                if (responseCode == HttpStatus.SC_NOT_MODIFIED && conditional) {
+                    // 未修改，磁盘中的图片继续使用
+                    DebugLog.log("ImageDownloader", "getBitmapStream not modified: " + url);
+                    mDiskCache.refreshMeta(context, url, mDiskCacheType, response);
+                } else if (responseCode != HttpStatus.SC_OK
+                        && responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
                     DebugLog.log("ImageDownloader", "getBitmapStream null: " + url
-                            + " errorCode: " + errorCode);
+                            + " responseCode: " + responseCode);
+                    return null;
+                } else if (!Boolean.TRUE.equals(wrap.getResponseData())) {
+                    DebugLog.log("ImageDownloader", "getBitmapStream save to disk fail: " + url);
                     return null;
                 }
 
-                byte[] _responseBuffer = (byte[]) wrap.getResponseData();
-                if (null == _responseBuffer || _responseBuffer.length < 1) {
-                    DebugLog.log("ImageDownloader", "getBitmapStream _responseBuffer null: " + url);
+                if (mPrefetchMode == PrefetchMode.DISK_ONLY) {
+                    // 只预加载到磁盘，不解码
+                    mStoredOnDisk = true;
                     return null;
                 }
 
-                Bitmap mBitmap = UITools.byteArray2ImgBitmap(context.getApplicationContext(),_responseBuffer);
-
-                if (null != mBitmap) {
-                    return mBitmap;
-                }
+                return mDiskCache.getBitmapFromDisk(context, url, mImageType, mIsFullQuality,
+                        mDiskCacheType, false, mTargetWidth, mTargetHeight);
             } catch (Exception e) {
                 DebugLog.log("ImageDownloader", "getBitmapStream " + url + " e:" + e);
             } finally {
+                mWrap = null;
                 if (null != wrap) {
                     wrap.release();
                     wrap = null;
@@ -751,261 +1945,154 @@ public class ImageLoader {
     }
 
     /**
-     * @author zhuchengjin 监听消息使用
+     * 将响应数据原样写入磁盘缓存，同时保存响应元数据，返回是否保存成功。
+     * 206时追加到未下载完的文件，416时删除未下载完的文件。
      */
-    @SuppressLint("NewApi")
-    private class MessageMonitor implements Runnable {
-        private static final int MSG_QUEUE_SIZE = 10;
-    	private static final int MSG_QUEUE_SIZE2 = 10;
-        // 缓存网络下载任务
-        private LinkedBlockingDeque<Runnable> mMsgQueue = new LinkedBlockingDeque<Runnable>(
-                MSG_QUEUE_SIZE + 1);
-		private LinkedBlockingDeque<Runnable> mMsgQueue2 = new LinkedBlockingDeque<Runnable>(
-        		MSG_QUEUE_SIZE2 + 1);
-        // 等待锁
-        private Object mLockForWait = new Object();
-        /**
-         * true停止
-         */
-        private Boolean mStop = false;
-        // 暂停从消息队列取消息
-        private Boolean mPause = false;
-
-        /**
-         * 设置是否暂停消息处理
-         * 
-         * @param flag
-         */
-        private void setPause(Boolean flag) {
-//        	flag = false;
-            if (mPause.equals(flag)) {
-
-                DebugLog.log("MessageMonitor", "setPause return flag:" + flag + "  mPause:"
-                        + mPause);
+    private class DiskCacheResponseHandler extends AbstractResponseHandler {
+        private Context mContext;
+        private String mUrl;
+        private int mDiskCacheType;
+        private ImageDownloader mDownloader;
+
+        DiskCacheResponseHandler(Context context, String url, int diskCacheType,
+                ImageDownloader downloader) {
+            mContext = context;
+            mUrl = url;
+            mDiskCacheType = diskCacheType;
+            mDownloader = downloader;
+        }
 
-                return;
+        @Override
+        public Boolean handleResponseImpl(HttpResponse response) throws ClientProtocolException,
+                IOException {
+            if (null == response) {
+                return Boolean.FALSE;
             }
-            DebugLog.log("MessageMonitor", "setPause flag:" + flag + "  mPause:" + mPause);
-
-            mPause = flag;
-            if (!mPause) {
-                cancelWait();
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // 已下载的部分与服务器上的文件不一致，下次重新下载
+                mDiskCache.removePartial(mContext, mUrl, mDiskCacheType);
+                return Boolean.FALSE;
             }
-        }
-
-        /**
-         * 停止任务
-         */
-        /*
-         * public void stop() { mStop = true; }
-         */
-
-        /**
-         * 添加运行任务
-         * 
-         * @param r
-         */
-        public void addRunnable(Runnable r) {
-            if (r != null) {
-				try {
-					while (mMsgQueue.size() >= MSG_QUEUE_SIZE) {
-						Runnable rr = mMsgQueue.removeFirst();
-						if (rr != null) {
-							DebugLog.log("MessageMonitor",
-									"remove runnable "
-											+ ((ImageDownloader) rr).mUrl);
-							while (mMsgQueue2.size() >= MSG_QUEUE_SIZE2) {
-								Runnable rr2 = mMsgQueue2.removeLast();
-								DebugLog.log("MessageMonitor", "remove runnable2 "
-										+ ((ImageDownloader) rr2).mUrl);
-							}
-                            mMsgQueue2.offerFirst(rr);
-						}
-					}
-					mMsgQueue.addLast(r);
-					DebugLog.log("MessageMonitor", "Current size: "
-							+ mMsgQueue.size() + " add runnable "
-							+ ((ImageDownloader) r).mUrl);
-				} catch (NoSuchElementException nsee) {
-                    DebugLog.log("MessageMonitor", "addRunnable nsee:" + nsee);
-                } catch (IllegalStateException ise) {
-                    DebugLog.log("MessageMonitor", "addRunnable ise:" + ise);
-                } catch (NullPointerException npe) {
-                    DebugLog.log("MessageMonitor", "addRunnable npe:" + npe);
+            if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                return Boolean.FALSE;
+            }
+            HttpEntity httpEntity = response.getEntity();
+            if (null == httpEntity) {
+                return Boolean.FALSE;
+            }
+            long[] range = null;
+            if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                range = parseContentRange(response.getFirstHeader("Content-Range"));
+                if (null == range) {
+                    DebugLog.log("ImageDownloader", "invalid Content-Range: " + mUrl);
+                    mDiskCache.removePartial(mContext, mUrl, mDiskCacheType);
+                    return Boolean.FALSE;
                 }
             }
-        }
-
-        /**
-         * 请求等待
-         */
-        public void requestWait() {
-            synchronized (mLockForWait) {
-                try {
-                    mLockForWait.wait();
-                } catch (Exception e) {
-                    DebugLog.log("MessageMonitor", "requestWait e:" + e);
+            DiskCacheMeta meta = DiskCacheMeta.fromResponse(response, System.currentTimeMillis());
+            InputStream in = null == range ? new AbortableInputStream(httpEntity.getContent(),
+                    mDownloader, 0, httpEntity.getContentLength()) : new AbortableInputStream(
+                    httpEntity.getContent(), mDownloader, range[0], range[1]);
+            try {
+                if (null != range) {
+                    return mDiskCache.appendBytesToDisk(mContext, mUrl, in, mDiskCacheType, meta,
+                            range[0], range[1]);
                 }
+                return mDiskCache.putBytesToDisk(mContext, mUrl, in, mDiskCacheType, meta,
+                        httpEntity.getContentLength());
+            } finally {
+                in.close();
             }
         }
 
         /**
-         * 取消等待
+         * 解析"bytes start-end/total"
+         * 
+         * @param header
+         * @return {start, total}，格式不正确或数据不到文件末尾时返回null
          */
-        public void cancelWait() {
-            synchronized (mLockForWait) {
-                try {
-                    mLockForWait.notifyAll();
-                } catch (Exception e) {
-                    DebugLog.log("MessageMonitor", "cancelWait e:" + e);
+        private long[] parseContentRange(Header header) {
+            if (null == header || null == header.getValue()) {
+                return null;
+            }
+            String value = header.getValue().trim();
+            if (!value.startsWith("bytes ")) {
+                return null;
+            }
+            int dash = value.indexOf('-');
+            int slash = value.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                return null;
+            }
+            try {
+                long start = Long.parseLong(value.substring(6, dash).trim());
+                long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+                long total = Long.parseLong(value.substring(slash + 1).trim());
+                if (start < 0 || end != total - 1 || start > end) {
+                    return null;
                 }
+                return new long[] {
+                        start, total
+                };
+            } catch (NumberFormatException e) {
+                return null;
             }
         }
+    }
 
-        @Override
-        public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    /**
+     * 下载中断后读取时抛出异常，使写入磁盘的过程停止，已写入的部分保留用于续传。
+     * 完整长度已知时把读取进度通知下载任务，用于渐进显示。
+     */
+    private static class AbortableInputStream extends FilterInputStream {
+        private final ImageDownloader mDownloader;
 
-            Runnable runnable = null;
-            while (!mStop) {
-                runnable = null;
+        // 已读到的位置，包括续传前已下载的部分
+        private long mPosition;
 
-                // 暂停取消息
-                if (mPause) {
-                    DebugLog.log("MessageMonitor", "run wait pause cancel");
-                    requestWait();
-                    continue;
-                }
+        // 完整长度，未知时为-1
+        private final long mTotal;
 
-                if (EXECUTOR_FOR_NETWORK.getQueue().remainingCapacity() < 1) {
-                    try {
-                        DebugLog.log("MessageMonitor", "run sleep 40ms");
-                        Thread.sleep(40);
-                    } catch (InterruptedException e) {
-                        DebugLog.log("MessageMonitor", "run sleep :" + e);
-                    }
-                    continue;
-                }
-				try {
-					int queue1size1 = mMsgQueue.size();
-					int queue2size2 = mMsgQueue2.size();
-					if (queue1size1 > 0) {
-						runnable = mMsgQueue.takeFirst();
-						if (!((ImageDownloader) runnable).isViewValide()) {
-							while (mMsgQueue2.size() >= MSG_QUEUE_SIZE2) {
-								mMsgQueue2.removeLast();
-							}
-                            mMsgQueue2.offerFirst(runnable);
-							runnable = null;
-						}
-					} else if (queue2size2 > 0) {
-						runnable = mMsgQueue2.takeFirst();
-					} else {
-						runnable = mMsgQueue.takeFirst();
-						if (!((ImageDownloader) runnable).isViewValide()) {
-							while (mMsgQueue2.size() >= MSG_QUEUE_SIZE2) {
-								mMsgQueue2.removeLast();
-							}
-                            mMsgQueue2.offerFirst(runnable);
-							runnable = null;
-						}
-					}
-                    //Log.v("MessageMonitor", "mMsgQueue1.size:" + mMsgQueue.size());
-                    //Log.v("MessageMonitor", "mMsgQueue2.size:" + mMsgQueue2.size());
-				} catch (InterruptedException e) {
-                    DebugLog.log("MessageMonitor", "run e:" + e.getStackTrace());
-                } catch (IllegalStateException e) {
-                    DebugLog.log("MessageMonitor", "run e:" + e.getStackTrace());
-                } catch (Exception e) {
-                    DebugLog.log("MessageMonitor", "run e:" + e.getStackTrace());
-                }
-
-                // 网络下载图片
-                if (runnable != null) {
-                    EXECUTOR_FOR_NETWORK.execute(runnable);
-                }
-            }
-        }
-    }
-
-	@SuppressLint("NewApi")
-	private class BitmapToDiskMonitor implements Runnable {
-
-		class BitmapInfo {
-			private Context mContext;
-			private String mUrl;
-			private Bitmap mBitmap;
-			private ImageType mType;
-			private int mDiskCacheType;
-
-			public BitmapInfo(Context context, String url, Bitmap bitmap,
-					ImageType type, int diskCacheType) {
-				mContext = context;
-				mUrl = url;
-				mBitmap = bitmap;
-				mType = type;
-				mDiskCacheType = diskCacheType;
-			}
-		}
+        AbortableInputStream(InputStream in, ImageDownloader downloader, long position,
+                long total) {
+            super(in);
+            mDownloader = downloader;
+            mPosition = position;
+            mTotal = total;
+        }
 
-		private static final int MSG_QUEUE_SIZE = 20;
-		// 图片保存请求队列
-		private LinkedBlockingDeque<BitmapInfo> mMsgQueue = new LinkedBlockingDeque<BitmapInfo>(
-				MSG_QUEUE_SIZE);
-		/**
-		 * true停止
-		 */
-		private Boolean mStop = false;
-
-		/**
-		 * 添加运行任务
-		 * 
-		 */
-		public void addRequest(Context context, String url, Bitmap bitmap,
-				ImageType type, int diskCacheType) {
-			if (url != null && bitmap != null) {
-				try {
-					BitmapInfo info = new BitmapInfo(context, url, bitmap,
-							type, diskCacheType);
-					while (mMsgQueue.size() >= MSG_QUEUE_SIZE) {
-						mMsgQueue.removeFirst();
-					}
-					mMsgQueue.addLast(info);
-					DebugLog.log("BitmapToDiskMonitor", "Current size: "
-							+ mMsgQueue.size() + " add runnable " + url);
-				} catch (NoSuchElementException nsee) {
-					DebugLog.log("BitmapToDiskMonitor",
-							"addRunnable nsee:" + nsee);
-				} catch (IllegalStateException ise) {
-					DebugLog.log("BitmapToDiskMonitor", "addRunnable ise:"
-							+ ise);
-				} catch (NullPointerException npe) {
-					DebugLog.log("BitmapToDiskMonitor", "addRunnable npe:"
-							+ npe);
-				}
-			}
-		}
+        @Override
+        public int read() throws IOException {
+            checkAborted();
+            int b = super.read();
+            if (b != -1) {
+                onRead(1);
+            }
+            return b;
+        }
 
-		@Override
-		public void run() {
-			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
-			BitmapInfo runnable = null;
-			while (!mStop) {
-				runnable = null;
-				try {
-					runnable = mMsgQueue.takeFirst();
-				} catch (InterruptedException e) {
-					DebugLog.log("BitmapToDiskMonitor", "run e:" + e.getStackTrace());
-				}
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkAborted();
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                onRead(read);
+            }
+            return read;
+        }
 
-				// 网络下载图片
-				if (runnable != null) {
-					mDiskCache.putBitmapToDisk(runnable.mContext,
-							runnable.mUrl, runnable.mBitmap, runnable.mType,
-							runnable.mDiskCacheType);
-				}
-			}
-		}
-	}
+        private void onRead(int count) {
+            mPosition += count;
+            if (mDownloader != null && mTotal > 0) {
+                mDownloader.onProgress(mPosition, mTotal);
+            }
+        }
+
+        private void checkAborted() throws IOException {
+            if (mDownloader != null && mDownloader.isAborted()) {
+                throw new InterruptedIOException("download aborted");
+            }
+        }
+    }
 }
@@ -0,0 +1,137 @@
+package com.android.kernellib.imageLoader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+
+/**
+ * loadImage返回的请求句柄，可以取消、查询状态、等待结果。
+ *
+ * 取消后不再回调ImageListener、不再设置ImageView。同一图片没有其他请求等待时，
+ * 排队的任务移出队列，正在进行的下载被中断，已下载的部分保留在磁盘上，之后的请求用Range续传。
+ * 已完成的请求不能取消，结果可能已经在投递到主线程的途中。
+ */
+public class ImageRequest {
+    public enum Status {
+        PENDING, SUCCESS, FAILED, CANCELLED
+    }
+
+    private final String mUrl;
+
+    // 分组，用于批量取消，如发起请求的Activity
+    private final Object mGroup;
+
+    private volatile Status mStatus = Status.PENDING;
+
+    private volatile Bitmap mBitmap;
+
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+
+    // 请求表中的key，确定目标尺寸后设置
+    private volatile Object mKey;
+
+    ImageRequest(String url, Object group) {
+        mUrl = url;
+        mGroup = group;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public Object getGroup() {
+        return mGroup;
+    }
+
+    public Status getStatus() {
+        return mStatus;
+    }
+
+    public boolean isDone() {
+        return mStatus != Status.PENDING;
+    }
+
+    public boolean isCancelled() {
+        return mStatus == Status.CANCELLED;
+    }
+
+    /**
+     * @return 加载成功时返回图片，否则返回null
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * 取消请求
+     *
+     * @return false表示请求已完成或已取消
+     */
+    public boolean cancel() {
+        if (!finish(Status.CANCELLED, null)) {
+            return false;
+        }
+        ImageLoader.onRequestCancelled(this);
+        return true;
+    }
+
+    /**
+     * 等待请求完成，不能在主线程调用
+     *
+     * @return 加载成功时返回图片，失败或取消时返回null
+     * @throws InterruptedException
+     */
+    public Bitmap await() throws InterruptedException {
+        mDoneLatch.await();
+        return mBitmap;
+    }
+
+    /**
+     * 等待请求完成，不能在主线程调用
+     *
+     * @param timeout
+     * @param unit
+     * @return 加载成功时返回图片，失败、取消或超时返回null
+     * @throws InterruptedException
+     */
+    public Bitmap await(long timeout, TimeUnit unit) throws InterruptedException {
+        mDoneLatch.await(timeout, unit);
+        return mBitmap;
+    }
+
+    void setKey(Object key) {
+        mKey = key;
+    }
+
+    Object getKey() {
+        return mKey;
+    }
+
+    /**
+     * 结束请求，只有第一次调用有效
+     *
+     * @param status
+     * @param bitmap
+     * @return 是否由本次调用结束
+     */
+    boolean finish(Status status, Bitmap bitmap) {
+        synchronized (this) {
+            if (mStatus != Status.PENDING) {
+                return false;
+            }
+            mBitmap = status == Status.SUCCESS ? bitmap : null;
+            mStatus = status;
+        }
+        // 调用方可通过getBitmap()/await()持有结果，不能再被内存缓存淘汰后复用
+        BitmapPool.getInstance().markShared(mBitmap);
+        mDoneLatch.countDown();
+        ImageLoader.onRequestFinished(this);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageRequest[url=" + mUrl + ",status=" + mStatus + "]";
+    }
+}
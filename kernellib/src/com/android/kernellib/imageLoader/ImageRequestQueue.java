@@ -0,0 +1,486 @@
+package com.android.kernellib.imageLoader;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.android.kernellib.imageLoader.ImageLoader.Priority;
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 图片下载线程池的任务队列，每次取出优先级最高的任务。
+ *
+ * 排序依次按：显式优先级、是否可见（ImageView仍绑定该url且在窗口中）、加入时间（新的优先）。
+ * 可见性在取任务时实时判断，ImageView已被用于其他图片或已被回收的任务直接丢弃。
+ * 队列满时丢弃排序最低的任务。暂停时取任务的线程等待，恢复时通过Condition唤醒。
+ * 被丢弃或取消的任务在释放锁后通知{@link OnDropListener}。
+ */
+class ImageRequestQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private static final String TAG = "ImageRequestQueue";
+
+    /**
+     * 可排序的任务
+     */
+    interface Request {
+        Priority getPriority();
+
+        /**
+         * @return ImageView已被用于其他图片或已被回收
+         */
+        boolean isCancelled();
+
+        /**
+         * @return 是否正在显示或有回调等待
+         */
+        boolean isVisible();
+
+        /**
+         * @param view
+         * @return 是否是为该view发起的请求
+         */
+        boolean isBoundTo(Object view);
+    }
+
+    /**
+     * 任务被丢弃或取消时的回调
+     */
+    interface OnDropListener {
+        void onDropped(Runnable r);
+    }
+
+    private final int mCapacity;
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    private boolean mPaused = false;
+
+    private volatile OnDropListener mOnDropListener;
+
+    // 加锁期间丢弃的任务，释放锁后通知
+    private ArrayList<Runnable> mDropped = new ArrayList<Runnable>();
+
+    private long mSequence = 0;
+
+    // 统计
+    private long mTakenCount = 0;
+    private long mTotalWaitTime = 0;
+    private long mMaxWaitTime = 0;
+    private long mCancelledCount = 0;
+    private long mDiscardedCount = 0;
+
+    private static class Entry {
+        final Runnable runnable;
+        final long sequence;
+        final long enqueueTime;
+
+        Entry(Runnable runnable, long sequence) {
+            this.runnable = runnable;
+            this.sequence = sequence;
+            this.enqueueTime = System.currentTimeMillis();
+        }
+    }
+
+    ImageRequestQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    void setOnDropListener(OnDropListener listener) {
+        mOnDropListener = listener;
+    }
+
+    /**
+     * 暂停或恢复取任务，滑动时暂停
+     *
+     * @param paused
+     */
+    void setPaused(boolean paused) {
+        mLock.lock();
+        try {
+            if (mPaused == paused) {
+                return;
+            }
+            mPaused = paused;
+            if (!paused) {
+                mNotEmpty.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 取消为该view发起、但已不再需要的任务
+     *
+     * @param view
+     * @return 取消的任务数
+     */
+    int cancel(Object view) {
+        int count = 0;
+        mLock.lock();
+        try {
+            Iterator<Entry> it = mEntries.iterator();
+            while (it.hasNext()) {
+                Runnable r = it.next().runnable;
+                if (r instanceof Request && ((Request) r).isBoundTo(view)
+                        && ((Request) r).isCancelled()) {
+                    it.remove();
+                    mDropped.add(r);
+                    count++;
+                }
+            }
+            mCancelledCount += count;
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+        if (count > 0) {
+            DebugLog.log(TAG, "cancel " + count);
+        }
+        return count;
+    }
+
+    /**
+     * 移除所有已取消的任务
+     */
+    void purge() {
+        mLock.lock();
+        try {
+            removeCancelled();
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        mLock.lock();
+        try {
+            if (mEntries.size() >= mCapacity) {
+                removeCancelled();
+            }
+            if (mEntries.size() >= mCapacity) {
+                int worst = findBest(false);
+                if (compare(new Entry(r, mSequence + 1), mEntries.get(worst)) < 0) {
+                    // 新任务排序最低，直接丢弃
+                    mDiscardedCount++;
+                    mDropped.add(r);
+                    return true;
+                }
+                mDropped.add(mEntries.remove(worst).runnable);
+                mDiscardedCount++;
+            }
+            mEntries.add(new Entry(r, ++mSequence));
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (true) {
+                Runnable r = mPaused ? null : dequeue();
+                if (r != null) {
+                    return r;
+                }
+                mNotEmpty.await();
+            }
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (true) {
+                Runnable r = mPaused ? null : dequeue();
+                if (r != null) {
+                    return r;
+                }
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return mPaused ? null : dequeue();
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            removeCancelled();
+            if (mEntries.isEmpty()) {
+                return null;
+            }
+            return mEntries.get(findBest(true)).runnable;
+        } finally {
+            mLock.unlock();
+            notifyDropped();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (mEntries.get(i).runnable == o) {
+                    mEntries.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mEntries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        // 队列满时丢弃排序最低的任务，总能放入
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * 返回快照，不支持通过迭代器删除
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        mLock.lock();
+        try {
+            ArrayList<Runnable> list = new ArrayList<Runnable>(mEntries.size());
+            for (Entry entry : mEntries) {
+                list.add(entry.runnable);
+            }
+            return list.iterator();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        mLock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !mEntries.isEmpty()) {
+                c.add(mEntries.remove(mEntries.size() - 1).runnable);
+                count++;
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getCancelledCount() {
+        mLock.lock();
+        try {
+            return mCancelledCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getDiscardedCount() {
+        mLock.lock();
+        try {
+            return mDiscardedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 任务在队列中的平均等待时间（毫秒）
+     */
+    long getAverageWaitTime() {
+        mLock.lock();
+        try {
+            return mTakenCount == 0 ? 0 : mTotalWaitTime / mTakenCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 任务在队列中的最长等待时间（毫秒）
+     */
+    long getMaxWaitTime() {
+        mLock.lock();
+        try {
+            return mMaxWaitTime;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        mLock.lock();
+        try {
+            return "ImageRequestQueue[depth=" + mEntries.size() + ",taken=" + mTakenCount
+                    + ",avgWait=" + (mTakenCount == 0 ? 0 : mTotalWaitTime / mTakenCount)
+                    + ",maxWait=" + mMaxWaitTime + ",cancelled=" + mCancelledCount
+                    + ",discarded=" + mDiscardedCount + ",paused=" + mPaused + "]";
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Runnable dequeue() {
+        removeCancelled();
+        if (mEntries.isEmpty()) {
+            return null;
+        }
+        Entry entry = mEntries.remove(findBest(true));
+        long wait = System.currentTimeMillis() - entry.enqueueTime;
+        mTakenCount++;
+        mTotalWaitTime += wait;
+        if (wait > mMaxWaitTime) {
+            mMaxWaitTime = wait;
+        }
+        return entry.runnable;
+    }
+
+    private void removeCancelled() {
+        Iterator<Entry> it = mEntries.iterator();
+        while (it.hasNext()) {
+            Runnable r = it.next().runnable;
+            if (r instanceof Request && ((Request) r).isCancelled()) {
+                it.remove();
+                mDropped.add(r);
+                mCancelledCount++;
+            }
+        }
+    }
+
+    /**
+     * 通知加锁期间丢弃的任务，须在释放锁后调用
+     */
+    private void notifyDropped() {
+        ArrayList<Runnable> dropped;
+        mLock.lock();
+        try {
+            if (mDropped.isEmpty()) {
+                return;
+            }
+            dropped = mDropped;
+            mDropped = new ArrayList<Runnable>();
+        } finally {
+            mLock.unlock();
+        }
+        OnDropListener listener = mOnDropListener;
+        if (listener != null) {
+            for (Runnable r : dropped) {
+                listener.onDropped(r);
+            }
+        }
+    }
+
+    /**
+     * @param best true返回排序最高的任务，false返回排序最低的任务
+     * @return 下标，队列不能为空
+     */
+    private int findBest(boolean best) {
+        int index = 0;
+        for (int i = 1; i < mEntries.size(); i++) {
+            int result = compare(mEntries.get(i), mEntries.get(index));
+            if (best ? result > 0 : result < 0) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return 大于0表示lhs应先执行
+     */
+    private static int compare(Entry lhs, Entry rhs) {
+        int result = getPriority(lhs.runnable).compareTo(getPriority(rhs.runnable));
+        if (result != 0) {
+            return result;
+        }
+        boolean lhsVisible = isVisible(lhs.runnable);
+        boolean rhsVisible = isVisible(rhs.runnable);
+        if (lhsVisible != rhsVisible) {
+            return lhsVisible ? 1 : -1;
+        }
+        return lhs.sequence > rhs.sequence ? 1 : (lhs.sequence == rhs.sequence ? 0 : -1);
+    }
+
+    private static Priority getPriority(Runnable r) {
+        if (r instanceof Request) {
+            Priority priority = ((Request) r).getPriority();
+            if (priority != null) {
+                return priority;
+            }
+        }
+        return Priority.NORMAL;
+    }
+
+    private static boolean isVisible(Runnable r) {
+        return !(r instanceof Request) || ((Request) r).isVisible();
+    }
+}
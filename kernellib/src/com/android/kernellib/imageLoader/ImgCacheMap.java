@@ -1,5 +1,10 @@
 package com.android.kernellib.imageLoader;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
 import android.os.Build;
@@ -7,12 +12,24 @@ import android.text.TextUtils;
 
 import com.android.kernellib.utility.DebugLog;
 
+/**
+ * 两级内存缓存：强引用LRU，以及保存被LRU淘汰的Bitmap弱引用的第二级。
+ * 
+ * 被淘汰但仍在显示的Bitmap不会立即被回收，滑动回来时可以从弱引用中直接取回，不需要重新解码。
+ * 被淘汰的Bitmap如果放入了BitmapPool就不再放入弱引用缓存，两者不会持有同一个Bitmap。
+ */
 public class ImgCacheMap<K, V>
 {
 	private static final String TAG = ImgCacheMap.class.getSimpleName();
 
 	private final KiloByteBitmapCache<String, Bitmap> mLruMemCache;
 
+	private final WeakTier mWeakTier = new WeakTier();
+
+	private final AtomicInteger mStrongHitCount = new AtomicInteger();
+	private final AtomicInteger mWeakHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
 	/**
 	 * Creates a KiloByteBitmapCache instance initialized to hold (total
 	 * available memory) / memoryFraction kilobytes worth of Bitmaps.
@@ -22,11 +39,13 @@ public class ImgCacheMap<K, V>
 	public ImgCacheMap(final int memoryFraction)
 	{
 		mLruMemCache = KiloByteBitmapCache.create(memoryFraction, false);
+		mLruMemCache.mWeakTier = mWeakTier;
 	}
 
 	public ImgCacheMap(final int memoryFraction, boolean enableFraction)
 	{
 		mLruMemCache = KiloByteBitmapCache.create(memoryFraction, enableFraction);
+		mLruMemCache.mWeakTier = mWeakTier;
 	}
 
 	public Bitmap put(String key, Bitmap value)
@@ -36,6 +55,7 @@ public class ImgCacheMap<K, V>
 		}
 		DebugLog.log(TAG, "Current LruMemCache size is : " + mLruMemCache.size()
                     + " , Max size: " + mLruMemCache.maxSize());
+		mWeakTier.remove(key);
 		return mLruMemCache.put(key, value);
 	}
 
@@ -43,21 +63,131 @@ public class ImgCacheMap<K, V>
 		if (TextUtils.isEmpty(key)) {
 			return null;
 		}
-        DebugLog.log(TAG, "miss count: " + mLruMemCache.missCount() + " hit count: "
-                + mLruMemCache.hitCount() + " put count: " + mLruMemCache.putCount());
-		return mLruMemCache.get(key);
+		Bitmap bitmap = mLruMemCache.get(key);
+		if (bitmap != null) {
+			mStrongHitCount.incrementAndGet();
+			return bitmap;
+		}
+		// 从弱引用缓存取回，放回强引用缓存
+		bitmap = mWeakTier.remove(key);
+		if (bitmap != null) {
+			mLruMemCache.put(key, bitmap);
+		}
+		if (bitmap != null) {
+			mWeakHitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+		return bitmap;
 	}
 
 	public void clear()
 	{
 		mLruMemCache.evictAll();
+		mWeakTier.clear();
+		// 清空缓存通常是为了释放内存，不保留到复用池
+		BitmapPool.getInstance().clear();
 	}
 	
+	/**
+	 * @return 强引用缓存命中次数
+	 */
+	public int strongHitCount() {
+		return mStrongHitCount.get();
+	}
+
+	/**
+	 * @return 弱引用缓存命中次数，较高时说明强引用缓存偏小
+	 */
+	public int weakHitCount() {
+		return mWeakHitCount.get();
+	}
+
+	public int missCount() {
+		return mMissCount.get();
+	}
+
+	@Override
+	public String toString() {
+		int strongHits = mStrongHitCount.get();
+		int weakHits = mWeakHitCount.get();
+		int misses = mMissCount.get();
+		int accesses = strongHits + weakHits + misses;
+		int strongPercent = accesses != 0 ? (100 * strongHits / accesses) : 0;
+		int weakPercent = accesses != 0 ? (100 * weakHits / accesses) : 0;
+		return String.format("ImgCacheMap[size=%d,maxSize=%d,weakSize=%d,strongHits=%d,"
+				+ "weakHits=%d,misses=%d,strongHitRate=%d%%,weakHitRate=%d%%]",
+				mLruMemCache.size(), mLruMemCache.maxSize(), mWeakTier.size(),
+				strongHits, weakHits, misses, strongPercent, weakPercent);
+	}
+
+	/**
+	 * 保存被LRU淘汰的Bitmap的弱引用，已被回收的引用通过ReferenceQueue清理
+	 */
+	static class WeakTier {
+		private final HashMap<String, BitmapReference> mMap =
+				new HashMap<String, BitmapReference>();
+
+		private final ReferenceQueue<Bitmap> mQueue = new ReferenceQueue<Bitmap>();
+
+		private static class BitmapReference extends WeakReference<Bitmap> {
+			final String key;
+
+			BitmapReference(String key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+				super(bitmap, queue);
+				this.key = key;
+			}
+		}
+
+		synchronized void put(String key, Bitmap bitmap) {
+			purge();
+			mMap.put(key, new BitmapReference(key, bitmap, mQueue));
+		}
+
+		/**
+		 * 取出并移除
+		 * 
+		 * @param key
+		 * @return 已被回收时返回null
+		 */
+		synchronized Bitmap remove(String key) {
+			purge();
+			BitmapReference ref = mMap.remove(key);
+			Bitmap bitmap = ref == null ? null : ref.get();
+			if (bitmap != null && bitmap.isRecycled()) {
+				return null;
+			}
+			return bitmap;
+		}
+
+		synchronized int size() {
+			purge();
+			return mMap.size();
+		}
+
+		synchronized void clear() {
+			mMap.clear();
+			while (mQueue.poll() != null) {
+				// 清空队列
+			}
+		}
+
+		private void purge() {
+			BitmapReference ref;
+			while ((ref = (BitmapReference) mQueue.poll()) != null) {
+				// 同一key可能已放入新的引用
+				if (mMap.get(ref.key) == ref) {
+					mMap.remove(ref.key);
+				}
+			}
+		}
+	}
+
 	/**
 	 * A Bitmap cache that measures the size in kilo-bytes and provides a
 	 * factory method to adjust to available memory.
 	 */
-	static class KiloByteBitmapCache<K, V> extends LruCache<K, V> {
+	static class KiloByteBitmapCache<K, V> extends ConcurrentLruCache<K, V> {
 
 		private static final int KILOBYTE = 1024;
 
@@ -67,6 +197,24 @@ public class ImgCacheMap<K, V>
 			super(maxSize);
 		}
 
+		// 被淘汰的Bitmap放入的弱引用缓存
+		WeakTier mWeakTier;
+
+		/**
+		 * 淘汰或被替换的Bitmap放入BitmapPool供解码时复用。
+		 * 不能复用（如仍在显示）的淘汰Bitmap放入弱引用缓存。
+		 */
+		@Override
+		protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+			if (!(oldValue instanceof Bitmap) || oldValue == newValue) {
+				return;
+			}
+			if (!BitmapPool.getInstance().put((Bitmap) oldValue) && evicted
+					&& mWeakTier != null && key instanceof String) {
+				mWeakTier.put((String) key, (Bitmap) oldValue);
+			}
+		}
+
 		@Override
 		protected int sizeOf(K key, V bitmap) {
 			// The cache size will be measured in kilobytes rather than
@@ -124,7 +272,7 @@ public class ImgCacheMap<K, V>
 		}
 
         @SuppressLint("NewApi")
-		private static int getBitmapSize(Bitmap value) {
+		static int getBitmapSize(Bitmap value) {
 
             int ret = 0;
 
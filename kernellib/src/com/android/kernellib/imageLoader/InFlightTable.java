@@ -0,0 +1,136 @@
+package com.android.kernellib.imageLoader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 正在加载的请求表，磁盘和网络线程池共用，key为CustomRunnable的getIdentity（url加目标尺寸）。
+ *
+ * 同一key只有第一个请求进入线程池执行，之后的请求作为等待者挂在表项上，不会重复读磁盘或下载。
+ * 磁盘未命中时由磁盘任务把表项交给网络任务（{@link #handoff}），等待者保持不变。
+ * 表项的当前执行任务结束时移除表项，返回全部等待者用于通知结果。
+ * 同一url不同尺寸属于不同表项，其下载由ImageDownloader按url串行，只下载一次。
+ */
+class InFlightTable {
+    private final ConcurrentHashMap<Object, Call> mCalls = new ConcurrentHashMap<Object, Call>();
+
+    private static class Call {
+        // 等待结果的请求，包括第一个请求
+        final ArrayList<CustomRunnable> waiters = new ArrayList<CustomRunnable>(2);
+        // 当前负责执行的任务
+        CustomRunnable owner;
+        // 已完成，不再接受等待者
+        boolean done;
+    }
+
+    /**
+     * 加入请求表
+     *
+     * @param key
+     * @param request
+     * @return true表示没有相同的请求，调用方需要执行该任务；false表示已作为等待者加入
+     */
+    boolean join(Object key, CustomRunnable request) {
+        while (true) {
+            Call call = mCalls.get(key);
+            if (call == null) {
+                Call newCall = new Call();
+                newCall.owner = request;
+                newCall.waiters.add(request);
+                call = mCalls.putIfAbsent(key, newCall);
+                if (call == null) {
+                    return true;
+                }
+            }
+            synchronized (call) {
+                if (!call.done) {
+                    call.waiters.add(request);
+                    return false;
+                }
+            }
+            // 表项刚刚完成，重新加入
+        }
+    }
+
+    /**
+     * 把表项交给下一阶段的任务执行
+     *
+     * @param key
+     * @param from 当前执行任务
+     * @param to 下一阶段的任务
+     * @return false表示from已不是执行任务（表项已完成或已交出）
+     */
+    boolean handoff(Object key, CustomRunnable from, CustomRunnable to) {
+        Call call = mCalls.get(key);
+        if (call == null) {
+            return false;
+        }
+        synchronized (call) {
+            if (call.done || call.owner != from) {
+                return false;
+            }
+            call.owner = to;
+            return true;
+        }
+    }
+
+    /**
+     * 执行任务结束（或被丢弃），移除表项
+     *
+     * @param key
+     * @param owner
+     * @return 全部等待者；owner不是当前执行任务时返回null
+     */
+    List<CustomRunnable> complete(Object key, CustomRunnable owner) {
+        Call call = mCalls.get(key);
+        if (call == null) {
+            return null;
+        }
+        synchronized (call) {
+            if (call.done || call.owner != owner) {
+                return null;
+            }
+            call.done = true;
+            mCalls.remove(key);
+            // done之后不再修改
+            return call.waiters;
+        }
+    }
+
+    /**
+     * @param key
+     * @return 等待者快照，没有表项时返回空列表
+     */
+    List<CustomRunnable> getWaiters(Object key) {
+        Call call = mCalls.get(key);
+        if (call == null) {
+            return Collections.emptyList();
+        }
+        synchronized (call) {
+            return new ArrayList<CustomRunnable>(call.waiters);
+        }
+    }
+
+    /**
+     * @param key
+     * @return 当前负责执行的任务，没有表项时返回null
+     */
+    CustomRunnable getOwner(Object key) {
+        Call call = mCalls.get(key);
+        if (call == null) {
+            return null;
+        }
+        synchronized (call) {
+            return call.done ? null : call.owner;
+        }
+    }
+
+    /**
+     * @return 正在加载的不同请求数
+     */
+    int size() {
+        return mCalls.size();
+    }
+}
@@ -0,0 +1,135 @@
+package com.android.kernellib.imageLoader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 预加载统计，用于评估预加载的效果。
+ *
+ * 命中指预加载完成的图片之后被正常加载时从内存或磁盘取得，每个预加载的url只计一次。
+ */
+public class PrefetchMetrics {
+    // 记录的预加载url上限
+    private static final int MAX_TRACKED_URLS = 200;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mThrottledCount = new AtomicInteger();
+    private final AtomicInteger mAlreadyCachedCount = new AtomicInteger();
+    private final AtomicInteger mPrefetchedCount = new AtomicInteger();
+    private final AtomicInteger mMemoryHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+
+    // 已预加载、还未被使用的url
+    private final LinkedHashMap<String, Boolean> mPrefetchedUrls =
+            new LinkedHashMap<String, Boolean>() {
+                private static final long serialVersionUID = 3530562197613845672L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_TRACKED_URLS;
+                }
+            };
+
+    PrefetchMetrics() {
+    }
+
+    /**
+     * @return 请求预加载的url数
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return 因网络类型、暂停或队列繁忙而未下载或未执行的数量
+     */
+    public int getThrottledCount() {
+        return mThrottledCount.get();
+    }
+
+    /**
+     * @return 请求时已在缓存中的数量
+     */
+    public int getAlreadyCachedCount() {
+        return mAlreadyCachedCount.get();
+    }
+
+    /**
+     * @return 预加载完成的数量
+     */
+    public int getPrefetchedCount() {
+        return mPrefetchedCount.get();
+    }
+
+    /**
+     * @return 预加载的图片被正常加载时从内存取得的次数
+     */
+    public int getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * @return 预加载的图片被正常加载时从磁盘取得的次数
+     */
+    public int getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    /**
+     * @return 预加载完成的图片中之后被使用的比例
+     */
+    public float getHitRate() {
+        int prefetched = mPrefetchedCount.get();
+        if (prefetched == 0) {
+            return 0f;
+        }
+        return (float) (mMemoryHitCount.get() + mDiskHitCount.get()) / prefetched;
+    }
+
+    void onRequested() {
+        mRequestCount.incrementAndGet();
+    }
+
+    void onThrottled() {
+        mThrottledCount.incrementAndGet();
+    }
+
+    void onAlreadyCached() {
+        mAlreadyCachedCount.incrementAndGet();
+    }
+
+    void onPrefetched(String url) {
+        mPrefetchedCount.incrementAndGet();
+        synchronized (mPrefetchedUrls) {
+            mPrefetchedUrls.put(url, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 正常加载从缓存取得图片时调用
+     *
+     * @param url
+     * @param fromMemory
+     */
+    void recordHit(String url, boolean fromMemory) {
+        synchronized (mPrefetchedUrls) {
+            if (mPrefetchedUrls.isEmpty() || mPrefetchedUrls.remove(url) == null) {
+                return;
+            }
+        }
+        if (fromMemory) {
+            mMemoryHitCount.incrementAndGet();
+        } else {
+            mDiskHitCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrefetchMetrics[requests=%d,throttled=%d,alreadyCached=%d,"
+                + "prefetched=%d,memoryHits=%d,diskHits=%d,hitRate=%d%%]", getRequestCount(),
+                getThrottledCount(), getAlreadyCachedCount(), getPrefetchedCount(),
+                getMemoryHitCount(), getDiskHitCount(), (int) (getHitRate() * 100));
+    }
+}
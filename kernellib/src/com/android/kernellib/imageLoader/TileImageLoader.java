@@ -0,0 +1,430 @@
+package com.android.kernellib.imageLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.kernellib.utility.DebugLog;
+
+/**
+ * 超大图片（长图、海报）的分块加载，只解码可见区域，避免整图解码OOM或挤掉内存缓存。
+ *
+ * 图片须已在磁盘缓存中：一般先用ImageLoader按目标尺寸加载一张缩略图作为底图，下载时原始数据即写入磁盘缓存，
+ * 再创建本加载器，按当前缩放比例和可见区域取分块。分块以{@link #TILE_SIZE}为边长，
+ * 在独立的单线程中用BitmapRegionDecoder解码（不占用ImageLoader的磁盘线程池），
+ * 缓存在独立的LRU中，不占用ImageLoader的内存缓存。解码器只在该线程中访问。
+ *
+ * BitmapRegionDecoder需要API 10，使用前检查{@link #isSupported()}。除解码外的方法和回调都在主线程。
+ */
+public class TileImageLoader {
+    private static final String TAG = "TileImageLoader";
+
+    // 打开失败：图片不在磁盘缓存中
+    public static final int ERROR_NOT_CACHED = -1;
+
+    // 打开失败：格式不支持或文件损坏
+    public static final int ERROR_DECODE = -2;
+
+    // 打开失败：系统版本低于API 10
+    public static final int ERROR_UNSUPPORTED = -3;
+
+    // 分块解码后的边长（像素），在原图中的边长为TILE_SIZE * sampleSize
+    public static final int TILE_SIZE = 512;
+
+    // 分块缓存默认占最大内存的比例
+    private static final int DEFAULT_MEMORY_FRACTION = 8;
+
+    private static final int KILOBYTE = 1024;
+
+    // 所有加载器共用的解码线程，空闲时退出
+    private static final ThreadPoolExecutor EXECUTOR_FOR_TILE = new ThreadPoolExecutor(0, 1, 2,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /**
+     * 分块加载的回调，都在主线程调用
+     */
+    public interface TileListener {
+        /**
+         * 解码器已打开，之后可以通过{@link TileImageLoader#getTiles}取分块
+         *
+         * @param width 原图宽度
+         * @param height 原图高度
+         */
+        public void onOpened(int width, int height);
+
+        /**
+         * 分块解码完成，一般在这里重绘，重新调用getTiles时可从缓存取得
+         *
+         * @param tile
+         */
+        public void onTileLoaded(Tile tile);
+
+        /**
+         * @param errorCode 见ERROR_*
+         */
+        public void onErrorResponse(int errorCode);
+    }
+
+    /**
+     * 已解码的分块
+     */
+    public static class Tile {
+        // 在原图中的区域
+        public final Rect rect;
+
+        // 采样率，bitmap宽高为rect宽高除以sampleSize
+        public final int sampleSize;
+
+        public final Bitmap bitmap;
+
+        Tile(Rect rect, int sampleSize, Bitmap bitmap) {
+            this.rect = rect;
+            this.sampleSize = sampleSize;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private final Context mAppContext;
+
+    private final String mUrl;
+
+    private final int mDiskCacheType;
+
+    private final TileListener mListener;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 分块缓存，key见getTileKey，大小单位为KB
+    private final LruCache<String, Tile> mTileCache;
+
+    // 已提交解码的分块，只在主线程访问
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    // 是否正在打开，只在主线程访问
+    private boolean mOpening = false;
+
+    // 解码器，只在解码线程访问
+    private BitmapRegionDecoder mDecoder;
+    private volatile boolean mReleased = false;
+
+    // 原图宽高，打开前为0
+    private volatile int mWidth = 0;
+    private volatile int mHeight = 0;
+
+    private volatile int mOpenError = 0;
+
+    // 最近一次请求的可见区域和采样率，分块解码前检查是否仍然需要
+    private volatile Rect mVisibleRect;
+    private volatile int mVisibleSampleSize;
+
+    /**
+     * @param context
+     * @param url 图片地址，原始数据须已在DISK_CACHE_TYPE_COMMON磁盘缓存中
+     * @param listener
+     */
+    public TileImageLoader(Context context, String url, TileListener listener) {
+        this(context, url, DiskCache.DISK_CACHE_TYPE_COMMON, listener);
+    }
+
+    /**
+     * @param context
+     * @param url 图片地址，原始数据须已在磁盘缓存中
+     * @param diskCacheType 磁盘缓存类型
+     * @param listener
+     */
+    public TileImageLoader(Context context, String url, int diskCacheType,
+            TileListener listener) {
+        mAppContext = context.getApplicationContext();
+        mUrl = url;
+        mDiskCacheType = diskCacheType;
+        mListener = listener;
+        int maxSize = (int) (Runtime.getRuntime().maxMemory() / KILOBYTE / DEFAULT_MEMORY_FRACTION);
+        mTileCache = new LruCache<String, Tile>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Tile value) {
+                return ImgCacheMap.KiloByteBitmapCache.getBitmapSize(value.bitmap) / KILOBYTE + 1;
+            }
+        };
+    }
+
+    /**
+     * @return 当前系统是否支持分块加载
+     */
+    public static boolean isSupported() {
+        // VERSION_CODES.GINGERBREAD_MR1 10
+        return Build.VERSION.SDK_INT >= 10;
+    }
+
+    /**
+     * 按显示比例选择采样率，取不超过1/scale的最大2的幂
+     *
+     * @param scale 显示尺寸与原图尺寸之比
+     * @return
+     */
+    public static int getSampleSize(float scale) {
+        int sampleSize = 1;
+        if (scale <= 0) {
+            return sampleSize;
+        }
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 在解码线程中打开解码器，完成后回调onOpened或onErrorResponse。getTiles时也会自动打开。
+     */
+    public void open() {
+        if (mOpening || mWidth > 0 || mReleased) {
+            return;
+        }
+        if (!isSupported()) {
+            mListener.onErrorResponse(ERROR_UNSUPPORTED);
+            return;
+        }
+        mOpening = true;
+        mOpenError = 0;
+        EXECUTOR_FOR_TILE.execute(new OpenTask());
+    }
+
+    /**
+     * @return 原图宽度，打开前为0
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return 原图高度，打开前为0
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 取覆盖可见区域的分块。缓存中已有的直接返回，其余提交到解码线程解码，完成后回调onTileLoaded。
+     * 不再可见的分块在解码前被跳过。
+     *
+     * @param visible 原图坐标系中的可见区域
+     * @param scale 显示尺寸与原图尺寸之比
+     * @return 缓存中已有的分块，未打开时为空
+     */
+    public List<Tile> getTiles(Rect visible, float scale) {
+        List<Tile> result = new ArrayList<Tile>();
+        if (mReleased || visible == null) {
+            return result;
+        }
+        if (mWidth <= 0) {
+            open();
+            return result;
+        }
+        Rect area = new Rect(visible);
+        if (!area.intersect(0, 0, mWidth, mHeight)) {
+            return result;
+        }
+        int sampleSize = getSampleSize(scale);
+        mVisibleRect = area;
+        mVisibleSampleSize = sampleSize;
+
+        int tileSide = TILE_SIZE * sampleSize;
+        for (int top = area.top / tileSide * tileSide; top < area.bottom; top += tileSide) {
+            for (int left = area.left / tileSide * tileSide; left < area.right; left += tileSide) {
+                String key = getTileKey(sampleSize, left, top);
+                Tile tile = mTileCache.get(key);
+                if (tile != null) {
+                    result.add(tile);
+                } else if (mPending.add(key)) {
+                    Rect rect = new Rect(left, top, Math.min(left + tileSide, mWidth),
+                            Math.min(top + tileSide, mHeight));
+                    EXECUTOR_FOR_TILE.execute(new TileTask(key, rect, sampleSize));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 释放解码器和分块缓存，之后不再回调。分块的Bitmap不回收，调用方停止绘制后由GC回收。
+     * 解码器在解码线程中当前的分块解码完成后回收，不阻塞主线程。
+     */
+    public void release() {
+        mReleased = true;
+        mPending.clear();
+        mTileCache.evictAll();
+        EXECUTOR_FOR_TILE.execute(new Runnable() {
+            @TargetApi(10)
+            @Override
+            public void run() {
+                if (mDecoder != null) {
+                    mDecoder.recycle();
+                    mDecoder = null;
+                }
+            }
+        });
+    }
+
+    private static String getTileKey(int sampleSize, int left, int top) {
+        return sampleSize + ":" + left + ":" + top;
+    }
+
+    /**
+     * 打开解码器
+     */
+    private class OpenTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                openDecoder();
+            } finally {
+                onOpenFinished();
+            }
+        }
+
+        @TargetApi(10)
+        private void openDecoder() {
+            if (mReleased) {
+                return;
+            }
+            File file = ImageLoader.getDiskCache().getCachedFile(mAppContext, mUrl,
+                    mDiskCacheType);
+            if (file == null) {
+                DebugLog.log(TAG, "open not cached: " + mUrl);
+                mOpenError = ERROR_NOT_CACHED;
+                return;
+            }
+            BitmapRegionDecoder decoder = null;
+            try {
+                decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+            } catch (IOException e) {
+                DebugLog.log(TAG, "open e:" + e);
+            } catch (OutOfMemoryError oe) {
+                DebugLog.log(TAG, "open " + oe);
+                System.gc();
+            }
+            if (decoder == null) {
+                mOpenError = ERROR_DECODE;
+                return;
+            }
+            if (mReleased) {
+                decoder.recycle();
+                return;
+            }
+            mDecoder = decoder;
+            mHeight = decoder.getHeight();
+            mWidth = decoder.getWidth();
+            DebugLog.log(TAG, "open " + mUrl + " " + mWidth + "x" + mHeight);
+        }
+
+        private void onOpenFinished() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mOpening = false;
+                    if (mReleased) {
+                        return;
+                    }
+                    if (mWidth > 0) {
+                        mListener.onOpened(mWidth, mHeight);
+                    } else if (mOpenError != 0) {
+                        mListener.onErrorResponse(mOpenError);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 解码一个分块
+     */
+    private class TileTask implements Runnable {
+        private final String mKey;
+        private final Rect mRect;
+        private final int mSampleSize;
+
+        TileTask(String key, Rect rect, int sampleSize) {
+            mKey = key;
+            mRect = rect;
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = decode();
+            } finally {
+                onDecoded(bitmap);
+            }
+        }
+
+        @TargetApi(10)
+        private Bitmap decode() {
+            if (!isWanted() || mDecoder == null) {
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+            if (mSampleSize > 1) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            try {
+                return mDecoder.decodeRegion(mRect, options);
+            } catch (Exception e) {
+                DebugLog.log(TAG, "decodeRegion " + mRect + " e:" + e);
+            } catch (OutOfMemoryError oe) {
+                DebugLog.log(TAG, "decodeRegion " + mRect + " " + oe);
+                mTileCache.trimToSize(mTileCache.maxSize() / 2);
+                System.gc();
+            }
+            return null;
+        }
+
+        /**
+         * @return 分块是否仍在最近一次请求的可见区域中
+         */
+        private boolean isWanted() {
+            Rect visible = mVisibleRect;
+            return !mReleased && mSampleSize == mVisibleSampleSize && visible != null
+                    && Rect.intersects(visible, mRect);
+        }
+
+        private void onDecoded(final Bitmap bt) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPending.remove(mKey);
+                    if (mReleased || bt == null) {
+                        return;
+                    }
+                    Tile tile = new Tile(mRect, mSampleSize, bt);
+                    mTileCache.put(mKey, tile);
+                    mListener.onTileLoaded(tile);
+                }
+            });
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.android.kernellib.utility;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -15,6 +15,8 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.telephony.TelephonyManager;
 
+import com.android.kernellib.http.SharedHttpClient;
+
 /** 
 * @ClassName: NetWorkHelper 
 * @Description: TODO(网络判断所使用的类) 
@@ -151,22 +153,22 @@ public class NetworkHelper {
 	
 	// 检查手机网络链接情况
 	public static boolean checkInternet(String url) {
-		HttpClient httpClient = null;
+		HttpClient httpClient = SharedHttpClient.getHttpClient();
 		HttpGet httpRequest = new HttpGet(url);
-		httpClient = new DefaultHttpClient();
+		HttpResponse httpResponse = null;
 		try {
-			HttpResponse httpResponse = httpClient.execute(httpRequest);
+			httpResponse = httpClient.execute(httpRequest);
 			int uRC = httpResponse.getStatusLine().getStatusCode();
-			if (uRC == HttpStatus.SC_OK) {
-				return true;
+			HttpEntity entity = httpResponse.getEntity();
+			if (entity != null) {
+				// 读完响应体，连接放回连接池复用
+				entity.consumeContent();
 			}
+			return uRC == HttpStatus.SC_OK;
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			if (httpClient != null) {
-				httpClient.getConnectionManager().shutdown();
-			}
-			httpClient = null;
+			// 共享连接池，只中断本次请求，不能shutdown
+			httpRequest.abort();
 		}
 		return false;
 	}
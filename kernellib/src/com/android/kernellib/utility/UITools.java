@@ -15,6 +15,8 @@ import android.util.DisplayMetrics;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Toast;
 
+import com.android.kernellib.imageLoader.BitmapPool;
+
 /**
  * UI相关工具函数都放在此类中。 如：弹窗、toast 、view隐藏 显示
  * 
@@ -229,6 +231,28 @@ public class UITools {
 		return roundedSize;
 	}
 
+	/**
+	 * 计算解码到目标尺寸的采样率，取2的幂，保证解码后的宽高不小于目标尺寸
+	 * 
+	 * @param options 已解码出宽高
+	 * @param reqWidth 目标宽度，小于等于0表示不限制
+	 * @param reqHeight 目标高度，小于等于0表示不限制
+	 * @return
+	 */
+	public static int computeSampleSizeForTarget(BitmapFactory.Options options,
+			int reqWidth, int reqHeight) {
+		int sampleSize = 1;
+		if ((reqWidth <= 0 && reqHeight <= 0) || options.outWidth <= 0
+				|| options.outHeight <= 0) {
+			return sampleSize;
+		}
+		while ((reqWidth <= 0 || options.outWidth / (sampleSize * 2) >= reqWidth)
+				&& (reqHeight <= 0 || options.outHeight / (sampleSize * 2) >= reqHeight)) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
 	private static int computeInitialSampleSize(BitmapFactory.Options options,
 			int minSideLength, int maxNumOfPixels) {
 		double w = options.outWidth;
@@ -267,8 +291,20 @@ public class UITools {
         return null == _b ? null : b;
     }
     
-    @SuppressWarnings("deprecation")
 	public static Bitmap zoomBitmap(Context context, byte[] _b) {
+        return zoomBitmap(context, _b, 0, 0);
+    }
+
+    /**
+     * 按目标尺寸压缩解码，未指定目标尺寸时按屏幕尺寸
+     * 
+     * @param context
+     * @param _b
+     * @param reqWidth 目标宽度，小于等于0表示不限制
+     * @param reqHeight 目标高度，小于等于0表示不限制
+     * @return
+     */
+    public static Bitmap zoomBitmap(Context context, byte[] _b, int reqWidth, int reqHeight) {
         DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
         int w = displayMetrics.widthPixels;
         int h = displayMetrics.heightPixels;
@@ -281,15 +317,19 @@ public class UITools {
             BitmapFactory.decodeByteArray(_b, 0, _b.length, opts);
 
             //int x = 2;
-            int x = computeSampleSize(opts, w > h ? w : h, w * h);
+            int x;
+            if (reqWidth > 0 || reqHeight > 0) {
+                x = computeSampleSizeForTarget(opts, reqWidth, reqHeight);
+            } else {
+                x = computeSampleSize(opts, w > h ? w : h, w * h);
+            }
             opts.inTargetDensity = d;
             opts.inSampleSize = x;
             opts.inJustDecodeBounds = false;
 
             opts.inDither = false;
-            opts.inPurgeable = true;
 
-            return BitmapFactory.decodeByteArray(_b, 0, _b.length, opts);
+            return BitmapPool.getInstance().decodeByteArray(_b, 0, _b.length, opts);
         } catch (OutOfMemoryError ooe) {
             ooe.printStackTrace();
             System.gc();